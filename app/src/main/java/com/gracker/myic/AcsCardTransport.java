@@ -0,0 +1,77 @@
+package com.gracker.myic;
+
+import com.acs.smartcard.Reader;
+import com.acs.smartcard.ReaderException;
+import com.gracker.mykad.CardTransport;
+import com.gracker.mykad.SmartCardException;
+
+/**
+ * The card transport of an ACS reader. Errors of the ACS library are
+ * wrapped in {@link SmartCardException}.
+ *
+ * @author Jeffrey Loh
+ * @version 1.0, January 2020
+ */
+final class AcsCardTransport implements CardTransport {
+
+    private final Reader mReader;
+
+    /**
+     * Creates a transport for the reader.
+     *
+     * @param reader
+     *            the reader.
+     */
+    AcsCardTransport(Reader reader) {
+        mReader = reader;
+    }
+
+    /**
+     * Returns the reader.
+     *
+     * @return the reader.
+     */
+    Reader getReader() {
+        return mReader;
+    }
+
+    @Override
+    public byte[] power(int slotNum, int action) throws SmartCardException {
+        try {
+            return mReader.power(slotNum, action);
+        } catch (ReaderException e) {
+            throw new SmartCardException(e);
+        }
+    }
+
+    @Override
+    public int setProtocol(int slotNum, int preferredProtocols)
+            throws SmartCardException {
+        try {
+            return mReader.setProtocol(slotNum, preferredProtocols);
+        } catch (ReaderException e) {
+            throw new SmartCardException(e);
+        }
+    }
+
+    @Override
+    public int getProtocol(int slotNum) {
+        return mReader.getProtocol(slotNum);
+    }
+
+    @Override
+    public int getState(int slotNum) {
+        return mReader.getState(slotNum);
+    }
+
+    @Override
+    public int transmit(int slotNum, byte[] command, int commandLength,
+            byte[] response, int responseLength) throws SmartCardException {
+        try {
+            return mReader.transmit(slotNum, command, commandLength, response,
+                    responseLength);
+        } catch (ReaderException e) {
+            throw new SmartCardException(e);
+        }
+    }
+}
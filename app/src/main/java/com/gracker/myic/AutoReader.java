@@ -0,0 +1,304 @@
+package com.gracker.myic;
+
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.acs.smartcard.Reader;
+import com.gracker.mykad.JpnField;
+import com.gracker.mykad.PhotoTransfer;
+import com.gracker.mykad.ReadIcParams;
+import com.gracker.mykad.ReadIcResult;
+
+/**
+ * Starts a read as soon as a card is inserted.
+ *
+ * A slot must stay present for {@link #DEBOUNCE_MILLIS} before the read
+ * starts, so contacts that flap while the card slides in do not trigger
+ * extra reads, and each insertion is read once. The time from insertion to
+ * result is measured for every read.
+ *
+ * @author Jeffrey Loh
+ * @version 1.0, January 2020
+ */
+final class AutoReader {
+
+    /** Time a slot must stay present before it is read. */
+    static final long DEBOUNCE_MILLIS = 100;
+
+    /**
+     * Interface definition for a callback to be invoked when an automatic
+     * read completes. It runs on the worker thread of the reader.
+     */
+    interface Listener {
+
+        /**
+         * Called when an automatic read completes.
+         *
+         * @param worker
+         *            the reader.
+         * @param slotNum
+         *            the slot number.
+         * @param result
+         *            the result.
+         * @param latencyNanos
+         *            the time from insertion to result.
+         */
+        void onAutoRead(ReaderWorker worker, int slotNum, ReadIcResult result,
+                long latencyNanos);
+    }
+
+    private static final class Slot {
+        long insertedAt;
+        boolean read;
+        ScheduledFuture<?> pending;
+    }
+
+    private final Listener mListener;
+    private final ScheduledExecutorService mScheduler;
+    private final Map<String, Slot> mSlots = new HashMap<String, Slot>();
+
+    private volatile boolean mEnabled;
+    private volatile Set<JpnField> mFields = EnumSet.allOf(JpnField.class);
+    private volatile boolean mReadPhoto = true;
+    private volatile PhotoTransfer.Listener mPhotoListener;
+
+    private long mReadCount;
+    private long mLastLatency;
+    private long mTotalLatency;
+    private long mMaxLatency;
+
+    /**
+     * Creates an automatic reader. It starts disabled.
+     *
+     * @param listener
+     *            the listener.
+     */
+    AutoReader(Listener listener) {
+
+        mListener = listener;
+        mScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "AutoReader");
+            }
+        });
+    }
+
+    /**
+     * Enables or disables automatic reads.
+     *
+     * @param enabled
+     *            true to read on insertion.
+     */
+    void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /**
+     * Returns true if automatic reads are enabled.
+     *
+     * @return true if enabled.
+     */
+    boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Sets the fields to read.
+     *
+     * @param fields
+     *            the fields.
+     */
+    void setFields(Set<JpnField> fields) {
+        mFields = fields;
+    }
+
+    /**
+     * Sets whether the photo is read.
+     *
+     * @param readPhoto
+     *            true to read the photo.
+     */
+    void setReadPhoto(boolean readPhoto) {
+        mReadPhoto = readPhoto;
+    }
+
+    /**
+     * Sets the listener for the photo while it arrives.
+     *
+     * @param listener
+     *            the listener, or null.
+     */
+    void setPhotoListener(PhotoTransfer.Listener listener) {
+        mPhotoListener = listener;
+    }
+
+    /**
+     * Handles a slot state change of a reader.
+     *
+     * @param worker
+     *            the reader.
+     * @param slotNum
+     *            the slot number.
+     * @param currState
+     *            the current state.
+     */
+    synchronized void onStateChange(final ReaderWorker worker,
+            final int slotNum, int currState) {
+
+        String key = worker.getName() + "#" + slotNum;
+        Slot slot = mSlots.get(key);
+        if (slot == null) {
+            slot = new Slot();
+            mSlots.put(key, slot);
+        }
+
+        if (currState == Reader.CARD_ABSENT) {
+
+            // The next insertion is a new card
+            if (slot.pending != null) {
+                slot.pending.cancel(false);
+                slot.pending = null;
+            }
+            slot.read = false;
+            return;
+        }
+
+        if (currState != Reader.CARD_PRESENT || !mEnabled || slot.read) {
+            return;
+        }
+
+        if (slot.pending == null) {
+            slot.insertedAt = System.nanoTime();
+        } else {
+            slot.pending.cancel(false);
+        }
+
+        final Slot insertion = slot;
+        slot.pending = mScheduler.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                start(worker, slotNum, insertion);
+            }
+        }, DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void start(final ReaderWorker worker, final int slotNum,
+            final Slot slot) {
+
+        final long insertedAt;
+
+        synchronized (this) {
+
+            slot.pending = null;
+            if (slot.read || !mEnabled) {
+                return;
+            }
+
+            slot.read = true;
+            insertedAt = slot.insertedAt;
+        }
+
+        final ReadIcParams params = new ReadIcParams();
+        params.slotNum = slotNum;
+        params.fields = mFields;
+        params.readphoto = mReadPhoto;
+        params.photoListener = mPhotoListener;
+
+        // The reader is only used on its worker
+        boolean submitted = worker.submit(new Runnable() {
+
+            @Override
+            public void run() {
+
+                if (worker.getReader().getState(slotNum) < Reader.CARD_PRESENT) {
+                    synchronized (AutoReader.this) {
+                        slot.read = false;
+                    }
+                    return;
+                }
+
+                worker.read(params, null, new ReaderWorker.Callback<ReadIcResult>() {
+
+                    @Override
+                    public void onComplete(ReadIcResult result) {
+
+                        long latency = System.nanoTime() - insertedAt;
+                        record(latency);
+                        mListener.onAutoRead(worker, slotNum, result, latency);
+                    }
+                });
+            }
+        });
+
+        // A stopped worker drops the check, so the slot can be read later
+        if (!submitted) {
+            synchronized (this) {
+                slot.read = false;
+            }
+        }
+    }
+
+    private synchronized void record(long latency) {
+
+        mReadCount++;
+        mLastLatency = latency;
+        mTotalLatency += latency;
+        if (latency > mMaxLatency) {
+            mMaxLatency = latency;
+        }
+    }
+
+    /**
+     * Returns the number of automatic reads completed.
+     *
+     * @return the read count.
+     */
+    synchronized long getReadCount() {
+        return mReadCount;
+    }
+
+    /**
+     * Returns the insertion-to-result latency of the last read.
+     *
+     * @return the latency in milliseconds.
+     */
+    synchronized long getLastLatencyMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mLastLatency);
+    }
+
+    /**
+     * Returns the mean insertion-to-result latency.
+     *
+     * @return the latency in milliseconds.
+     */
+    synchronized long getAverageLatencyMillis() {
+        return (mReadCount == 0) ? 0
+                : TimeUnit.NANOSECONDS.toMillis(mTotalLatency / mReadCount);
+    }
+
+    /**
+     * Returns the largest insertion-to-result latency.
+     *
+     * @return the latency in milliseconds.
+     */
+    synchronized long getMaxLatencyMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mMaxLatency);
+    }
+
+    /**
+     * Stops the scheduler. Reads already started still complete.
+     */
+    void shutdown() {
+        mScheduler.shutdownNow();
+    }
+}
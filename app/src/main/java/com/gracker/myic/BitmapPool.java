@@ -0,0 +1,92 @@
+package com.gracker.myic;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.graphics.Bitmap;
+
+/**
+ * A small pool of mutable bitmaps that decodes can write into through
+ * {@code BitmapFactory.Options.inBitmap}.
+ *
+ * A bitmap can be reused for any image whose pixels fit in its allocation,
+ * so a few bitmaps are enough however many photos are shown.
+ *
+ * @author Jeffrey Loh
+ * @version 1.0, January 2020
+ */
+final class BitmapPool {
+
+    private static final int BYTES_PER_PIXEL = 4;
+
+    private final int mCapacity;
+    private final List<Bitmap> mBitmaps;
+
+    /**
+     * Creates an empty pool.
+     *
+     * @param capacity
+     *            the most bitmaps kept.
+     */
+    BitmapPool(int capacity) {
+        mCapacity = capacity;
+        mBitmaps = new ArrayList<Bitmap>(capacity);
+    }
+
+    /**
+     * Takes a bitmap large enough for an ARGB_8888 image of the given size.
+     *
+     * @param width
+     *            the image width.
+     * @param height
+     *            the image height.
+     * @return the bitmap, or null if none fits.
+     */
+    synchronized Bitmap get(int width, int height) {
+
+        int size = width * height * BYTES_PER_PIXEL;
+
+        for (int i = 0; i < mBitmaps.size(); i++) {
+            Bitmap bitmap = mBitmaps.get(i);
+            if (bitmap.getAllocationByteCount() >= size) {
+                mBitmaps.remove(i);
+                return bitmap;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns a bitmap that is no longer shown. It is recycled if the pool
+     * is full.
+     *
+     * @param bitmap
+     *            the bitmap, or null.
+     */
+    synchronized void put(Bitmap bitmap) {
+
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+
+        if (!bitmap.isMutable() || mBitmaps.size() >= mCapacity) {
+            bitmap.recycle();
+            return;
+        }
+
+        mBitmaps.add(bitmap);
+    }
+
+    /**
+     * Recycles every bitmap in the pool.
+     */
+    synchronized void clear() {
+
+        for (Bitmap bitmap : mBitmaps) {
+            bitmap.recycle();
+        }
+
+        mBitmaps.clear();
+    }
+}
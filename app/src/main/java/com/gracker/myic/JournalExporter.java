@@ -0,0 +1,511 @@
+package com.gracker.myic;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import com.gracker.mykad.ReadIcResult;
+
+/**
+ * Exports the reads of a {@link ReadJournal} as CSV or newline-delimited
+ * JSON.
+ *
+ * The journal is scanned one record at a time and every record is encoded
+ * straight into a fixed buffer that is written to the output channel when it
+ * fills up, so memory use does not grow with the number of reads and the
+ * scan can only run as fast as the output is written. Photos are left out,
+ * written inline as base64, or written as separate JPEG files.
+ *
+ * Every {@link #CHECKPOINT_INTERVAL} records the output is synced and the
+ * journal position saved to a checkpoint file beside it, together with the
+ * format, photo mode and time range. An export that was cancelled or failed
+ * resumes from the checkpoint when it is run again with the same output and
+ * settings, starts over when the settings differ, and the checkpoint is
+ * deleted when the export completes.
+ *
+ * @author Jeffrey Loh
+ * @version 1.0, January 2020
+ */
+final class JournalExporter {
+
+    /** The output formats. */
+    enum Format {
+        CSV, NDJSON
+    }
+
+    /** What to do with the photos. */
+    enum PhotoMode {
+        /** Leave them out. */
+        NONE,
+        /** Write them inline as base64. */
+        BASE64,
+        /**
+         * Write them as JPEG files in a directory beside the output, named by
+         * IC number and time, or by the place of the record in the journal
+         * and time when the IC number was not read.
+         */
+        FILES
+    }
+
+    /**
+     * Interface definition for a callback to be invoked while the export
+     * runs. It runs on the thread of the export.
+     */
+    interface Listener {
+
+        /**
+         * Called after every checkpoint and when the export ends.
+         *
+         * @param exported
+         *            the number of reads written.
+         * @param scanned
+         *            the number of journal records scanned.
+         * @param total
+         *            the number of reads in the journal.
+         */
+        void onProgress(long exported, long scanned, long total);
+    }
+
+    static final int CHECKPOINT_INTERVAL = 1000;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+            .toCharArray();
+
+    private static final String[] COLUMNS = { "time", "ic", "name", "gender", "old_ic",
+            "dob", "birth_place", "issue_date", "citizenship", "race", "religion",
+            "address1", "address2", "address3", "postcode", "city", "state", "photo" };
+
+    private final ReadJournal mJournal;
+    private final File mOutput;
+    private final Format mFormat;
+    private final PhotoMode mPhotoMode;
+    private final File mPhotoDir;
+    private final File mCheckpoint;
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final CharsetEncoder mEncoder = UTF_8.newEncoder();
+    private final StringBuilder mLine = new StringBuilder(1024);
+    private final SimpleDateFormat mTimeFormat;
+
+    private long mFrom = Long.MIN_VALUE;
+    private long mTo = Long.MAX_VALUE;
+    private volatile Listener mListener;
+    private volatile boolean mCancelled;
+
+    private FileChannel mChannel;
+    private long mPosition;
+    private long mExported;
+    private long mScanned;
+
+    /**
+     * Creates an export.
+     *
+     * @param journal
+     *            the open journal.
+     * @param output
+     *            the output file.
+     * @param format
+     *            the format.
+     * @param photoMode
+     *            what to do with the photos.
+     */
+    JournalExporter(ReadJournal journal, File output, Format format, PhotoMode photoMode) {
+        mJournal = journal;
+        mOutput = output;
+        mFormat = format;
+        mPhotoMode = photoMode;
+        mPhotoDir = new File(output.getParentFile(), output.getName() + ".photos");
+        mCheckpoint = new File(output.getParentFile(), output.getName() + CHECKPOINT_SUFFIX);
+        mTimeFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        mTimeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    /**
+     * Limits the export to the reads made in a time range.
+     *
+     * @param from
+     *            the earliest time in milliseconds.
+     * @param to
+     *            the latest time in milliseconds.
+     */
+    void setTimeRange(long from, long to) {
+        mFrom = from;
+        mTo = to;
+    }
+
+    void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Stops the export at the next record. It can be resumed from its last
+     * checkpoint.
+     */
+    void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Returns the file holding the position of an unfinished export.
+     *
+     * @return the checkpoint file.
+     */
+    File getCheckpointFile() {
+        return mCheckpoint;
+    }
+
+    /**
+     * Runs the export on the calling thread.
+     *
+     * @return true if the export completed, false if it was cancelled.
+     * @throws IOException
+     *             if the journal cannot be read or the output written.
+     */
+    boolean run() throws IOException {
+
+        int segment = 0;
+        long offset = 0;
+        boolean resume = false;
+
+        long[] checkpoint = readCheckpoint();
+        if (checkpoint != null && mOutput.length() >= checkpoint[4]) {
+            segment = (int) checkpoint[0];
+            offset = checkpoint[1];
+            mExported = checkpoint[2];
+            mScanned = checkpoint[3];
+            mPosition = checkpoint[4];
+            resume = true;
+        } else {
+            mExported = 0;
+            mScanned = 0;
+            mPosition = 0;
+        }
+
+        if (mPhotoMode == PhotoMode.FILES && !mPhotoDir.isDirectory() && !mPhotoDir.mkdirs()) {
+            throw new IOException("Cannot create " + mPhotoDir);
+        }
+
+        mChannel = new RandomAccessFile(mOutput, "rw").getChannel();
+        final boolean[] cancelled = { false };
+
+        try {
+
+            // Drop whatever was written after the checkpoint
+            mChannel.truncate(mPosition);
+            mBuffer.clear();
+
+            if (!resume && mFormat == Format.CSV) {
+                for (int i = 0; i < COLUMNS.length; i++) {
+                    mLine.append((i == 0) ? "" : ",").append(COLUMNS[i]);
+                }
+                mLine.append('\n');
+                writeLine();
+            }
+
+            mJournal.scan(segment, offset, new ReadJournal.Visitor() {
+
+                @Override
+                public boolean onRecord(int segment, long next, long time, ReadIcResult result)
+                        throws IOException {
+
+                    if (mCancelled) {
+                        cancelled[0] = true;
+                        return false;
+                    }
+
+                    mScanned++;
+                    if (time >= mFrom && time <= mTo) {
+                        export(time, result);
+                        mExported++;
+                    }
+
+                    if (mScanned % CHECKPOINT_INTERVAL == 0) {
+                        checkpoint(segment, next);
+                    }
+
+                    return true;
+                }
+            });
+
+            flushBuffer();
+            mChannel.force(false);
+
+        } finally {
+            mChannel.close();
+        }
+
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onProgress(mExported, mScanned, mJournal.size());
+        }
+
+        if (cancelled[0]) {
+            return false;
+        }
+
+        mCheckpoint.delete();
+        return true;
+    }
+
+    private void export(long time, ReadIcResult result) throws IOException {
+
+        String ic = result.getIc();
+        String photoFile = null;
+        if (mPhotoMode == PhotoMode.FILES && result.photo != null) {
+            // Without an IC number the place of the record in the journal keeps names apart
+            String name = (ic == null || ic.isEmpty()) ? "read-" + mScanned : ic;
+            photoFile = name + "-" + time + ".jpg";
+            writePhotoFile(new File(mPhotoDir, photoFile), result.photo);
+        }
+
+        String[] values = { mTimeFormat.format(new Date(time)), ic, result.getName(),
+                result.getGender(), result.getOldIc(), result.getDob(), result.getBirthPlace(),
+                result.getIssueDate(), result.getCitizenship(), result.getRace(),
+                result.getReligion(), result.getAddress1(), result.getAddress2(),
+                result.getAddress3(), result.getPostcode(), result.getCity(), result.getState() };
+
+        boolean inline = mPhotoMode == PhotoMode.BASE64 && result.photo != null;
+
+        if (mFormat == Format.CSV) {
+
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    mLine.append(',');
+                }
+                appendCsv(values[i]);
+            }
+            mLine.append(',');
+            if (photoFile != null) {
+                appendCsv(photoFile);
+            }
+
+        } else {
+
+            mLine.append('{');
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null) {
+                    mLine.append((i == 0) ? "\"" : ",\"").append(COLUMNS[i]).append("\":");
+                    appendJson(values[i]);
+                }
+            }
+            if (photoFile != null) {
+                mLine.append(",\"photo_file\":");
+                appendJson(photoFile);
+            } else if (inline) {
+                mLine.append(",\"photo\":\"");
+            }
+        }
+
+        writeLine();
+
+        if (inline) {
+            writeBase64(result.photo);
+            mLine.append((mFormat == Format.CSV) ? "" : "\"");
+        }
+
+        mLine.append((mFormat == Format.CSV) ? "\n" : "}\n");
+        writeLine();
+    }
+
+    private void appendCsv(String value) {
+
+        if (value == null) {
+            return;
+        }
+
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+
+        if (!quote) {
+            mLine.append(value);
+            return;
+        }
+
+        mLine.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            mLine.append(c);
+            if (c == '"') {
+                mLine.append('"');
+            }
+        }
+        mLine.append('"');
+    }
+
+    private void appendJson(String value) {
+
+        mLine.append('"');
+        for (int i = 0; i < value.length(); i++) {
+
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                mLine.append('\\').append(c);
+            } else if (c < 0x20) {
+                mLine.append(String.format(Locale.US, "\\u%04x", (int) c));
+            } else {
+                mLine.append(c);
+            }
+        }
+        mLine.append('"');
+    }
+
+    /**
+     * Encodes the pending line into the buffer and empties it.
+     */
+    private void writeLine() throws IOException {
+
+        CharBuffer chars = CharBuffer.wrap(mLine);
+        mEncoder.reset();
+
+        while (true) {
+            CoderResult result = mEncoder.encode(chars, mBuffer, true);
+            if (result.isOverflow()) {
+                flushBuffer();
+            } else if (result.isUnderflow()) {
+                break;
+            } else {
+                result.throwException();
+            }
+        }
+
+        mLine.setLength(0);
+    }
+
+    /**
+     * Encodes a photo as base64 straight into the buffer.
+     */
+    private void writeBase64(byte[] data) throws IOException {
+
+        for (int i = 0; i < data.length; i += 3) {
+
+            if (mBuffer.remaining() < 4) {
+                flushBuffer();
+            }
+
+            int n = Math.min(3, data.length - i);
+            int bits = (data[i] & 0xFF) << 16;
+            if (n > 1) {
+                bits |= (data[i + 1] & 0xFF) << 8;
+            }
+            if (n > 2) {
+                bits |= data[i + 2] & 0xFF;
+            }
+
+            mBuffer.put((byte) BASE64[(bits >> 18) & 0x3F]);
+            mBuffer.put((byte) BASE64[(bits >> 12) & 0x3F]);
+            mBuffer.put((byte) ((n > 1) ? BASE64[(bits >> 6) & 0x3F] : '='));
+            mBuffer.put((byte) ((n > 2) ? BASE64[bits & 0x3F] : '='));
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+
+        mBuffer.flip();
+        while (mBuffer.hasRemaining()) {
+            mPosition += mChannel.write(mBuffer, mPosition);
+        }
+        mBuffer.clear();
+    }
+
+    private static void writePhotoFile(File file, byte[] photo) throws IOException {
+
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(photo);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Syncs the output and saves the journal position after it.
+     */
+    private void checkpoint(int segment, long next) throws IOException {
+
+        flushBuffer();
+        mChannel.force(false);
+
+        File temp = new File(mCheckpoint.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write((segment + " " + next + " " + mExported + " " + mScanned + " "
+                    + mPosition + " " + settings() + "\n").getBytes(UTF_8));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        if (!temp.renameTo(mCheckpoint)) {
+            throw new IOException("Cannot write " + mCheckpoint);
+        }
+
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onProgress(mExported, mScanned, mJournal.size());
+        }
+    }
+
+    /**
+     * Returns the settings of the export as saved in a checkpoint.
+     */
+    private String settings() {
+        return mFormat.name() + " " + mPhotoMode.name() + " " + mFrom + " " + mTo;
+    }
+
+    /**
+     * Returns the segment, offset, exported and scanned counts and output
+     * length of the last checkpoint, or null if there is none. A checkpoint
+     * of an export with other settings is deleted.
+     */
+    private long[] readCheckpoint() {
+
+        if (!mCheckpoint.isFile()) {
+            return null;
+        }
+
+        try {
+
+            byte[] data = new byte[(int) mCheckpoint.length()];
+            RandomAccessFile file = new RandomAccessFile(mCheckpoint, "r");
+            try {
+                file.readFully(data);
+            } finally {
+                file.close();
+            }
+
+            String[] parts = new String(data, UTF_8).trim().split(" ", 6);
+            if (parts.length != 6 || !parts[5].equals(settings())) {
+                mCheckpoint.delete();
+                return null;
+            }
+
+            long[] values = new long[5];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = Long.parseLong(parts[i]);
+            }
+            return values;
+
+        } catch (IOException e) {
+            return null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
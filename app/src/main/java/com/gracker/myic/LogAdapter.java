@@ -0,0 +1,130 @@
+package com.gracker.myic;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import android.content.Context;
+import android.view.Choreographer;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+/**
+ * Shows a bounded log in a list view.
+ *
+ * Messages can be appended from any thread. They wait in a pending buffer
+ * and are published to the list once per display frame, so a burst of
+ * messages costs one list update. Only the rows on screen are formatted,
+ * and the timestamp prefix is formatted once per second.
+ *
+ * @author Jeffrey Loh
+ * @version 1.0, January 2020
+ */
+final class LogAdapter extends BaseAdapter implements Choreographer.FrameCallback {
+
+    private final Context mContext;
+    private final Choreographer mChoreographer;
+
+    /** Messages shown, only used on the UI thread. */
+    private final LogBuffer mShown;
+
+    /** Messages appended since the last frame, guarded by itself. */
+    private final LogBuffer mPending;
+    private boolean mFramePosted;
+
+    private final DateFormat mDateFormat = new SimpleDateFormat("[dd-MM-yyyy HH:mm:ss]: ");
+    private final Date mDate = new Date();
+    private long mPrefixSecond = -1;
+    private String mPrefix;
+
+    /**
+     * Creates an empty log. It must be created on the UI thread.
+     *
+     * @param context
+     *            the context.
+     * @param capacity
+     *            the most messages kept.
+     */
+    LogAdapter(Context context, int capacity) {
+        mContext = context;
+        mChoreographer = Choreographer.getInstance();
+        mShown = new LogBuffer(capacity);
+        mPending = new LogBuffer(capacity);
+    }
+
+    /**
+     * Appends a message. It shows up on the next display frame.
+     *
+     * @param message
+     *            the message.
+     */
+    void append(String message) {
+
+        long time = System.currentTimeMillis();
+
+        synchronized (mPending) {
+
+            mPending.append(time, message);
+
+            if (mFramePosted) {
+                return;
+            }
+            mFramePosted = true;
+        }
+
+        mChoreographer.postFrameCallback(this);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+
+        synchronized (mPending) {
+            mPending.drainTo(mShown);
+            mFramePosted = false;
+        }
+
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public int getCount() {
+        return mShown.size();
+    }
+
+    @Override
+    public Object getItem(int position) {
+        return mShown.getMessage(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+
+        TextView view = (TextView) convertView;
+        if (view == null) {
+            view = new TextView(mContext);
+        }
+
+        view.setText(prefix(mShown.getTime(position)) + mShown.getMessage(position));
+
+        return view;
+    }
+
+    private String prefix(long time) {
+
+        long second = time / 1000;
+        if (second != mPrefixSecond) {
+            mDate.setTime(time);
+            mPrefix = mDateFormat.format(mDate);
+            mPrefixSecond = second;
+        }
+
+        return mPrefix;
+    }
+}
@@ -0,0 +1,134 @@
+package com.gracker.myic;
+
+/**
+ * A bounded log of timestamped messages.
+ *
+ * Once the buffer is full every new message replaces the oldest one, so
+ * appending never allocates and never copies the log. The buffer is not
+ * thread-safe.
+ *
+ * @author Jeffrey Loh
+ * @version 1.0, January 2020
+ */
+final class LogBuffer {
+
+    private final long[] mTimes;
+    private final String[] mMessages;
+    private int mStart;
+    private int mSize;
+
+    /**
+     * Creates an empty log.
+     *
+     * @param capacity
+     *            the most messages kept.
+     */
+    LogBuffer(int capacity) {
+        mTimes = new long[capacity];
+        mMessages = new String[capacity];
+    }
+
+    /**
+     * Returns the most messages kept.
+     *
+     * @return the capacity.
+     */
+    int getCapacity() {
+        return mMessages.length;
+    }
+
+    /**
+     * Returns the number of messages.
+     *
+     * @return the size.
+     */
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Appends a message, dropping the oldest one if the log is full.
+     *
+     * @param time
+     *            the time in milliseconds since the epoch.
+     * @param message
+     *            the message.
+     */
+    void append(long time, String message) {
+
+        int index;
+        if (mSize < mMessages.length) {
+            index = (mStart + mSize) % mMessages.length;
+            mSize++;
+        } else {
+            index = mStart;
+            mStart = (mStart + 1) % mMessages.length;
+        }
+
+        mTimes[index] = time;
+        mMessages[index] = message;
+    }
+
+    /**
+     * Returns the time of a message.
+     *
+     * @param position
+     *            the position, 0 being the oldest message.
+     * @return the time in milliseconds since the epoch.
+     */
+    long getTime(int position) {
+        return mTimes[index(position)];
+    }
+
+    /**
+     * Returns a message.
+     *
+     * @param position
+     *            the position, 0 being the oldest message.
+     * @return the message.
+     */
+    String getMessage(int position) {
+        return mMessages[index(position)];
+    }
+
+    /**
+     * Moves every message to the end of another log and empties this one.
+     *
+     * @param log
+     *            the log to append to.
+     */
+    void drainTo(LogBuffer log) {
+
+        for (int i = 0; i < mSize; i++) {
+            int index = (mStart + i) % mMessages.length;
+            log.append(mTimes[index], mMessages[index]);
+            mMessages[index] = null;
+        }
+
+        mStart = 0;
+        mSize = 0;
+    }
+
+    /**
+     * Removes every message.
+     */
+    void clear() {
+
+        for (int i = 0; i < mMessages.length; i++) {
+            mMessages[i] = null;
+        }
+
+        mStart = 0;
+        mSize = 0;
+    }
+
+    private int index(int position) {
+
+        if (position < 0 || position >= mSize) {
+            throw new IndexOutOfBoundsException("Position " + position
+                    + ", size " + mSize);
+        }
+
+        return (mStart + position) % mMessages.length;
+    }
+}
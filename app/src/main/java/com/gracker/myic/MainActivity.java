@@ -1,430 +1,539 @@
 package com.gracker.myic;
 
-import java.io.ByteArrayOutputStream;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Arrays;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
 
 import android.app.Activity;
-import android.app.PendingIntent;
-import android.content.BroadcastReceiver;
+import android.app.AlertDialog;
+import android.content.ComponentName;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.hardware.usb.UsbDevice;
-import android.hardware.usb.UsbManager;
-import android.os.AsyncTask;
 import android.os.Bundle;
-import android.text.method.ScrollingMovementMethod;
+import android.os.IBinder;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.WindowManager;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.CheckBox;
+import android.widget.CompoundButton;
+import android.widget.CompoundButton.OnCheckedChangeListener;
+import android.widget.EditText;
 import android.widget.ImageView;
+import android.widget.ListView;
 import android.widget.Spinner;
-import android.widget.TextView;
 
 import com.acs.smartcard.Reader;
-import com.acs.smartcard.Reader.OnStateChangeListener;
+import com.gracker.mykad.Apdu;
+import com.gracker.mykad.ApduResponse;
+import com.gracker.mykad.CardCache;
+import com.gracker.mykad.Hex;
+import com.gracker.mykad.JpnField;
+import com.gracker.mykad.ReadIcParams;
+import com.gracker.mykad.ReadIcResult;
+import com.gracker.mykad.ReadStats;
+import com.gracker.mykad.ReaderSession;
+import com.gracker.mykad.TraceReader;
+import com.gracker.mykad.TraceReplayer;
 
 /**
  * A simple app to read Malaysian IC using ACS smart card readers.
  *
+ * The readers belong to {@link ReaderService}; the activity binds to it and
+ * only shows what it reports, so recreating the activity leaves the readers
+ * open.
+ *
  * @author Jeffrey Loh
  * @version 1.0, January 2020
  */
 public class MainActivity extends Activity {
 
-    private static final String ACTION_USB_PERMISSION = "com.android.example.USB_PERMISSION";
-
     private static final String[] stateStrings = { "Unknown", "Absent",
             "Present", "Swallowed", "Powered", "Negotiable", "Specific" };
 
-    private UsbManager mManager;
-    private Reader mReader;
-    private PendingIntent mPermissionIntent;
+    private ReaderService mService;
+    private ProgressivePhotoDecoder mPhotoDecoder;
+    private PhotoRenderer mPhotoRenderer;
+    private Bitmap mShownPhoto;
+
+    /** Most lines kept in the log. */
+    private static final int LOG_CAPACITY = 1000;
 
-    private static final int MAX_LINES = 25;
-    private TextView mResponseTextView;
+    /** Bitmaps kept for reuse besides the one shown. */
+    private static final int PHOTO_POOL_CAPACITY = 3;
+    private ListView mLogView;
+    private LogAdapter mLog;
     private Spinner mReaderSpinner;
     private ArrayAdapter<String> mReaderAdapter;
     private Button mListButton;
     private Button mOpenButton;
+    private Button mOpenAllButton;
     private Button mCloseButton;
     private Button mReadIcButton;
+    private Button mReadAllButton;
+    private Button mReadPhotoButton;
     private CheckBox mReadPhotoCheckBox;
     private CheckBox mDebugCheckBox;
+    private CheckBox mAutoReadCheckBox;
+    private CheckBox mTraceCheckBox;
+    private Button mReplayButton;
+    private Button mStatsButton;
+    private Button mClearCacheButton;
+    private EditText mIcEditText;
+    private Button mFindButton;
+    private Button mExportButton;
     private ImageView mImageViewPhoto;
 
-    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+    private final ServiceConnection mConnection = new ServiceConnection() {
 
-        public void onReceive(Context context, Intent intent) {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
 
-            String action = intent.getAction();
+            mService = ((ReaderService.LocalBinder) binder).getService();
 
-            if (ACTION_USB_PERMISSION.equals(action)) {
+            // Carry the options over to the running service
+            AutoReader autoReader = mService.getAutoReader();
+            autoReader.setReadPhoto(mReadPhotoCheckBox.isChecked());
+            autoReader.setEnabled(mAutoReadCheckBox.isChecked());
+            mService.setTraceEnabled(mTraceCheckBox.isChecked());
+            mService.setClient(mClient);
 
-                synchronized (this) {
+            fillReaderList();
+        }
 
-                    UsbDevice device = (UsbDevice) intent
-                            .getParcelableExtra(UsbManager.EXTRA_DEVICE);
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mService = null;
+        }
+    };
 
-                    if (intent.getBooleanExtra(
-                            UsbManager.EXTRA_PERMISSION_GRANTED, false)) {
+    private final ReaderSession.ExchangeListener mDebugListener = new ReaderSession.ExchangeListener() {
 
-                        if (device != null) {
+        @Override
+        public void onExchange(int slotNum, Apdu command, ApduResponse response, Exception e) {
 
-                            // Open reader
-                            logMsg("Opening reader: " + device.getDeviceName()
-                                    + "...");
-                            new OpenTask().execute(device);
-                        }
+            // Logged from the worker; the log publishes once per frame
+            if (e != null) {
+                logMsg(e.toString());
+            } else {
+                logMsg("ReadIc Command:");
+                logBuffer(command.getBytes(), command.getLength());
 
-                    } else {
+                logMsg("ReadIc Response:");
+                logBuffer(response.getBuffer(), response.getLength());
+            }
+        }
+    };
 
-                        logMsg("Permission denied for device "
-                                + device.getDeviceName());
+    private final ReaderService.Client mClient = new ReaderService.Client() {
 
-                        // Enable open button
-                        mOpenButton.setEnabled(true);
-                    }
-                }
+        @Override
+        public void onMessage(String msg) {
+            logMsg(msg);
+        }
 
-            } else if (UsbManager.ACTION_USB_DEVICE_DETACHED.equals(action)) {
+        @Override
+        public void onReaderAttached(final UsbDevice device) {
 
-                synchronized (this) {
+            runOnUiThread(new Runnable() {
 
-                    // Update reader list
-                    mReaderAdapter.clear();
-                    for (UsbDevice device : mManager.getDeviceList().values()) {
-                        if (mReader.isSupported(device)) {
-                            mReaderAdapter.add(device.getDeviceName());
-                        }
-                    }
+                @Override
+                public void run() {
+                    mReaderAdapter.add(device.getDeviceName());
+                }
+            });
+        }
+
+        @Override
+        public void onReaderDetached(final UsbDevice device) {
 
-                    UsbDevice device = (UsbDevice) intent
-                            .getParcelableExtra(UsbManager.EXTRA_DEVICE);
+            runOnUiThread(new Runnable() {
+
+                @Override
+                public void run() {
+                    mReaderAdapter.remove(device.getDeviceName());
+                    updateCloseButton();
+                }
+            });
+        }
 
-                    if (device != null && device.equals(mReader.getDevice())) {
+        @Override
+        public void onReaderOpenChanged(UsbDevice device, final boolean opened) {
 
-                        // Disable buttons
-                        mCloseButton.setEnabled(false);
-                        //mReadIcButton.setEnabled(false);
+            runOnUiThread(new Runnable() {
 
-                        // Close reader
-                        logMsg("Closing reader...");
-                        new CloseTask().execute();
+                @Override
+                public void run() {
+                    if (opened) {
+                        mReadIcButton.setEnabled(true);
+                    } else {
+                        mOpenButton.setEnabled(true);
                     }
+                    updateCloseButton();
                 }
-            }
+            });
         }
-    };
-
-    private class OpenTask extends AsyncTask<UsbDevice, Void, Exception> {
 
         @Override
-        protected Exception doInBackground(UsbDevice... params) {
+        public void onPermissionDenied() {
 
-            Exception result = null;
+            runOnUiThread(new Runnable() {
 
-            try {
+                @Override
+                public void run() {
+                    mOpenButton.setEnabled(true);
+                }
+            });
+        }
 
-                mReader.open(params[0]);
+        @Override
+        public void onStateChange(ReaderWorker worker, int slotNum, int prevState, int currState) {
 
-            } catch (Exception e) {
+            if (prevState < Reader.CARD_UNKNOWN
+                    || prevState > Reader.CARD_SPECIFIC) {
+                prevState = Reader.CARD_UNKNOWN;
+            }
 
-                result = e;
+            if (currState < Reader.CARD_UNKNOWN
+                    || currState > Reader.CARD_SPECIFIC) {
+                currState = Reader.CARD_UNKNOWN;
             }
 
-            return result;
+            // Create output string
+            final String outputString = worker.getName() + " slot " + slotNum + ": "
+                    + stateStrings[prevState] + " -> "
+                    + stateStrings[currState];
+
+            // Show output
+            runOnUiThread(new Runnable() {
+
+                @Override
+                public void run() {
+                    logMsg(outputString);
+                }
+            });
         }
 
         @Override
-        protected void onPostExecute(Exception result) {
-            if (result != null) {
-                logMsg(result.toString());
-            } else {
+        public void onReadIc(final ReaderWorker worker, final int slotNum, final ReadIcResult result) {
 
-                logMsg("Reader name: " + mReader.getReaderName());
+            showPhoto(result.photo);
 
-                int numSlots = mReader.getNumSlots();
-                logMsg("Number of slots: " + numSlots);
+            runOnUiThread(new Runnable() {
 
-                // Enable buttons
-                mCloseButton.setEnabled(true);
-                mReadIcButton.setEnabled(true);
-            }
+                @Override
+                public void run() {
+                    logMsg(worker.getName() + " slot " + slotNum + ":");
+                    logResult(result);
+                }
+            });
         }
-    }
-
-    private class CloseTask extends AsyncTask<Void, Void, Void> {
 
         @Override
-        protected Void doInBackground(Void... params) {
+        public void onAutoRead(final ReaderWorker worker, final int slotNum,
+                final ReadIcResult result, final long latencyNanos) {
 
-            mReader.close();
-            return null;
+            final ReaderService service = mService;
+            if (service == null) {
+                return;
+            }
+            final AutoReader autoReader = service.getAutoReader();
+
+            runOnUiThread(new Runnable() {
+
+                @Override
+                public void run() {
+                    logMsg(worker.getName() + " slot " + slotNum + ":");
+                    logResult(result);
+                    logMsg("Insertion to result: " + latencyNanos / 1000000
+                            + " ms (average " + autoReader.getAverageLatencyMillis()
+                            + " ms, max " + autoReader.getMaxLatencyMillis()
+                            + " ms over " + autoReader.getReadCount() + " reads)");
+                }
+            });
         }
 
         @Override
-        protected void onPostExecute(Void result) {
-            mOpenButton.setEnabled(true);
+        public void onPhotoData(byte[] photo, int length, boolean complete) {
+            mPhotoDecoder.onPhotoData(photo, length, complete);
         }
+    };
 
-    }
-
-    private class ReadIcResult {
-        public Exception e;
-
-        public String gmpc_name;
-        public String org_name;
-        public String ic;
-        public String gender;
-        public String name;
-        public String oldIc;
-        public String dob;
-        public String birthPlace;
-        public String issueDate;
-        public String citizenship;
-        public String race;
-        public String religion;
-        public String address1;
-        public String address2;
-        public String address3;
-        public String postcode;
-        public String city;
-        public String state;
-    }
+    /**
+     * Replays the newest trace file at full speed and logs the results.
+     */
+    private void replayLastTrace() {
+
+        File last = null;
+        File[] files = ReaderService.getTraceDir(this).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(".trace")
+                        && (last == null || file.lastModified() > last.lastModified())) {
+                    last = file;
+                }
+            }
+        }
 
-    private class ReadIcProgress {
-        public byte[] command;
-        public int commandLength;
-        public byte[] response;
-        public int responseLength;
-        public Exception e;
-    }
+        if (last == null) {
+            logMsg("No trace to replay");
+            return;
+        }
 
-    private class ReadIcParams {
-        public int slotNum;
-        public boolean readphoto;
-        public boolean debug;
-    }
+        final File file = last;
+        logMsg("Replaying " + file.getName() + "...");
 
-    private class ReadIcTask extends
-            AsyncTask<ReadIcParams, ReadIcProgress, ReadIcResult> {
+        new Thread(new Runnable() {
 
-        private String ConvertBCDDate(byte[] dataBytes, int offset)
-        {
-            int year = 0;
-            for (int b = offset; b < offset + 2; b++)
-                year = (year * 100) + ((dataBytes[b] >> 4) & 0xf) * 10 + (dataBytes[b] & 0xf);
-            int month = ((dataBytes[offset + 2] >> 4) & 0xf) * 10 + (dataBytes[offset + 2] & 0xf);
-            int day = ((dataBytes[offset+3] >> 4) & 0xf) * 10 + (dataBytes[offset+3] & 0xf);
+            @Override
+            public void run() {
 
-            return day + "-" + month + "-" + year;
-        }
+                try {
 
-        private String ConvertBCDPostcode(byte[] dataBytes, int offset)
-        {
-            int postcode = 0;
-            for (int b = offset; b < offset + 3; b++)
-                postcode = (postcode * 100) + ((dataBytes[b] >> 4) & 0xf) * 10 + (dataBytes[b] & 0xf);
-            return "" + (postcode / 10);
-        }
+                    TraceReplayer replayer = new TraceReplayer(TraceReader.read(file), false);
+                    long start = System.nanoTime();
+                    int count = replayer.run(new TraceReplayer.Listener() {
 
-        private byte[] sendApdu(int slotNum, String hexString, boolean debug){
-            byte[] command = null;
-            byte[] response = new byte[65536];
-            int responseLength = 0;
+                        @Override
+                        public void onReplay(int slotNum, ReadIcResult result, long elapsedNanos) {
+                            logResult(result);
+                            logMsg("Replayed slot " + slotNum + " in "
+                                    + elapsedNanos / 1000 + " us");
+                        }
+                    });
 
-            byte[] result = null;
+                    logMsg("Replayed " + count + " read(s) in "
+                            + (System.nanoTime() - start) / 1000000 + " ms");
+                    logMsg(replayer.getStats().summary());
 
-            ReadIcProgress progress = new ReadIcProgress();
+                } catch (IOException e) {
 
-            try {
-                command = toByteArray(hexString);
-                responseLength = mReader.transmit(slotNum,
-                        command, command.length, response,
-                        response.length);
-
-                progress.command = command;
-                progress.commandLength = command.length;
-                progress.response = response;
-                progress.responseLength = responseLength;
-                progress.e = null;
-
-                result = Arrays.copyOf(response, responseLength);
-            } catch (Exception e) {
-                progress.command = null;
-                progress.commandLength = 0;
-                progress.response = null;
-                progress.responseLength = 0;
-                progress.e = e;
+                    logMsg("Replay: " + e.toString());
+                }
             }
+        }, "Replay").start();
+    }
 
-            if (debug)
-                publishProgress(progress);
+    /**
+     * Shows the latency statistics, with buttons to export or reset them.
+     */
+    private void showStats() {
 
-            return result;
-        }
+        new AlertDialog.Builder(this)
+                .setTitle("Read statistics")
+                .setMessage(ReadStats.get().summary() + "\n" + cacheSummary())
+                .setPositiveButton("Export", new DialogInterface.OnClickListener() {
 
-        public byte[] getPic(int slotNum, boolean debug) {
-            byte[] byteArray;
-            int offset = 0x03;
-            int length = 0xff;
-            int max    = 4000;
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        exportStats();
+                    }
+                })
+                .setNeutralButton("Reset", new DialogInterface.OnClickListener() {
 
-            ByteArrayOutputStream output = new ByteArrayOutputStream();
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        ReadStats.get().reset();
+                        logMsg("Statistics reset");
+                    }
+                })
+                .setNegativeButton("Close", null)
+                .show();
+    }
 
-            boolean go = true;
-            while (true) {
-                String tmp = Integer.toHexString(offset);
+    private String cacheSummary() {
+        CardCache cache = mService.getReaderPool().getCardCache();
+        return "Cache: " + cache.size() + " cards, " + cache.getHitCount() + " hits, "
+                + cache.getMissCount() + " misses ("
+                + Math.round(cache.getHitRate() * 100) + "%)\n";
+    }
 
-                String tmpOffset = null;
+    /**
+     * Logs the journaled reads of an IC number.
+     *
+     * @param ic
+     *            the IC number.
+     */
+    private void findInJournal(final String ic) {
 
-                if (tmp.length() == 1) {
-                    tmpOffset = "0" + tmp + " 00";
-                } else {
-                    tmpOffset = tmp.substring(1,3) + " 0" + tmp.substring(0,1);
-                }
+        final ReadJournal journal = mService.getJournal();
 
-                try {
-                    sendApdu(slotNum, "C8 32 00 00 05 08 00 00 FF 00", debug);
-                    sendApdu(slotNum, "CC 00 00 00 08 02 00 01 00 " + tmpOffset + " FF 00", debug);
-                    byte[] tempArray = sendApdu(slotNum, "CC 06 00 00 FF", debug);
+        new Thread(new Runnable() {
 
-                    output.write(tempArray, 0, tempArray.length - 2); // get rid of 0x90, 0x00 at the end of array
-                } catch (Exception e) {
-                    return null;
+            @Override
+            public void run() {
+
+                List<ReadJournal.Entry> entries = journal.find(ic);
+                logMsg(entries.size() + " read(s) of " + ic);
+
+                for (ReadJournal.Entry entry : entries) {
+                    try {
+                        ReadIcResult result = journal.load(entry);
+                        logMsg(new Date(entry.time) + ": " + result.getName()
+                                + ((result.photo != null) ? " (photo)" : ""));
+                    } catch (IOException e) {
+                        logMsg("Journal: " + e.toString());
+                    }
                 }
-
-                if ((offset + length) > max)
-                    break;
-
-                offset += length;
             }
+        }, "Journal find").start();
+    }
 
-            byteArray = output.toByteArray();
-            return byteArray;
-        }
+    /**
+     * Writes the latency statistics to a new CSV file.
+     */
+    private void exportStats() {
 
-        @Override
-        protected ReadIcResult doInBackground(ReadIcParams... params) {
+        File dir = new File(getExternalFilesDir(null), "stats");
+        dir.mkdirs();
+        File file = new File(dir, "stats-" + System.currentTimeMillis() + ".csv");
 
-            ReadIcResult result = new ReadIcResult();
+        try {
 
+            Writer writer = new FileWriter(file);
             try {
-                byte[] atr = mReader.power(params[0].slotNum, 1); // 1 Cold Reset 2 Warm Reset
-            } catch (Exception e) {
-                result.e = e;
-                return result;
+                ReadStats.get().writeCsv(writer);
+            } finally {
+                writer.close();
             }
+            logMsg("Statistics exported to " + file.getPath());
 
-            sendApdu(params[0].slotNum, "00 A4 04 00 0A A0 00 00 00 74 4A 50 4E 00 10", params[0].debug);
-            sendApdu(params[0].slotNum, "00 C0 00 00 05", params[0].debug);
+        } catch (IOException e) {
 
-            sendApdu(params[0].slotNum, "C8 32 00 00 05 08 00 00 E6 00", params[0].debug);
-            sendApdu(params[0].slotNum, "CC 00 00 00 08 01 00 01 00 03 00 E6 00", params[0].debug);
-            byte[] jpn1_0 = sendApdu(params[0].slotNum, "CC 06 00 00 E6", params[0].debug);
+            logMsg("Export: " + e.toString());
+        }
+    }
 
-            if (jpn1_0.length >= 0xE0) {
-                result.org_name = new String(jpn1_0, 0, 150).trim();
-                result.gmpc_name = new String(jpn1_0, 150, 30+30+20).trim();
-            }
+    /**
+     * Reads the card in the reader selected in the spinner, from the slot
+     * the reader pool last saw a card inserted in.
+     *
+     * @param rparams
+     *            what to read. The slot number is set here.
+     */
+    private void readIc(ReadIcParams rparams) {
 
-            sendApdu(params[0].slotNum, "C8 32 00 00 05 08 00 00 A0 00", params[0].debug);
-            sendApdu(params[0].slotNum, "CC 00 00 00 08 01 00 01 00 E9 00 A0 00", params[0].debug);
-            byte[] jpn1_1 = sendApdu(params[0].slotNum, "CC 06 00 00 A0", params[0].debug);
-
-            if (jpn1_1.length >= 0xA0) {
-                result.name = new String(jpn1_1, 0, 40).trim();
-                result.ic = new String(jpn1_1, 40, 13).trim();
-                result.gender = new String(jpn1_1, 40 + 13, 1);
-                result.oldIc = new String(jpn1_1, 40 + 13 + 1, 8);
-                result.dob = ConvertBCDDate(jpn1_1, 40 + 13 + 1 + 8);
-                result.birthPlace = new String(jpn1_1, 66, 25);
-                result.issueDate = ConvertBCDDate(jpn1_1, 66 + 25);
-                result.citizenship = new String(jpn1_1, 95, 18).trim();
-                result.race = new String(jpn1_1, 113, 25).trim();
-                result.religion = new String(jpn1_1, 138, 11).trim();
-            }
+        final ReaderWorker worker = getSelectedWorker();
+        if (worker == null) {
+            logMsg("Reader is not opened");
+            return;
+        }
 
-            sendApdu(params[0].slotNum, "C8 32 00 00 05 08 00 00 94 00", params[0].debug);
-            sendApdu(params[0].slotNum, "CC 00 00 00 08 04 00 01 00 03 00 94 00", params[0].debug);
-            byte[] jpn1_4 = sendApdu(params[0].slotNum, "CC 06 00 00 94", params[0].debug);
-
-            if (jpn1_4.length >= 0x94) {
-                result.address1 = new String(jpn1_4, 0, 30).trim();
-                result.address2 = new String(jpn1_4, 30, 30).trim();
-                result.address3 = new String(jpn1_4, 60, 30).trim();
-                result.postcode = ConvertBCDPostcode(jpn1_4, 90);
-                result.city = new String(jpn1_4, 90 + 3, 25 ).trim();
-                result.state = new String(jpn1_4, 90 + 3 + 25, 30 ).trim();
-            }
+        rparams.slotNum = worker.getCardSlot();
 
-            if (params[0].readphoto) {
-                try {
-                    byte[] byteArray = getPic(params[0].slotNum, params[0].debug);
-                    final Bitmap bmp = BitmapFactory.decodeByteArray(byteArray, 0, byteArray.length);
+        final boolean debug = mDebugCheckBox.isChecked();
+        rparams.photoListener = mPhotoDecoder;
+        worker.read(rparams, debug ? mDebugListener : null,
+                new ReaderWorker.Callback<ReadIcResult>() {
 
-                    runOnUiThread(new Runnable() {
+            @Override
+            public void onComplete(final ReadIcResult result) {
 
-                        @Override
-                        public void run() {
-                            mImageViewPhoto.setImageBitmap(Bitmap.createScaledBitmap(bmp, mImageViewPhoto.getWidth(),
-                                    mImageViewPhoto.getHeight(), false));
+                runOnUiThread(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        logResult(result);
+                        if (debug) {
+                            logProtocolStats(worker.getSession());
                         }
-                    });
-                } catch (Exception e) { }
+                    }
+                });
             }
-            return result;
-        }
+        });
+    }
 
-        @Override
-        protected void onPostExecute(ReadIcResult result) {
-            logMsg("-------------------------------------------------");
-            if (result.e != null) {
-                logMsg("Exception: " + result.e.toString() + " " + result.e.getMessage());
-            } else {
-                logMsg("Org Name = " + result.org_name);
-                logMsg("GMPC Name = " + result.gmpc_name);
-                logMsg("Name = " + result.name);
-                logMsg("IC = " + result.ic);
-                logMsg("Gender = " + result.gender);
-                logMsg("Old IC = " + result.oldIc);
-                logMsg("DOB = " + result.dob);
-                logMsg("Birth Place = " + result.birthPlace);
-                logMsg("Issue Date = " + result.issueDate);
-                logMsg("Citizenship = " + result.citizenship);
-                logMsg("Race = " + result.race);
-                logMsg("Religion = " + result.religion);
-
-                logMsg("Address1 = " + result.address1);
-                logMsg("Address2 = " + result.address2);
-                logMsg("Address3 = " + result.address3);
-                logMsg("Postcode = " + result.postcode);
-                logMsg("City = " + result.city);
-                logMsg("State = " + result.state);
-           }
-        }
+    /**
+     * Decodes the photo and shows it. Called on a worker thread.
+     *
+     * @param photo
+     *            the JPEG image, or null.
+     */
+    private void showPhoto(byte[] photo) {
+        mPhotoDecoder.decode(photo);
+    }
+
+    private final ProgressivePhotoDecoder.Listener mPhotoListener = new ProgressivePhotoDecoder.Listener() {
 
         @Override
-        protected void onProgressUpdate(ReadIcProgress... progress) {
-            if (progress[0].e != null) {
-                logMsg(progress[0].e.toString());
-            } else {
-                logMsg("ReadIc Command:");
-                logBuffer(progress[0].command, progress[0].commandLength);
+        public void onPhotoDecoded(final Bitmap bmp, boolean complete) {
 
-                logMsg("ReadIc Response:");
-                logBuffer(progress[0].response, progress[0].responseLength);
-            }
+            runOnUiThread(new Runnable() {
+
+                @Override
+                public void run() {
+                    // The view scales the photo; the one it replaces is reused
+                    mImageViewPhoto.setImageBitmap(bmp);
+                    mPhotoRenderer.recycle(mShownPhoto);
+                    mShownPhoto = bmp;
+                }
+            });
         }
+    };
+
+    /**
+     * Logs the result of a read.
+     *
+     * @param result
+     *            the result.
+     */
+    private void logResult(ReadIcResult result) {
+        logMsg("-------------------------------------------------");
+        if (result.e != null) {
+            logMsg("Exception: " + result.e.toString() + " " + result.e.getMessage());
+        } else {
+            logMsg("Org Name = " + result.getOrgName());
+            logMsg("GMPC Name = " + result.getGmpcName());
+            logMsg("Name = " + result.getName());
+            logMsg("IC = " + result.getIc());
+            logMsg("Gender = " + result.getGender());
+            logMsg("Old IC = " + result.getOldIc());
+            logMsg("DOB = " + result.getDob());
+            logMsg("Birth Place = " + result.getBirthPlace());
+            logMsg("Issue Date = " + result.getIssueDate());
+            logMsg("Citizenship = " + result.getCitizenship());
+            logMsg("Race = " + result.getRace());
+            logMsg("Religion = " + result.getReligion());
+
+            logMsg("Address1 = " + result.getAddress1());
+            logMsg("Address2 = " + result.getAddress2());
+            logMsg("Address3 = " + result.getAddress3());
+            logMsg("Postcode = " + result.getPostcode());
+            logMsg("City = " + result.getCity());
+            logMsg("State = " + result.getState());
+
+            for (Map.Entry<JpnField, Exception> error : result.fieldErrors.entrySet()) {
+                logMsg("Not read: " + error.getKey() + " (" + error.getValue().getMessage() + ")");
+            }
+            if (result.photoError != null) {
+                logMsg("Photo not read: " + result.photoError.getMessage());
+            }
+       }
+    }
+
+    /**
+     * Logs the exchange count and mean round-trip time of each protocol.
+     *
+     * @param session
+     *            the reader session.
+     */
+    private void logProtocolStats(ReaderSession session) {
+        logMsg("T=0: " + session.getExchangeCount(Reader.PROTOCOL_T0)
+                + " exchanges, " + session.getAverageExchangeMicros(Reader.PROTOCOL_T0)
+                + " us average");
+        logMsg("T=1: " + session.getExchangeCount(Reader.PROTOCOL_T1)
+                + " exchanges, " + session.getAverageExchangeMicros(Reader.PROTOCOL_T1)
+                + " us average");
     }
 
     /** Called when the activity is first created. */
@@ -434,64 +543,18 @@ public class MainActivity extends Activity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
-        // Get USB manager
-        mManager = (UsbManager) getSystemService(Context.USB_SERVICE);
-
-        // Initialize reader
-        mReader = new Reader(mManager);
-        mReader.setOnStateChangeListener(new OnStateChangeListener() {
-
-            @Override
-            public void onStateChange(int slotNum, int prevState, int currState) {
-
-                if (prevState < Reader.CARD_UNKNOWN
-                        || prevState > Reader.CARD_SPECIFIC) {
-                    prevState = Reader.CARD_UNKNOWN;
-                }
-
-                if (currState < Reader.CARD_UNKNOWN
-                        || currState > Reader.CARD_SPECIFIC) {
-                    currState = Reader.CARD_UNKNOWN;
-                }
-
-                // Create output string
-                final String outputString = "Slot " + slotNum + ": "
-                        + stateStrings[prevState] + " -> "
-                        + stateStrings[currState];
-
-                // Show output
-                runOnUiThread(new Runnable() {
-
-                    @Override
-                    public void run() {
-                        logMsg(outputString);
-                    }
-                });
-            }
-        });
-
-        // Register receiver for USB permission
-        mPermissionIntent = PendingIntent.getBroadcast(this, 0, new Intent(
-                ACTION_USB_PERMISSION), 0);
-        IntentFilter filter = new IntentFilter();
-        filter.addAction(ACTION_USB_PERMISSION);
-        filter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
-        registerReceiver(mReceiver, filter);
+        // Initialize photo decoder
+        mPhotoRenderer = new PhotoRenderer(new BitmapPool(PHOTO_POOL_CAPACITY));
+        mPhotoDecoder = new ProgressivePhotoDecoder(mPhotoRenderer, mPhotoListener);
 
         // Initialize response text view
-        mResponseTextView = (TextView) findViewById(R.id.main_text_view_response);
-        mResponseTextView.setMovementMethod(new ScrollingMovementMethod());
-        mResponseTextView.setMaxLines(MAX_LINES);
-        mResponseTextView.setText("");
+        mLog = new LogAdapter(this, LOG_CAPACITY);
+        mLogView = (ListView) findViewById(R.id.main_list_view_log);
+        mLogView.setAdapter(mLog);
 
         // Initialize reader spinner
         mReaderAdapter = new ArrayAdapter<String>(this,
                 android.R.layout.simple_spinner_item);
-        for (UsbDevice device : mManager.getDeviceList().values()) {
-            if (mReader.isSupported(device)) {
-                mReaderAdapter.add(device.getDeviceName());
-            }
-        }
         mReaderSpinner = (Spinner) findViewById(R.id.main_spinner_reader);
         mReaderSpinner.setAdapter(mReaderAdapter);
 
@@ -501,12 +564,9 @@ public class MainActivity extends Activity {
 
             @Override
             public void onClick(View v) {
-
-                mReaderAdapter.clear();
-                for (UsbDevice device : mManager.getDeviceList().values()) {
-                    if (mReader.isSupported(device)) {
-                        mReaderAdapter.add(device.getDeviceName());
-                    }
+                // The registry follows attach and detach, no scan needed
+                if (isConnected()) {
+                    fillReaderList();
                 }
             }
         });
@@ -518,30 +578,17 @@ public class MainActivity extends Activity {
             @Override
             public void onClick(View v) {
 
-                boolean requested = false;
+                if (!isConnected()) {
+                    return;
+                }
 
                 // Disable open button
                 mOpenButton.setEnabled(false);
 
+                // Request permission
                 String deviceName = (String) mReaderSpinner.getSelectedItem();
-
-                if (deviceName != null) {
-
-                    // For each device
-                    for (UsbDevice device : mManager.getDeviceList().values()) {
-
-                        // If device name is found
-                        if (deviceName.equals(device.getDeviceName())) {
-
-                            // Request permission
-                            mManager.requestPermission(device,
-                                    mPermissionIntent);
-
-                            requested = true;
-                            break;
-                        }
-                    }
-                }
+                boolean requested = deviceName != null
+                        && mService.requestPermission(deviceName);
 
                 if (!requested) {
 
@@ -551,19 +598,39 @@ public class MainActivity extends Activity {
             }
         });
 
+        // Initialize open all button
+        mOpenAllButton = (Button) findViewById(R.id.main_button_open_all);
+        mOpenAllButton.setOnClickListener(new OnClickListener() {
+
+            @Override
+            public void onClick(View v) {
+
+                // Request permission for every reader not opened yet
+                if (isConnected()) {
+                    mService.openAll();
+                }
+            }
+        });
+
         // Initialize close button
         mCloseButton = (Button) findViewById(R.id.main_button_close);
         mCloseButton.setOnClickListener(new OnClickListener() {
 
             @Override
             public void onClick(View v) {
+
+                ReaderWorker worker = getSelectedWorker();
+                if (worker == null) {
+                    return;
+                }
+
                 // Disable buttons
                 mCloseButton.setEnabled(false);
                 //mReadIcButton.setEnabled(false);
 
                 // Close reader
                 logMsg("Closing reader...");
-                new CloseTask().execute();
+                mService.closeReader(worker);
             }
         });
 
@@ -574,20 +641,158 @@ public class MainActivity extends Activity {
 
             @Override
             public void onClick(View v) {
-                // Get slot number
-                int slotNum = 0;
 
                 ReadIcParams rparams = new ReadIcParams();
-                rparams.slotNum = slotNum;
-                rparams.debug = mDebugCheckBox.isChecked();
+                rparams.fields = EnumSet.allOf(JpnField.class);
                 rparams.readphoto = mReadPhotoCheckBox.isChecked();
-                new ReadIcTask().execute(rparams);
+                readIc(rparams);
+            }
+        });
+
+        // Initialize read photo button
+        mReadPhotoButton = (Button) findViewById(R.id.main_button_readphoto);
+        mReadPhotoButton.setOnClickListener(new OnClickListener() {
+
+            @Override
+            public void onClick(View v) {
+
+                // Photo only, reusing the card session of the last read
+                ReadIcParams rparams = new ReadIcParams();
+                rparams.fields = EnumSet.noneOf(JpnField.class);
+                rparams.readphoto = true;
+                readIc(rparams);
+            }
+        });
+
+        // Initialize read all button
+        mReadAllButton = (Button) findViewById(R.id.main_button_read_all);
+        mReadAllButton.setOnClickListener(new OnClickListener() {
+
+            @Override
+            public void onClick(View v) {
+
+                if (!isConnected()) {
+                    return;
+                }
+
+                mService.getReaderPool().readAll(EnumSet.allOf(JpnField.class),
+                        mReadPhotoCheckBox.isChecked(), new ReaderWorker.Callback<Integer>() {
+
+                            @Override
+                            public void onComplete(Integer count) {
+                                logMsg("Reading cards on " + count + " reader(s)...");
+                            }
+                        });
             }
         });
 
         mReadPhotoCheckBox = (CheckBox) findViewById(R.id.checkBoxReadPhoto);
+        mReadPhotoCheckBox.setOnCheckedChangeListener(new OnCheckedChangeListener() {
+
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                if (mService != null) {
+                    mService.getAutoReader().setReadPhoto(isChecked);
+                }
+            }
+        });
+
         mDebugCheckBox = (CheckBox) findViewById(R.id.checkBoxDebug);
+
+        // Initialize auto read check box
+        mAutoReadCheckBox = (CheckBox) findViewById(R.id.checkBoxAutoRead);
+        mAutoReadCheckBox.setOnCheckedChangeListener(new OnCheckedChangeListener() {
+
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                if (mService != null) {
+                    mService.getAutoReader().setEnabled(isChecked);
+                }
+            }
+        });
+
+        // Initialize trace check box
+        mTraceCheckBox = (CheckBox) findViewById(R.id.checkBoxTrace);
+        mTraceCheckBox.setOnCheckedChangeListener(new OnCheckedChangeListener() {
+
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                if (mService != null) {
+                    mService.setTraceEnabled(isChecked);
+                }
+            }
+        });
+
+        // Initialize replay button
+        mReplayButton = (Button) findViewById(R.id.main_button_replay);
+        mReplayButton.setOnClickListener(new OnClickListener() {
+
+            @Override
+            public void onClick(View v) {
+                replayLastTrace();
+            }
+        });
+
+        // Initialize stats button
+        mStatsButton = (Button) findViewById(R.id.main_button_stats);
+        mStatsButton.setOnClickListener(new OnClickListener() {
+
+            @Override
+            public void onClick(View v) {
+                if (isConnected()) {
+                    showStats();
+                }
+            }
+        });
+
+        // Initialize clear cache button
+        mClearCacheButton = (Button) findViewById(R.id.main_button_clear_cache);
+        mClearCacheButton.setOnClickListener(new OnClickListener() {
+
+            @Override
+            public void onClick(View v) {
+                if (isConnected()) {
+                    mService.getReaderPool().getCardCache().clear();
+                    logMsg("Card cache cleared");
+                }
+            }
+        });
+
+        // Initialize journal search
+        mIcEditText = (EditText) findViewById(R.id.main_edit_ic);
+        mFindButton = (Button) findViewById(R.id.main_button_find);
+        mFindButton.setOnClickListener(new OnClickListener() {
+
+            @Override
+            public void onClick(View v) {
+                if (isConnected()) {
+                    findInJournal(mIcEditText.getText().toString().trim());
+                }
+            }
+        });
+
+        // Initialize export button
+        mExportButton = (Button) findViewById(R.id.main_button_export);
+        mExportButton.setOnClickListener(new OnClickListener() {
+
+            @Override
+            public void onClick(View v) {
+                if (isConnected()) {
+                    mService.exportJournal();
+                }
+            }
+        });
         mImageViewPhoto = (ImageView) findViewById((R.id.imageView));
+        mImageViewPhoto.addOnLayoutChangeListener(new View.OnLayoutChangeListener() {
+
+            @Override
+            public void onLayoutChange(View v, int left, int top, int right, int bottom,
+                    int oldLeft, int oldTop, int oldRight, int oldBottom) {
+
+                // Decode photos at the size of the view
+                mPhotoRenderer.setTargetSize(right - left, bottom - top);
+            }
+        });
 
         // Disable buttons
         mCloseButton.setEnabled(false);
@@ -596,177 +801,108 @@ public class MainActivity extends Activity {
         // Hide input window
         getWindow().setSoftInputMode(
                 WindowManager.LayoutParams.SOFT_INPUT_STATE_ALWAYS_HIDDEN);
+
+        // Attach to the readers, starting them if this is the first launch
+        ReaderService.start(this);
+        bindService(new Intent(this, ReaderService.class), mConnection,
+                Context.BIND_AUTO_CREATE);
     }
 
     @Override
     protected void onDestroy() {
 
-        // Close reader
-        mReader.close();
+        // Detach from the readers; they stay open unless the user is leaving
+        if (mService != null) {
+            mService.setClient(null);
+            mService = null;
+        }
+        unbindService(mConnection);
+        if (isFinishing()) {
+            stopService(new Intent(this, ReaderService.class));
+        }
 
-        // Unregister receiver
-        unregisterReceiver(mReceiver);
+        mPhotoDecoder.shutdown();
 
         super.onDestroy();
     }
 
     /**
-     * Logs the message.
-     *
-     * @param msg
-     *            the message.
+     * Fills the reader spinner from the registry of the service. Later
+     * changes arrive one reader at a time.
      */
-    private void logMsg(String msg) {
-
-        DateFormat dateFormat = new SimpleDateFormat("[dd-MM-yyyy HH:mm:ss]: ");
-        Date date = new Date();
-        String oldMsg = mResponseTextView.getText().toString();
+    private void fillReaderList() {
 
-        mResponseTextView
-                .setText(oldMsg + "\n" + dateFormat.format(date) + msg);
-
-        if (mResponseTextView.getLineCount() > MAX_LINES) {
-            mResponseTextView.scrollTo(0,
-                    (mResponseTextView.getLineCount() - MAX_LINES)
-                            * mResponseTextView.getLineHeight());
+        mReaderAdapter.clear();
+        for (UsbDevice device : mService.getRegistry().getDevices()) {
+            mReaderAdapter.add(device.getDeviceName());
         }
+
+        updateCloseButton();
     }
 
     /**
-     * Logs the contents of buffer.
-     *
-     * @param buffer
-     *            the buffer.
-     * @param bufferLength
-     *            the buffer length.
+     * Enables the close button if the selected reader is open.
      */
-    private void logBuffer(byte[] buffer, int bufferLength) {
-
-        String bufferString = "";
+    private void updateCloseButton() {
 
-        for (int i = 0; i < bufferLength; i++) {
-
-            String hexChar = Integer.toHexString(buffer[i] & 0xFF);
-            if (hexChar.length() == 1) {
-                hexChar = "0" + hexChar;
-            }
-
-            if (i % 16 == 0) {
-
-                if (bufferString != "") {
-
-                    logMsg(bufferString);
-                    bufferString = "";
-                }
-            }
-
-            bufferString += hexChar.toUpperCase() + " ";
-        }
-
-        if (bufferString != "") {
-            logMsg(bufferString);
-        }
+        String deviceName = (String) mReaderSpinner.getSelectedItem();
+        mCloseButton.setEnabled(deviceName != null && mService != null
+                && mService.getRegistry().isOpened(deviceName));
     }
 
     /**
-     * Converts the HEX string to byte array.
+     * Returns true if the activity is bound to the service, logging a
+     * message otherwise.
      *
-     * @param hexString
-     *            the HEX string.
-     * @return the byte array.
+     * @return true if connected.
      */
-    private byte[] toByteArray(String hexString) {
-
-        int hexStringLength = hexString.length();
-        byte[] byteArray = null;
-        int count = 0;
-        char c;
-        int i;
+    private boolean isConnected() {
 
-        // Count number of hex characters
-        for (i = 0; i < hexStringLength; i++) {
-
-            c = hexString.charAt(i);
-            if (c >= '0' && c <= '9' || c >= 'A' && c <= 'F' || c >= 'a'
-                    && c <= 'f') {
-                count++;
-            }
+        if (mService == null) {
+            logMsg("Reader service is not connected");
+            return false;
         }
 
-        byteArray = new byte[(count + 1) / 2];
-        boolean first = true;
-        int len = 0;
-        int value;
-        for (i = 0; i < hexStringLength; i++) {
-
-            c = hexString.charAt(i);
-            if (c >= '0' && c <= '9') {
-                value = c - '0';
-            } else if (c >= 'A' && c <= 'F') {
-                value = c - 'A' + 10;
-            } else if (c >= 'a' && c <= 'f') {
-                value = c - 'a' + 10;
-            } else {
-                value = -1;
-            }
-
-            if (value >= 0) {
-
-                if (first) {
-
-                    byteArray[len] = (byte) (value << 4);
-
-                } else {
+        return true;
+    }
 
-                    byteArray[len] |= value;
-                    len++;
-                }
+    /**
+     * Returns the worker of the reader selected in the spinner.
+     *
+     * @return the worker, or null if no reader is selected.
+     */
+    private ReaderWorker getSelectedWorker() {
 
-                first = !first;
-            }
+        String deviceName = (String) mReaderSpinner.getSelectedItem();
+        if (deviceName == null || mService == null) {
+            return null;
         }
 
-        return byteArray;
+        return mService.getReaderPool().get(deviceName);
     }
 
     /**
-     * Converts the integer to HEX string.
+     * Logs the message. It can be called from any thread.
      *
-     * @param i
-     *            the integer.
-     * @return the HEX string.
+     * @param msg
+     *            the message.
      */
-    private String toHexString(int i) {
-
-        String hexString = Integer.toHexString(i);
-        if (hexString.length() % 2 != 0) {
-            hexString = "0" + hexString;
-        }
-
-        return hexString.toUpperCase();
+    private void logMsg(String msg) {
+        mLog.append(msg);
     }
 
     /**
-     * Converts the byte array to HEX string.
+     * Logs the contents of buffer.
      *
      * @param buffer
      *            the buffer.
-     * @return the HEX string.
+     * @param bufferLength
+     *            the buffer length.
      */
-    private String toHexString(byte[] buffer) {
-
-        String bufferString = "";
-
-        for (int i = 0; i < buffer.length; i++) {
-
-            String hexChar = Integer.toHexString(buffer[i] & 0xFF);
-            if (hexChar.length() == 1) {
-                hexChar = "0" + hexChar;
-            }
+    private void logBuffer(byte[] buffer, int bufferLength) {
 
-            bufferString += hexChar.toUpperCase() + " ";
+        for (int i = 0; i < bufferLength; i += 16) {
+            logMsg(Hex.toHexString(buffer, i, Math.min(16, bufferLength - i)));
         }
-
-        return bufferString;
     }
 }
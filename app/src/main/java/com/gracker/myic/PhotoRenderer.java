@@ -0,0 +1,131 @@
+package com.gracker.myic;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.gracker.mykad.ReadStats;
+
+/**
+ * Decodes a JPEG photo at the size it is shown.
+ *
+ * The image bounds are probed first and the photo is subsampled to the
+ * smallest power of two that still covers the target size, so no
+ * full-size bitmap and no scaled copy are made. The pixels go into a bitmap
+ * from the pool when one fits. The view scales the result when drawing.
+ *
+ * @author Jeffrey Loh
+ * @version 1.0, January 2020
+ */
+final class PhotoRenderer {
+
+    private final BitmapPool mPool;
+    private volatile int mTargetWidth;
+    private volatile int mTargetHeight;
+
+    /**
+     * Creates a renderer.
+     *
+     * @param pool
+     *            the pool of reusable bitmaps.
+     */
+    PhotoRenderer(BitmapPool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * Sets the size the photo is shown at.
+     *
+     * @param width
+     *            the width, or 0 for the image width.
+     * @param height
+     *            the height, or 0 for the image height.
+     */
+    void setTargetSize(int width, int height) {
+        mTargetWidth = width;
+        mTargetHeight = height;
+    }
+
+    /**
+     * Decodes a photo.
+     *
+     * @param jpeg
+     *            the JPEG image.
+     * @param length
+     *            the length of the image.
+     * @param minSampleSize
+     *            the smallest subsampling, 1 for the target size.
+     * @return the bitmap, or null if the data cannot be decoded.
+     */
+    Bitmap render(byte[] jpeg, int length, int minSampleSize) {
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(jpeg, 0, length, options);
+
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        int sampleSize = sampleSize(options.outWidth, options.outHeight) * minSampleSize;
+        int width = (options.outWidth + sampleSize - 1) / sampleSize;
+        int height = (options.outHeight + sampleSize - 1) / sampleSize;
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inMutable = true;
+        options.inBitmap = mPool.get(width, height);
+
+        long start = System.nanoTime();
+        Bitmap bitmap;
+
+        try {
+
+            bitmap = BitmapFactory.decodeByteArray(jpeg, 0, length, options);
+
+        } catch (IllegalArgumentException e) {
+
+            // The pooled bitmap cannot hold the image
+            mPool.put(options.inBitmap);
+            options.inBitmap = null;
+            bitmap = BitmapFactory.decodeByteArray(jpeg, 0, length, options);
+        }
+
+        ReadStats stats = ReadStats.get();
+        stats.record(ReadStats.Phase.PHOTO_DECODE, System.nanoTime() - start);
+        if (bitmap == null) {
+            // The pooled bitmap was not used, so it goes back
+            mPool.put(options.inBitmap);
+            stats.error(ReadStats.Phase.PHOTO_DECODE);
+        }
+
+        return bitmap;
+    }
+
+    /**
+     * Returns a bitmap that is no longer shown to the pool.
+     *
+     * @param bitmap
+     *            the bitmap, or null.
+     */
+    void recycle(Bitmap bitmap) {
+        mPool.put(bitmap);
+    }
+
+    private int sampleSize(int width, int height) {
+
+        int targetWidth = mTargetWidth;
+        int targetHeight = mTargetHeight;
+        int sampleSize = 1;
+
+        if (targetWidth <= 0 || targetHeight <= 0) {
+            return sampleSize;
+        }
+
+        while (width / (sampleSize * 2) >= targetWidth
+                && height / (sampleSize * 2) >= targetHeight) {
+            sampleSize *= 2;
+        }
+
+        return sampleSize;
+    }
+}
@@ -0,0 +1,171 @@
+package com.gracker.myic;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import android.graphics.Bitmap;
+
+import com.gracker.mykad.JpnCommands;
+import com.gracker.mykad.PhotoTransfer;
+
+/**
+ * Decodes the photo on its own thread while the transfer goes on.
+ *
+ * Every partial image handed over by the transfer replaces the one waiting
+ * to be decoded, so a slow decode never holds up the reader and only the
+ * newest data is decoded. Partial images are decoded at a reduced size as a
+ * preview; the missing rows are left blank by the decoder. The complete
+ * image is always decoded last. Decoding goes through a
+ * {@link PhotoRenderer}, so images come out at the size they are shown.
+ *
+ * @author Jeffrey Loh
+ * @version 1.0, January 2020
+ */
+final class ProgressivePhotoDecoder implements PhotoTransfer.Listener {
+
+    /** Sample size of the preview decoded from a partial image. */
+    static final int PREVIEW_SAMPLE_SIZE = 2;
+
+    /**
+     * Interface definition for a callback to be invoked when an image has
+     * been decoded. It runs on the decoder thread.
+     */
+    interface Listener {
+
+        /**
+         * Called when an image has been decoded.
+         *
+         * @param bitmap
+         *            the image.
+         * @param complete
+         *            true if it is the complete image, false for a preview.
+         */
+        void onPhotoDecoded(Bitmap bitmap, boolean complete);
+    }
+
+    private final PhotoRenderer mRenderer;
+    private final Listener mListener;
+    private final ExecutorService mExecutor;
+
+    private byte[] mPending = new byte[JpnCommands.PHOTO_MAX + JpnCommands.MAX_CHUNK];
+    private byte[] mDecoding = new byte[JpnCommands.PHOTO_MAX + JpnCommands.MAX_CHUNK];
+    private int mPendingLength = -1;
+    private boolean mPendingComplete;
+    private boolean mScheduled;
+
+    private final Runnable mDecode = new Runnable() {
+
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * Creates a decoder.
+     *
+     * @param renderer
+     *            the renderer.
+     * @param listener
+     *            the listener.
+     */
+    ProgressivePhotoDecoder(PhotoRenderer renderer, Listener listener) {
+
+        mRenderer = renderer;
+        mListener = listener;
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "PhotoDecoder");
+            }
+        });
+    }
+
+    @Override
+    public void onPhotoData(byte[] photo, int length, boolean complete) {
+
+        synchronized (this) {
+
+            if (mPending.length < length) {
+                mPending = new byte[length];
+            }
+
+            System.arraycopy(photo, 0, mPending, 0, length);
+            mPendingLength = length;
+            mPendingComplete = complete;
+
+            if (mScheduled) {
+                return;
+            }
+            mScheduled = true;
+        }
+
+        try {
+            mExecutor.execute(mDecode);
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                mScheduled = false;
+            }
+        }
+    }
+
+    /**
+     * Decodes a complete image, for example a photo read without a listener.
+     *
+     * @param photo
+     *            the JPEG image, or null.
+     */
+    void decode(byte[] photo) {
+        if (photo != null) {
+            onPhotoData(photo, photo.length, true);
+        }
+    }
+
+    private void drain() {
+
+        while (true) {
+
+            int length;
+            boolean complete;
+
+            synchronized (this) {
+
+                if (mPendingLength < 0) {
+                    mScheduled = false;
+                    return;
+                }
+
+                // Swap buffers so the transfer can hand over the next part
+                byte[] buffer = mDecoding;
+                mDecoding = mPending;
+                mPending = buffer;
+
+                length = mPendingLength;
+                complete = mPendingComplete;
+                mPendingLength = -1;
+            }
+
+            Bitmap bitmap;
+            try {
+                bitmap = mRenderer.render(mDecoding, length,
+                        complete ? 1 : PREVIEW_SAMPLE_SIZE);
+            } catch (RuntimeException e) {
+                bitmap = null;
+            }
+
+            if (bitmap != null) {
+                mListener.onPhotoDecoded(bitmap, complete);
+            }
+        }
+    }
+
+    /**
+     * Stops the decoder thread.
+     */
+    void shutdown() {
+        mExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,979 @@
+package com.gracker.myic;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+import com.gracker.mykad.CardImage;
+import com.gracker.mykad.JpnField;
+import com.gracker.mykad.JpnRecord;
+import com.gracker.mykad.ReadIcResult;
+
+/**
+ * An append-only journal of read results on local storage.
+ *
+ * Results are queued by the reader threads and written by one journal
+ * thread, which writes whatever has queued up in one go and then syncs the
+ * file once, so the cost of the sync is shared by every result of the batch.
+ * The journal is a series of segment files. When a segment is full its
+ * index is written next to it as a run of entries sorted by IC number and
+ * time, and the runs are memory mapped and searched by bisection. The
+ * entries of the segment being written are kept in memory.
+ *
+ * If a write or sync fails, the results of the batch and everything still
+ * queued are dropped and {@link #flush()} reports the error. The segment is
+ * cut back to the end of the last synced record and sealed, and writing
+ * carries on in a new segment, so a torn record is never followed by good
+ * ones. If that fails as well the journal stops writing.
+ *
+ * <p>
+ * Segment layout, big-endian: the magic {@code "MYJL"} and a version int,
+ * then records made of the body length and the CRC-32 of the body as ints,
+ * and a body of the time in milliseconds as a long, the field mask as an
+ * int, a byte with a bit for every card file present, the bytes of those
+ * files, and the photo as a length int (-1 for none) followed by its bytes.
+ * Index runs hold the magic {@code "MYJI"} and the entry count, then
+ * entries of the IC number padded with zeros to {@link #KEY_LENGTH} bytes,
+ * the time and the record offset.
+ * </p>
+ *
+ * @author Jeffrey Loh
+ * @version 1.0, January 2020
+ */
+final class ReadJournal {
+
+    static final int MAGIC = 0x4D594A4C;
+    static final int INDEX_MAGIC = 0x4D594A49;
+    static final int VERSION = 1;
+
+    static final int KEY_LENGTH = 16;
+    private static final int INDEX_ENTRY = KEY_LENGTH + 8 + 8;
+    private static final int SEGMENT_HEADER = 4 + 4;
+    private static final int RECORD_HEADER = 4 + 4;
+
+    private static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    private static final int BATCH = 64;
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String INDEX_SUFFIX = ".idx";
+
+    private static final JpnField[] FIELDS = JpnField.values();
+
+    /**
+     * The location of a journaled read.
+     */
+    static final class Entry {
+
+        /** The IC number. */
+        final String ic;
+
+        /** The time of the read in milliseconds. */
+        final long time;
+
+        final int segment;
+        final long offset;
+
+        Entry(String ic, long time, int segment, long offset) {
+            this.ic = ic;
+            this.time = time;
+            this.segment = segment;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * Interface definition for a callback to be invoked for every record of
+     * a scan.
+     */
+    interface Visitor {
+
+        /**
+         * Called for a record.
+         *
+         * @param segment
+         *            the segment of the record.
+         * @param next
+         *            the offset just past the record, where a scan can
+         *            resume.
+         * @param time
+         *            the time of the read in milliseconds.
+         * @param result
+         *            the result.
+         * @return false to stop the scan.
+         * @throws IOException
+         *             to stop the scan with an error.
+         */
+        boolean onRecord(int segment, long next, long time, ReadIcResult result)
+                throws IOException;
+    }
+
+    private static final Comparator<Entry> BY_IC_AND_TIME = new Comparator<Entry>() {
+
+        @Override
+        public int compare(Entry a, Entry b) {
+            int c = a.ic.compareTo(b.ic);
+            if (c == 0) {
+                c = (a.time < b.time) ? -1 : ((a.time == b.time) ? 0 : 1);
+            }
+            return c;
+        }
+    };
+
+    private static final Comparator<Entry> BY_TIME = new Comparator<Entry>() {
+
+        @Override
+        public int compare(Entry a, Entry b) {
+            return (a.time < b.time) ? -1 : ((a.time == b.time) ? 0 : 1);
+        }
+    };
+
+    /** A sealed segment with its mapped index. */
+    private static final class Run {
+
+        final int segment;
+        final MappedByteBuffer index;
+        final int count;
+
+        Run(int segment, MappedByteBuffer index) {
+            this.segment = segment;
+            this.index = index;
+            this.count = index.getInt(4);
+        }
+    }
+
+    /** A result waiting to be written, or a flush request. */
+    private static final class Pending {
+
+        final long time;
+        final JpnRecord record;
+        final byte[] photo;
+        final CountDownLatch flushed;
+
+        Pending(long time, JpnRecord record, byte[] photo, CountDownLatch flushed) {
+            this.time = time;
+            this.record = record;
+            this.photo = photo;
+            this.flushed = flushed;
+        }
+    }
+
+    private static final Pending CLOSE = new Pending(0, null, null, null);
+
+    private final File mDir;
+    private final int mSegmentSize;
+    private final LinkedBlockingQueue<Pending> mQueue = new LinkedBlockingQueue<Pending>();
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final CRC32 mCrc = new CRC32();
+
+    // Guarded by this
+    private final List<Run> mRuns = new ArrayList<Run>();
+    private final Map<String, List<Entry>> mActive = new HashMap<String, List<Entry>>();
+    private int mSegment;
+    private long mCount;
+    private Thread mWriter;
+    private boolean mClosed;
+
+    // Journal thread only
+    private final List<Entry> mUnpublished = new ArrayList<Entry>();
+    private FileChannel mChannel;
+    private long mPosition;
+    private long mSyncedPosition;
+    private volatile IOException mError;
+
+    /**
+     * Creates a journal in a directory. Nothing is read until it is opened.
+     *
+     * @param dir
+     *            the directory.
+     */
+    ReadJournal(File dir) {
+        this(dir, DEFAULT_SEGMENT_SIZE);
+    }
+
+    ReadJournal(File dir, int segmentSize) {
+        mDir = dir;
+        mSegmentSize = segmentSize;
+    }
+
+    /**
+     * Opens the journal, recovering the segment that was being written, and
+     * starts the journal thread. A closed journal cannot be opened again.
+     *
+     * @throws IOException
+     *             if the journal cannot be read.
+     */
+    synchronized void open() throws IOException {
+
+        if (mWriter != null || mClosed) {
+            return;
+        }
+
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("Cannot create " + mDir);
+        }
+
+        int[] segments = listSegments();
+        for (int i = 0; i < segments.length; i++) {
+
+            int segment = segments[i];
+            File index = indexFile(segment);
+
+            if (index.exists()) {
+                mRuns.add(new Run(segment, map(index)));
+                mCount += mRuns.get(mRuns.size() - 1).count;
+            } else if (i < segments.length - 1) {
+                // Closed without its index
+                List<Entry> entries = new ArrayList<Entry>();
+                recover(segment, entries);
+                seal(segment, entries);
+                mCount += entries.size();
+            }
+        }
+
+        if (segments.length > 0 && !indexFile(segments[segments.length - 1]).exists()) {
+            mSegment = segments[segments.length - 1];
+            List<Entry> entries = new ArrayList<Entry>();
+            mPosition = recover(mSegment, entries);
+            mSyncedPosition = mPosition;
+            for (Entry entry : entries) {
+                addActive(entry);
+            }
+            mChannel = new RandomAccessFile(segmentFile(mSegment), "rw").getChannel();
+        } else {
+            startSegment((segments.length > 0) ? segments[segments.length - 1] + 1 : 0);
+        }
+
+        mWriter = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "Journal");
+        mWriter.start();
+    }
+
+    /**
+     * Queues a read result. It is written by the journal thread.
+     *
+     * @param time
+     *            the time of the read in milliseconds.
+     * @param result
+     *            a successful result. Its photo must not be changed
+     *            afterwards.
+     * @param withPhoto
+     *            true to keep the photo.
+     */
+    void append(long time, ReadIcResult result, boolean withPhoto) {
+
+        if (result.record == null) {
+            return;
+        }
+
+        mQueue.add(new Pending(time, result.record, withPhoto ? result.photo : null, null));
+    }
+
+    /**
+     * Waits until every queued result is written and synced.
+     *
+     * @throws IOException
+     *             if a write failed.
+     * @throws InterruptedException
+     *             if interrupted while waiting.
+     */
+    void flush() throws IOException, InterruptedException {
+
+        CountDownLatch flushed = new CountDownLatch(1);
+        mQueue.add(new Pending(0, null, null, flushed));
+        flushed.await();
+
+        IOException error = mError;
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Writes the queued results and stops the journal thread.
+     *
+     * @throws InterruptedException
+     *             if interrupted while waiting.
+     */
+    void close() throws InterruptedException {
+
+        Thread writer;
+        synchronized (this) {
+            writer = mWriter;
+            mWriter = null;
+            mClosed = true;
+        }
+
+        if (writer != null) {
+            mQueue.add(CLOSE);
+            writer.join();
+        }
+    }
+
+    /**
+     * Returns the number of results journaled with an IC number.
+     *
+     * @return the entry count.
+     */
+    synchronized long size() {
+        return mCount;
+    }
+
+    /**
+     * Finds the reads of a card.
+     *
+     * @param ic
+     *            the IC number.
+     * @param from
+     *            the earliest time in milliseconds.
+     * @param to
+     *            the latest time in milliseconds.
+     * @return the entries, oldest first.
+     */
+    synchronized List<Entry> find(String ic, long from, long to) {
+
+        List<Entry> found = new ArrayList<Entry>();
+        byte[] key = key(ic);
+
+        for (Run run : mRuns) {
+            for (int i = lowerBound(run, key, from); i < run.count; i++) {
+                int pos = 8 + i * INDEX_ENTRY;
+                long time = run.index.getLong(pos + KEY_LENGTH);
+                if (compareKey(run.index, pos, key) != 0 || time > to) {
+                    break;
+                }
+                found.add(new Entry(ic, time, run.segment,
+                        run.index.getLong(pos + KEY_LENGTH + 8)));
+            }
+        }
+
+        List<Entry> active = mActive.get(ic);
+        if (active != null) {
+            for (Entry entry : active) {
+                if (entry.time >= from && entry.time <= to) {
+                    found.add(entry);
+                }
+            }
+        }
+
+        Collections.sort(found, BY_TIME);
+        return found;
+    }
+
+    /**
+     * Finds every read of a card.
+     *
+     * @param ic
+     *            the IC number.
+     * @return the entries, oldest first.
+     */
+    List<Entry> find(String ic) {
+        return find(ic, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Reads a journaled result back.
+     *
+     * @param entry
+     *            the entry.
+     * @return the result.
+     * @throws IOException
+     *             if the record cannot be read or is damaged.
+     */
+    ReadIcResult load(Entry entry) throws IOException {
+
+        RandomAccessFile file = new RandomAccessFile(segmentFile(entry.segment), "r");
+        try {
+
+            file.seek(entry.offset);
+            int length = file.readInt();
+            int crc = file.readInt();
+            byte[] body = new byte[length];
+            file.readFully(body);
+
+            CRC32 check = new CRC32();
+            check.update(body, 0, length);
+            if ((int) check.getValue() != crc) {
+                throw new IOException("Damaged journal record at " + entry.offset);
+            }
+
+            ReadIcResult result = new ReadIcResult();
+            decodeBody(ByteBuffer.wrap(body), result);
+            return result;
+
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Reads the records in the order they were written, from a position
+     * given by an earlier scan. Records still being written are not seen.
+     *
+     * @param segment
+     *            the segment to start in.
+     * @param offset
+     *            the offset to start at, or 0 for the start of the segment.
+     * @param visitor
+     *            the visitor.
+     * @throws IOException
+     *             if a segment cannot be read.
+     */
+    void scan(int segment, long offset, Visitor visitor) throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        CRC32 check = new CRC32();
+
+        for (int current : listSegments()) {
+
+            if (current < segment) {
+                continue;
+            }
+
+            long position = (current == segment) ? Math.max(offset, SEGMENT_HEADER)
+                    : SEGMENT_HEADER;
+            FileChannel channel = new RandomAccessFile(segmentFile(current), "r").getChannel();
+
+            try {
+
+                long size = channel.size();
+                while (position + RECORD_HEADER <= size) {
+
+                    buffer.clear();
+                    buffer.limit(RECORD_HEADER);
+                    readFully(channel, buffer, position);
+                    int length = buffer.getInt(0);
+                    int crc = buffer.getInt(4);
+                    if (length <= 0 || position + RECORD_HEADER + length > size) {
+                        break;
+                    }
+
+                    ByteBuffer body = (length <= buffer.capacity()) ? buffer
+                            : ByteBuffer.allocate(length);
+                    body.clear();
+                    body.limit(length);
+                    readFully(channel, body, position + RECORD_HEADER);
+
+                    check.reset();
+                    check.update(body.array(), body.arrayOffset(), length);
+                    if ((int) check.getValue() != crc) {
+                        break;
+                    }
+
+                    body.flip();
+                    ReadIcResult result = new ReadIcResult();
+                    long time = decodeBody(body, result);
+                    position += RECORD_HEADER + length;
+
+                    if (!visitor.onRecord(current, position, time, result)) {
+                        return;
+                    }
+                }
+
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                throw new IOException("Unexpected end of journal");
+            }
+        }
+    }
+
+    private void writeLoop() {
+
+        List<Pending> batch = new ArrayList<Pending>(BATCH);
+        boolean closing = false;
+
+        while (!closing) {
+
+            try {
+                batch.add(mQueue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            mQueue.drainTo(batch, BATCH - 1);
+
+            // Stopped after an error: every result is dropped
+            if (mChannel != null) {
+
+                try {
+
+                    for (Pending pending : batch) {
+                        if (pending.record != null) {
+                            write(pending);
+                        }
+                    }
+
+                    flushBuffer();
+                    mChannel.force(false);
+                    mSyncedPosition = mPosition;
+                    publish();
+
+                } catch (IOException e) {
+
+                    mError = e;
+
+                    // Fail what is queued behind the batch as well
+                    mQueue.drainTo(batch);
+                    sealAfterError();
+                }
+            }
+
+            for (Pending pending : batch) {
+                if (pending == CLOSE) {
+                    closing = true;
+                } else if (pending.flushed != null) {
+                    pending.flushed.countDown();
+                }
+            }
+            batch.clear();
+        }
+
+        if (mChannel != null) {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                mError = e;
+            }
+        }
+    }
+
+    /**
+     * Cuts the segment back to its last synced record, seals it and starts a
+     * new one. The journal stops writing if that fails too.
+     */
+    private void sealAfterError() {
+
+        mBuffer.clear();
+        mUnpublished.clear();
+
+        FileChannel channel = mChannel;
+        mChannel = null;
+
+        try {
+
+            channel.truncate(mSyncedPosition);
+            channel.force(false);
+            channel.close();
+
+            synchronized (this) {
+                seal(mSegment, allActive());
+                mActive.clear();
+            }
+
+            startSegment(mSegment + 1);
+
+        } catch (IOException e) {
+
+            close(channel);
+            close(mChannel);
+            mChannel = null;
+        }
+    }
+
+    private static void close(FileChannel channel) {
+
+        if (channel == null) {
+            return;
+        }
+
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // Already failing
+        }
+    }
+
+    private void write(Pending pending) throws IOException {
+
+        CardImage image = pending.record.getImage();
+        int photoLength = (pending.photo == null) ? 0 : pending.photo.length;
+        int length = 8 + 4 + 1 + 4 + photoLength;
+        for (int file = 0; file < CardImage.FILE_COUNT; file++) {
+            if (image.getFile(file) != null) {
+                length += CardImage.fileLength(file);
+            }
+        }
+
+        if (mPosition + mBuffer.position() + RECORD_HEADER + length > mSegmentSize
+                && mPosition + mBuffer.position() > SEGMENT_HEADER) {
+            flushBuffer();
+            mChannel.force(false);
+            mChannel.close();
+            publish();
+            synchronized (this) {
+                seal(mSegment, allActive());
+                mActive.clear();
+            }
+            startSegment(mSegment + 1);
+        }
+
+        if (mBuffer.remaining() < RECORD_HEADER + length) {
+            flushBuffer();
+        }
+
+        ByteBuffer buffer = (mBuffer.remaining() >= RECORD_HEADER + length) ? mBuffer
+                : ByteBuffer.allocate(RECORD_HEADER + length);
+        long offset = mPosition + ((buffer == mBuffer) ? mBuffer.position() : 0);
+
+        int start = buffer.position();
+        buffer.putInt(length);
+        buffer.putInt(0);
+        buffer.putLong(pending.time);
+
+        int mask = 0;
+        for (JpnField field : FIELDS) {
+            if (image.contains(field)) {
+                mask |= 1 << field.ordinal();
+            }
+        }
+        buffer.putInt(mask);
+
+        int files = 0;
+        for (int file = 0; file < CardImage.FILE_COUNT; file++) {
+            if (image.getFile(file) != null) {
+                files |= 1 << file;
+            }
+        }
+        buffer.put((byte) files);
+        for (int file = 0; file < CardImage.FILE_COUNT; file++) {
+            byte[] bytes = image.getFile(file);
+            if (bytes != null) {
+                buffer.put(bytes, 0, CardImage.fileLength(file));
+            }
+        }
+
+        buffer.putInt((pending.photo == null) ? -1 : photoLength);
+        if (pending.photo != null) {
+            buffer.put(pending.photo);
+        }
+
+        mCrc.reset();
+        mCrc.update(buffer.array(), buffer.arrayOffset() + start + RECORD_HEADER, length);
+        buffer.putInt(start + 4, (int) mCrc.getValue());
+
+        if (buffer != mBuffer) {
+            buffer.flip();
+            writeFully(buffer);
+        }
+
+        String ic = pending.record.getIc();
+        if (ic != null && !ic.isEmpty()) {
+            mUnpublished.add(new Entry(ic, pending.time, mSegment, offset));
+        }
+    }
+
+    /**
+     * Makes the entries whose records are written visible to lookups.
+     */
+    private void publish() {
+
+        synchronized (this) {
+            for (Entry entry : mUnpublished) {
+                addActive(entry);
+            }
+        }
+
+        mUnpublished.clear();
+    }
+
+    private void flushBuffer() throws IOException {
+        mBuffer.flip();
+        writeFully(mBuffer);
+        mBuffer.clear();
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            mPosition += mChannel.write(buffer, mPosition);
+        }
+    }
+
+    private void startSegment(int segment) throws IOException {
+
+        mSegment = segment;
+        mChannel = new RandomAccessFile(segmentFile(segment), "rw").getChannel();
+        mChannel.truncate(0);
+
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER);
+        header.putInt(MAGIC).putInt(VERSION).flip();
+        mPosition = 0;
+        writeFully(header);
+        mSyncedPosition = mPosition;
+    }
+
+    private void addActive(Entry entry) {
+
+        List<Entry> entries = mActive.get(entry.ic);
+        if (entries == null) {
+            entries = new ArrayList<Entry>(2);
+            mActive.put(entry.ic, entries);
+        }
+
+        entries.add(entry);
+        mCount++;
+    }
+
+    private List<Entry> allActive() {
+
+        List<Entry> entries = new ArrayList<Entry>();
+        for (List<Entry> list : mActive.values()) {
+            entries.addAll(list);
+        }
+
+        return entries;
+    }
+
+    /**
+     * Writes the index run of a full segment and maps it.
+     */
+    private void seal(int segment, List<Entry> entries) throws IOException {
+
+        Collections.sort(entries, BY_IC_AND_TIME);
+
+        ByteBuffer buffer = ByteBuffer.allocate(8 + entries.size() * INDEX_ENTRY);
+        buffer.putInt(INDEX_MAGIC).putInt(entries.size());
+        for (Entry entry : entries) {
+            buffer.put(key(entry.ic));
+            buffer.putLong(entry.time);
+            buffer.putLong(entry.offset);
+        }
+        buffer.flip();
+
+        // Written under a temporary name so a run is never seen half written
+        File temp = new File(mDir, segment + INDEX_SUFFIX + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            FileChannel channel = out.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        } finally {
+            out.close();
+        }
+
+        File index = indexFile(segment);
+        if (!temp.renameTo(index)) {
+            throw new IOException("Cannot write " + index);
+        }
+
+        mRuns.add(new Run(segment, map(index)));
+    }
+
+    /**
+     * Reads the entries of a segment without an index and cuts off a record
+     * that was only partly written.
+     *
+     * @return the end of the last whole record.
+     */
+    private long recover(int segment, List<Entry> entries) throws IOException {
+
+        RandomAccessFile file = new RandomAccessFile(segmentFile(segment), "rw");
+        try {
+
+            long size = file.length();
+            if (size < SEGMENT_HEADER || file.readInt() != MAGIC) {
+                file.setLength(0);
+                file.writeInt(MAGIC);
+                file.writeInt(VERSION);
+                return SEGMENT_HEADER;
+            }
+
+            long position = SEGMENT_HEADER;
+            CRC32 check = new CRC32();
+
+            while (position + RECORD_HEADER <= size) {
+
+                file.seek(position);
+                int length = file.readInt();
+                int crc = file.readInt();
+                if (length <= 0 || position + RECORD_HEADER + length > size) {
+                    break;
+                }
+
+                byte[] body = new byte[length];
+                file.readFully(body);
+                check.reset();
+                check.update(body, 0, length);
+                if ((int) check.getValue() != crc) {
+                    break;
+                }
+
+                ReadIcResult result = new ReadIcResult();
+                long time = decodeBody(ByteBuffer.wrap(body), result);
+                String ic = result.record.getIc();
+                if (ic != null && !ic.isEmpty()) {
+                    entries.add(new Entry(ic, time, segment, position));
+                }
+
+                position += RECORD_HEADER + length;
+            }
+
+            file.setLength(position);
+            return position;
+
+        } finally {
+            file.close();
+        }
+    }
+
+    private static long decodeBody(ByteBuffer body, ReadIcResult result) {
+
+        long time = body.getLong();
+        int mask = body.getInt();
+        int files = body.get();
+
+        CardImage image = new CardImage();
+        for (int file = 0; file < CardImage.FILE_COUNT; file++) {
+            if ((files & (1 << file)) != 0) {
+                byte[] bytes = new byte[CardImage.fileLength(file)];
+                body.get(bytes);
+                image.put(file, 0, bytes, bytes.length);
+            }
+        }
+
+        EnumSet<JpnField> fields = EnumSet.noneOf(JpnField.class);
+        for (JpnField field : FIELDS) {
+            if ((mask & (1 << field.ordinal())) != 0) {
+                fields.add(field);
+            }
+        }
+        image.addFields(fields);
+        result.record = new JpnRecord(image);
+
+        int photoLength = body.getInt();
+        if (photoLength >= 0) {
+            result.photo = new byte[photoLength];
+            body.get(result.photo);
+        }
+
+        return time;
+    }
+
+    private static byte[] key(String ic) {
+
+        byte[] key = new byte[KEY_LENGTH];
+        for (int i = 0; i < ic.length() && i < KEY_LENGTH; i++) {
+            key[i] = (byte) ic.charAt(i);
+        }
+
+        return key;
+    }
+
+    private static int compareKey(ByteBuffer index, int pos, byte[] key) {
+
+        for (int i = 0; i < KEY_LENGTH; i++) {
+            int c = (index.get(pos + i) & 0xFF) - (key[i] & 0xFF);
+            if (c != 0) {
+                return c;
+            }
+        }
+
+        return 0;
+    }
+
+    /** Returns the first entry of a run not before the key and time. */
+    private static int lowerBound(Run run, byte[] key, long time) {
+
+        int low = 0;
+        int high = run.count;
+
+        while (low < high) {
+
+            int mid = (low + high) >>> 1;
+            int pos = 8 + mid * INDEX_ENTRY;
+            int c = compareKey(run.index, pos, key);
+            if (c == 0) {
+                long t = run.index.getLong(pos + KEY_LENGTH);
+                c = (t < time) ? -1 : 0;
+            }
+
+            if (c < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+    private static MappedByteBuffer map(File index) throws IOException {
+
+        RandomAccessFile file = new RandomAccessFile(index, "r");
+        try {
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                    0, file.length());
+            if (file.length() < 8 || buffer.getInt(0) != INDEX_MAGIC) {
+                throw new IOException("Not a journal index: " + index);
+            }
+            return buffer;
+        } finally {
+            file.close();
+        }
+    }
+
+    private int[] listSegments() {
+
+        List<Integer> segments = new ArrayList<Integer>();
+        String[] names = mDir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        segments.add(Integer.valueOf(name.substring(0,
+                                name.length() - SEGMENT_SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        // Not a segment
+                    }
+                }
+            }
+        }
+
+        int[] sorted = new int[segments.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = segments.get(i);
+        }
+        Arrays.sort(sorted);
+
+        return sorted;
+    }
+
+    private File segmentFile(int segment) {
+        return new File(mDir, segment + SEGMENT_SUFFIX);
+    }
+
+    private File indexFile(int segment) {
+        return new File(mDir, segment + INDEX_SUFFIX);
+    }
+}
@@ -0,0 +1,301 @@
+package com.gracker.myic;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbManager;
+
+import com.acs.smartcard.Reader;
+import com.acs.smartcard.Reader.OnStateChangeListener;
+import com.gracker.mykad.CardCache;
+import com.gracker.mykad.JpnField;
+import com.gracker.mykad.ReadIcParams;
+import com.gracker.mykad.ReadIcResult;
+
+/**
+ * The readers attached to the device, each with its own worker.
+ *
+ * A reader handles one command at a time, so reads are queued on the worker
+ * of their reader and the slots of a reader are read in order. Reads on
+ * different readers run in parallel.
+ *
+ * @author Jeffrey Loh
+ * @version 1.0, January 2020
+ */
+final class ReaderPool {
+
+    private static final int CACHE_ENTRIES = 64;
+    private static final long CACHE_BYTES = 1024 * 1024;
+    private static final long CACHE_TTL_MILLIS = 5 * 60 * 1000;
+
+    /**
+     * Interface definition for callbacks from the pool. Callbacks run on the
+     * thread that made the call raising them: a state change on the thread
+     * that was talking to the reader, a read result on the worker thread of
+     * the reader.
+     */
+    interface Listener {
+
+        /**
+         * Called when the state of a slot changes.
+         *
+         * @param worker
+         *            the reader.
+         * @param slotNum
+         *            the slot number.
+         * @param prevState
+         *            the previous state.
+         * @param currState
+         *            the current state.
+         */
+        void onStateChange(ReaderWorker worker, int slotNum, int prevState,
+                int currState);
+
+        /**
+         * Called when a read started by {@link #readAll} completes.
+         *
+         * @param worker
+         *            the reader.
+         * @param slotNum
+         *            the slot number.
+         * @param result
+         *            the result.
+         */
+        void onReadIc(ReaderWorker worker, int slotNum, ReadIcResult result);
+    }
+
+    private final UsbManager mManager;
+    private final Listener mListener;
+    private final Map<String, ReaderWorker> mWorkers = new LinkedHashMap<String, ReaderWorker>();
+    private volatile AutoReader mAutoReader;
+    private final CardCache mCache = new CardCache(CACHE_ENTRIES, CACHE_BYTES, CACHE_TTL_MILLIS);
+    private ReadJournal mJournal;
+
+    /**
+     * Creates an empty pool.
+     *
+     * @param manager
+     *            the USB manager.
+     * @param listener
+     *            the listener.
+     */
+    ReaderPool(UsbManager manager, Listener listener) {
+        mManager = manager;
+        mListener = listener;
+    }
+
+    /**
+     * Sets the automatic reader told about every slot state change.
+     *
+     * @param autoReader
+     *            the automatic reader, or null.
+     */
+    void setAutoReader(AutoReader autoReader) {
+        mAutoReader = autoReader;
+    }
+
+    /**
+     * Returns the worker of a device.
+     *
+     * @param deviceName
+     *            the device name.
+     * @return the worker, or null if the device has none.
+     */
+    synchronized ReaderWorker get(String deviceName) {
+        return mWorkers.get(deviceName);
+    }
+    /**
+     * Returns the cache of recent results shared by the readers.
+     *
+     * @return the cache.
+     */
+    CardCache getCardCache() {
+        return mCache;
+    }
+
+    /**
+     * Sets the journal every successful read is written to.
+     *
+     * @param journal
+     *            the journal, or null.
+     */
+    synchronized void setJournal(ReadJournal journal) {
+
+        mJournal = journal;
+        for (ReaderWorker worker : mWorkers.values()) {
+            worker.setJournal(journal);
+        }
+    }
+
+    /**
+     * Returns the worker of a device, creating it if needed.
+     *
+     * @param device
+     *            the device.
+     * @return the worker.
+     */
+    synchronized ReaderWorker acquire(UsbDevice device) {
+
+        ReaderWorker worker = mWorkers.get(device.getDeviceName());
+        if (worker == null) {
+
+            final ReaderWorker newWorker = new ReaderWorker(mManager, device);
+            newWorker.getJpnReader().setCache(mCache);
+            newWorker.setJournal(mJournal);
+            newWorker.getReader().setOnStateChangeListener(new OnStateChangeListener() {
+
+                @Override
+                public void onStateChange(int slotNum, int prevState, int currState) {
+
+                    // Abort the read at once when the card is pulled
+                    if (currState == Reader.CARD_ABSENT) {
+                        newWorker.cardRemoved(slotNum);
+                    } else if (currState >= Reader.CARD_PRESENT
+                            && prevState < Reader.CARD_PRESENT) {
+                        newWorker.cardInserted(slotNum);
+                    }
+
+                    AutoReader autoReader = mAutoReader;
+                    if (autoReader != null) {
+                        autoReader.onStateChange(newWorker, slotNum, currState);
+                    }
+
+                    mListener.onStateChange(newWorker, slotNum, prevState, currState);
+                }
+            });
+
+            mWorkers.put(device.getDeviceName(), newWorker);
+            worker = newWorker;
+        }
+
+        return worker;
+    }
+
+    /**
+     * Returns all workers.
+     *
+     * @return the workers.
+     */
+    synchronized List<ReaderWorker> getWorkers() {
+        return new ArrayList<ReaderWorker>(mWorkers.values());
+    }
+
+    /**
+     * Removes the worker of a device without closing it.
+     *
+     * @param device
+     *            the device.
+     * @return the worker, or null if the device has none.
+     */
+    synchronized ReaderWorker remove(UsbDevice device) {
+        return mWorkers.remove(device.getDeviceName());
+    }
+
+    /**
+     * Reads every card in every slot of the opened readers. The slots are
+     * checked on the worker of each reader.
+     *
+     * @param fields
+     *            the fields to read.
+     * @param readPhoto
+     *            true to read the photo.
+     * @param counted
+     *            receives the number of readers with a card once every
+     *            reader has been checked, on a worker thread.
+     */
+    void readAll(final Set<JpnField> fields, final boolean readPhoto,
+            final ReaderWorker.Callback<Integer> counted) {
+
+        List<ReaderWorker> workers = getWorkers();
+        final AtomicInteger pending = new AtomicInteger(workers.size());
+        final AtomicInteger count = new AtomicInteger();
+
+        if (workers.isEmpty()) {
+            counted.onComplete(0);
+            return;
+        }
+
+        for (final ReaderWorker worker : workers) {
+
+            Runnable check = new Runnable() {
+
+                @Override
+                public void run() {
+
+                    try {
+                        if (readSlots(worker, fields, readPhoto)) {
+                            count.incrementAndGet();
+                        }
+                    } finally {
+                        if (pending.decrementAndGet() == 0) {
+                            counted.onComplete(count.get());
+                        }
+                    }
+                }
+            };
+
+            if (!worker.submit(check) && pending.decrementAndGet() == 0) {
+                counted.onComplete(count.get());
+            }
+        }
+    }
+
+    /**
+     * Queues a read of every slot of a reader that holds a card. Runs on the
+     * worker thread.
+     *
+     * @return true if a slot holds a card.
+     */
+    private boolean readSlots(final ReaderWorker worker, Set<JpnField> fields,
+            boolean readPhoto) {
+
+        Reader reader = worker.getReader();
+        if (!reader.isOpened()) {
+            return false;
+        }
+
+        boolean found = false;
+
+        for (int slotNum = 0; slotNum < reader.getNumSlots(); slotNum++) {
+
+            if (reader.getState(slotNum) < Reader.CARD_PRESENT) {
+                continue;
+            }
+
+            ReadIcParams params = new ReadIcParams();
+            params.slotNum = slotNum;
+            params.fields = fields;
+            params.readphoto = readPhoto;
+
+            final int readSlot = slotNum;
+            worker.read(params, null, new ReaderWorker.Callback<ReadIcResult>() {
+
+                @Override
+                public void onComplete(ReadIcResult result) {
+                    mListener.onReadIc(worker, readSlot, result);
+                }
+            });
+
+            found = true;
+        }
+
+        return found;
+    }
+
+    /**
+     * Closes every reader and stops the workers.
+     */
+    synchronized void shutdown() {
+
+        for (ReaderWorker worker : mWorkers.values()) {
+            worker.shutdown();
+        }
+
+        mWorkers.clear();
+    }
+}
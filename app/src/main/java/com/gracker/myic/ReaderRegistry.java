@@ -0,0 +1,244 @@
+package com.gracker.myic;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbManager;
+
+import com.acs.smartcard.Reader;
+
+/**
+ * The supported readers attached to the device, and whether each is open.
+ *
+ * The registry starts empty and the service fills it with one call to
+ * {@link #scan()} when it starts. After that the registry only changes one
+ * device at a time, as attach and detach broadcasts and open and close
+ * results come in, and listeners are told about each change. A hub full of
+ * other USB devices is therefore never walked again.
+ *
+ * @author Jeffrey Loh
+ * @version 1.0, January 2020
+ */
+final class ReaderRegistry {
+
+    /**
+     * Interface definition for callbacks from the registry. Callbacks run on
+     * the thread that made the change, outside the registry lock.
+     */
+    interface Listener {
+
+        /**
+         * Called when a supported reader is attached.
+         *
+         * @param device
+         *            the reader.
+         */
+        void onReaderAttached(UsbDevice device);
+
+        /**
+         * Called when a reader is detached.
+         *
+         * @param device
+         *            the reader.
+         */
+        void onReaderDetached(UsbDevice device);
+
+        /**
+         * Called when a reader is opened or closed.
+         *
+         * @param device
+         *            the reader.
+         * @param opened
+         *            true if the reader is now open.
+         */
+        void onReaderOpenChanged(UsbDevice device, boolean opened);
+    }
+
+    private final UsbManager mManager;
+    private final Reader mProbe;
+    private final Map<String, UsbDevice> mDevices = new LinkedHashMap<String, UsbDevice>();
+    private final Set<String> mOpened = new HashSet<String>();
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+
+    /**
+     * Creates an empty registry. Call {@link #scan()} to fill it.
+     *
+     * @param manager
+     *            the USB manager.
+     */
+    ReaderRegistry(UsbManager manager) {
+        mManager = manager;
+        mProbe = new Reader(manager);
+    }
+
+    void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Brings the registry in line with the device list, telling the
+     * listeners about the readers that came or went. It walks every USB
+     * device, so it is only meant for startup.
+     */
+    void scan() {
+
+        List<UsbDevice> added = new ArrayList<UsbDevice>();
+        List<UsbDevice> removed = new ArrayList<UsbDevice>();
+
+        Map<String, UsbDevice> found = new LinkedHashMap<String, UsbDevice>();
+        for (UsbDevice device : mManager.getDeviceList().values()) {
+            if (mProbe.isSupported(device)) {
+                found.put(device.getDeviceName(), device);
+            }
+        }
+
+        synchronized (this) {
+
+            for (UsbDevice device : mDevices.values()) {
+                if (!found.containsKey(device.getDeviceName())) {
+                    removed.add(device);
+                }
+            }
+            for (UsbDevice device : removed) {
+                mDevices.remove(device.getDeviceName());
+                mOpened.remove(device.getDeviceName());
+            }
+
+            for (UsbDevice device : found.values()) {
+                if (!mDevices.containsKey(device.getDeviceName())) {
+                    mDevices.put(device.getDeviceName(), device);
+                    added.add(device);
+                }
+            }
+        }
+
+        for (UsbDevice device : removed) {
+            for (Listener listener : mListeners) {
+                listener.onReaderDetached(device);
+            }
+        }
+
+        for (UsbDevice device : added) {
+            for (Listener listener : mListeners) {
+                listener.onReaderAttached(device);
+            }
+        }
+    }
+
+    /**
+     * Adds a device that was just attached, if it is a supported reader.
+     *
+     * @param device
+     *            the device.
+     * @return true if the device was added.
+     */
+    boolean attached(UsbDevice device) {
+
+        if (!mProbe.isSupported(device)) {
+            return false;
+        }
+
+        synchronized (this) {
+            if (mDevices.containsKey(device.getDeviceName())) {
+                return false;
+            }
+            mDevices.put(device.getDeviceName(), device);
+        }
+
+        for (Listener listener : mListeners) {
+            listener.onReaderAttached(device);
+        }
+
+        return true;
+    }
+
+    /**
+     * Removes a device that was just detached.
+     *
+     * @param device
+     *            the device.
+     * @return true if the device was a registered reader.
+     */
+    boolean detached(UsbDevice device) {
+
+        synchronized (this) {
+            if (mDevices.remove(device.getDeviceName()) == null) {
+                return false;
+            }
+            mOpened.remove(device.getDeviceName());
+        }
+
+        for (Listener listener : mListeners) {
+            listener.onReaderDetached(device);
+        }
+
+        return true;
+    }
+
+    /**
+     * Records that a reader was opened or closed. Devices no longer
+     * attached are ignored.
+     *
+     * @param device
+     *            the reader.
+     * @param opened
+     *            true if the reader is open.
+     */
+    void setOpened(UsbDevice device, boolean opened) {
+
+        synchronized (this) {
+
+            if (!mDevices.containsKey(device.getDeviceName())) {
+                return;
+            }
+
+            boolean changed = opened ? mOpened.add(device.getDeviceName())
+                    : mOpened.remove(device.getDeviceName());
+            if (!changed) {
+                return;
+            }
+        }
+
+        for (Listener listener : mListeners) {
+            listener.onReaderOpenChanged(device, opened);
+        }
+    }
+
+    /**
+     * Returns the attached readers in the order they were found.
+     *
+     * @return the readers.
+     */
+    synchronized List<UsbDevice> getDevices() {
+        return new ArrayList<UsbDevice>(mDevices.values());
+    }
+
+    /**
+     * Returns an attached reader.
+     *
+     * @param deviceName
+     *            the device name.
+     * @return the reader, or null if it is not attached.
+     */
+    synchronized UsbDevice get(String deviceName) {
+        return mDevices.get(deviceName);
+    }
+
+    synchronized boolean isOpened(String deviceName) {
+        return mOpened.contains(deviceName);
+    }
+
+    synchronized int getOpenCount() {
+        return mOpened.size();
+    }
+}
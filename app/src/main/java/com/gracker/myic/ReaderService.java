@@ -0,0 +1,765 @@
+package com.gracker.myic;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbManager;
+import android.os.Binder;
+import android.os.Build;
+import android.os.IBinder;
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.gracker.mykad.PhotoTransfer;
+import com.gracker.mykad.ReadIcResult;
+import com.gracker.mykad.ReadStats;
+
+/**
+ * A foreground service that owns the readers, the read engine and the
+ * journal, so that reader sessions outlive the activity.
+ *
+ * The activity binds to the service and registers itself as the client.
+ * Rotating the screen or leaving the app only detaches the client; the
+ * readers stay open and automatic reads carry on. Messages logged while no
+ * client is attached are kept and handed to the next one.
+ *
+ * Readers are scanned for on a background thread when the service starts,
+ * and {@link ReaderRegistry} follows attach and detach broadcasts after
+ * that. The reader used last is opened without being
+ * asked for, and the time from process start until it is ready to read is
+ * logged and recorded as {@link ReadStats.Phase#STARTUP}.
+ *
+ * @author Jeffrey Loh
+ * @version 1.0, January 2020
+ */
+public class ReaderService extends Service {
+
+    /**
+     * Receives the events of the service. The methods are called on worker
+     * threads.
+     */
+    interface Client extends ReaderRegistry.Listener, ReaderPool.Listener,
+            AutoReader.Listener, PhotoTransfer.Listener {
+
+        /**
+         * Called with a message to log.
+         *
+         * @param msg
+         *            the message.
+         */
+        void onMessage(String msg);
+
+        /**
+         * Called when the user refused to let a reader be opened.
+         */
+        void onPermissionDenied();
+    }
+
+    /**
+     * Gives a bound activity the service itself.
+     */
+    final class LocalBinder extends Binder {
+
+        ReaderService getService() {
+            return ReaderService.this;
+        }
+    }
+
+    private static final String ACTION_USB_PERMISSION = "com.android.example.USB_PERMISSION";
+
+    private static final String CHANNEL_ID = "readers";
+    private static final int NOTIFICATION_ID = 1;
+
+    /** Most messages kept while no client is attached. */
+    private static final int PENDING_LOG_CAPACITY = 200;
+
+    /** Launch to ready beyond this is logged as slow. */
+    private static final long STARTUP_BUDGET_MILLIS = 1500;
+
+    private static final String PREFS = "readers";
+    private static final String PREF_LAST_READER = "last_reader";
+
+    private final IBinder mBinder = new LocalBinder();
+    private final LogBuffer mPendingLog = new LogBuffer(PENDING_LOG_CAPACITY);
+
+    private UsbManager mManager;
+    private ReaderPool mReaderPool;
+    private AutoReader mAutoReader;
+    private ReadJournal mJournal;
+    private PendingIntent mPermissionIntent;
+    private volatile JournalExporter mExporter;
+    private volatile Client mClient;
+    private volatile boolean mTraceEnabled;
+    private ReaderRegistry mRegistry;
+    private final Set<String> mAutoOpened = new HashSet<String>();
+    private boolean mStarted;
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+
+        public void onReceive(Context context, Intent intent) {
+
+            String action = intent.getAction();
+            UsbDevice device = (UsbDevice) intent
+                    .getParcelableExtra(UsbManager.EXTRA_DEVICE);
+
+            if (ACTION_USB_PERMISSION.equals(action)) {
+
+                if (intent.getBooleanExtra(
+                        UsbManager.EXTRA_PERMISSION_GRANTED, false)) {
+
+                    if (device != null) {
+
+                        // Open reader
+                        logMsg("Opening reader: " + device.getDeviceName()
+                                + "...");
+                        openReader(mReaderPool.acquire(device));
+                    }
+
+                } else {
+
+                    logMsg("Permission denied for device "
+                            + ((device == null) ? null : device.getDeviceName()));
+                    ready();
+
+                    Client client = mClient;
+                    if (client != null) {
+                        client.onPermissionDenied();
+                    }
+                }
+
+            } else if (UsbManager.ACTION_USB_DEVICE_ATTACHED.equals(action)) {
+
+                // Only the new device is looked at
+                if (device != null && mRegistry.attached(device)) {
+                    autoOpen();
+                }
+
+            } else if (UsbManager.ACTION_USB_DEVICE_DETACHED.equals(action)) {
+
+                if (device == null) {
+                    return;
+                }
+
+                ReaderWorker worker = mReaderPool.remove(device);
+                mRegistry.detached(device);
+
+                if (worker != null) {
+
+                    // Close reader; the registry no longer counts it as open
+                    logMsg("Closing reader...");
+                    worker.shutdown();
+                }
+            }
+        }
+    };
+
+    private final ReaderRegistry.Listener mRegistryListener = new ReaderRegistry.Listener() {
+
+        @Override
+        public void onReaderAttached(UsbDevice device) {
+
+            Client client = mClient;
+            if (client != null) {
+                client.onReaderAttached(device);
+            }
+        }
+
+        @Override
+        public void onReaderDetached(UsbDevice device) {
+
+            synchronized (ReaderService.this) {
+                mAutoOpened.remove(device.getDeviceName());
+            }
+
+            Client client = mClient;
+            if (client != null) {
+                client.onReaderDetached(device);
+            }
+        }
+
+        @Override
+        public void onReaderOpenChanged(UsbDevice device, boolean opened) {
+
+            updateNotification();
+
+            Client client = mClient;
+            if (client != null) {
+                client.onReaderOpenChanged(device, opened);
+            }
+        }
+    };
+
+    private final ReaderPool.Listener mPoolListener = new ReaderPool.Listener() {
+
+        @Override
+        public void onStateChange(ReaderWorker worker, int slotNum, int prevState, int currState) {
+
+            Client client = mClient;
+            if (client != null) {
+                client.onStateChange(worker, slotNum, prevState, currState);
+            }
+        }
+
+        @Override
+        public void onReadIc(ReaderWorker worker, int slotNum, ReadIcResult result) {
+
+            Client client = mClient;
+            if (client != null) {
+                client.onReadIc(worker, slotNum, result);
+            } else {
+                logResult(worker, slotNum, result);
+            }
+        }
+    };
+
+    private final AutoReader.Listener mAutoReadListener = new AutoReader.Listener() {
+
+        @Override
+        public void onAutoRead(ReaderWorker worker, int slotNum, ReadIcResult result,
+                long latencyNanos) {
+
+            Client client = mClient;
+            if (client != null) {
+                client.onAutoRead(worker, slotNum, result, latencyNanos);
+            } else {
+                logResult(worker, slotNum, result);
+            }
+        }
+    };
+
+    private final PhotoTransfer.Listener mPhotoListener = new PhotoTransfer.Listener() {
+
+        @Override
+        public void onPhotoData(byte[] photo, int length, boolean complete) {
+
+            // Nobody to show the photo to while the activity is away
+            Client client = mClient;
+            if (client != null) {
+                client.onPhotoData(photo, length, complete);
+            }
+        }
+    };
+
+    @Override
+    public void onCreate() {
+
+        super.onCreate();
+
+        // Get USB manager
+        mManager = (UsbManager) getSystemService(Context.USB_SERVICE);
+
+        // Initialize reader registry and pool
+        mRegistry = new ReaderRegistry(mManager);
+        mRegistry.addListener(mRegistryListener);
+        mReaderPool = new ReaderPool(mManager, mPoolListener);
+        mAutoReader = new AutoReader(mAutoReadListener);
+        mAutoReader.setPhotoListener(mPhotoListener);
+        mReaderPool.setAutoReader(mAutoReader);
+        openJournal();
+
+        // Register receiver for USB permission
+        mPermissionIntent = PendingIntent.getBroadcast(this, 0, new Intent(
+                ACTION_USB_PERMISSION), 0);
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(ACTION_USB_PERMISSION);
+        filter.addAction(UsbManager.ACTION_USB_DEVICE_ATTACHED);
+        filter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
+        registerReceiver(mReceiver, filter);
+
+        startForeground(NOTIFICATION_ID, buildNotification());
+
+        // Find the readers without holding up the first frame
+        discover();
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+
+        // USB permissions do not survive the process, so neither do readers
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    @Override
+    public void onDestroy() {
+
+        // Close readers
+        mClient = null;
+        mRegistry.removeListener(mRegistryListener);
+        mAutoReader.shutdown();
+        mReaderPool.shutdown();
+        mReaderPool.setJournal(null);
+        JournalExporter exporter = mExporter;
+        if (exporter != null) {
+            exporter.cancel();
+        }
+
+        // Write the queued reads in the background
+        final ReadJournal journal = mJournal;
+        new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    journal.close();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "Journal close").start();
+
+        // Unregister receiver
+        unregisterReceiver(mReceiver);
+
+        super.onDestroy();
+    }
+
+    /**
+     * Starts the service, in the foreground where the platform asks for it.
+     *
+     * @param context
+     *            the context.
+     */
+    static void start(Context context) {
+
+        Intent intent = new Intent(context, ReaderService.class);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            context.startForegroundService(intent);
+        } else {
+            context.startService(intent);
+        }
+    }
+
+    private Notification buildNotification() {
+
+        int count = mRegistry.getOpenCount();
+
+        Notification.Builder builder;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationChannel channel = new NotificationChannel(CHANNEL_ID,
+                    "Readers", NotificationManager.IMPORTANCE_LOW);
+            ((NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE))
+                    .createNotificationChannel(channel);
+            builder = new Notification.Builder(this, CHANNEL_ID);
+        } else {
+            builder = newLegacyBuilder();
+        }
+
+        Intent intent = new Intent(this, MainActivity.class);
+        return builder.setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(count + " reader(s) open")
+                .setContentIntent(PendingIntent.getActivity(this, 0, intent, 0))
+                .setOngoing(true)
+                .build();
+    }
+
+    /** Before O a notification has no channel. */
+    @SuppressWarnings("deprecation")
+    private Notification.Builder newLegacyBuilder() {
+        return new Notification.Builder(this);
+    }
+
+    private void updateNotification() {
+        ((NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE))
+                .notify(NOTIFICATION_ID, buildNotification());
+    }
+
+    /**
+     * Attaches a client, first handing it the messages logged while none
+     * was attached.
+     *
+     * @param client
+     *            the client, or null to detach the current one.
+     */
+    void setClient(Client client) {
+
+        synchronized (mPendingLog) {
+            if (client != null) {
+                for (int i = 0; i < mPendingLog.size(); i++) {
+                    client.onMessage(mPendingLog.getMessage(i));
+                }
+                mPendingLog.clear();
+            }
+            mClient = client;
+        }
+    }
+
+    ReaderPool getReaderPool() {
+        return mReaderPool;
+    }
+
+    AutoReader getAutoReader() {
+        return mAutoReader;
+    }
+
+    ReadJournal getJournal() {
+        return mJournal;
+    }
+
+    ReaderRegistry getRegistry() {
+        return mRegistry;
+    }
+
+    /**
+     * Scans for supported readers on a background thread, then opens the
+     * reader used last if it is attached. The registry keeps itself up to
+     * date afterwards, so this is only done at startup.
+     */
+    private void discover() {
+
+        new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+
+                mRegistry.scan();
+
+                if (!autoOpen()) {
+                    ready();
+                }
+            }
+        }, "Discovery").start();
+    }
+
+    /**
+     * Opens the reader used last, or the only reader when none was used yet,
+     * asking for permission if the device filter did not grant it already.
+     * Each attachment of a reader is opened this way at most once.
+     *
+     * @return true if a reader is being opened.
+     */
+    private synchronized boolean autoOpen() {
+
+        List<UsbDevice> devices = mRegistry.getDevices();
+        String last = getSharedPreferences(PREFS, MODE_PRIVATE).getString(PREF_LAST_READER, null);
+
+        for (UsbDevice device : devices) {
+
+            if (last == null ? devices.size() != 1 : !last.equals(readerKey(device))) {
+                continue;
+            }
+
+            if (mRegistry.isOpened(device.getDeviceName())
+                    || !mAutoOpened.add(device.getDeviceName())) {
+                continue;
+            }
+
+            if (mManager.hasPermission(device)) {
+                logMsg("Opening reader: " + device.getDeviceName() + "...");
+                openReader(mReaderPool.acquire(device));
+            } else {
+                mManager.requestPermission(device, mPermissionIntent);
+            }
+
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns the key a reader is remembered by. Device names change from
+     * one attachment to the next, so the USB IDs are used instead.
+     */
+    private static String readerKey(UsbDevice device) {
+        return device.getVendorId() + ":" + device.getProductId();
+    }
+
+    /**
+     * Logs and records the time from process start the first time a reader
+     * is ready, or it is known that none will be opened.
+     */
+    private synchronized void ready() {
+
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+
+        long millis = SystemClock.elapsedRealtime() - Process.getStartElapsedRealtime();
+        ReadStats.get().record(ReadStats.Phase.STARTUP, TimeUnit.MILLISECONDS.toNanos(millis));
+        logMsg("Ready in " + millis + " ms"
+                + ((millis > STARTUP_BUDGET_MILLIS) ? ", over the "
+                        + STARTUP_BUDGET_MILLIS + " ms budget" : ""));
+    }
+
+    /**
+     * Asks for permission to use a reader. The reader is opened once the
+     * permission is granted.
+     *
+     * @param deviceName
+     *            the device name.
+     * @return true if the registry knows the device.
+     */
+    boolean requestPermission(String deviceName) {
+
+        UsbDevice device = mRegistry.get(deviceName);
+        if (device == null) {
+            return false;
+        }
+
+        mManager.requestPermission(device, mPermissionIntent);
+        return true;
+    }
+
+    /**
+     * Asks for permission to use every reader not opened yet.
+     */
+    void openAll() {
+
+        for (UsbDevice device : mRegistry.getDevices()) {
+            if (!mRegistry.isOpened(device.getDeviceName())) {
+                mManager.requestPermission(device, mPermissionIntent);
+            }
+        }
+    }
+
+    /**
+     * Opens the reader on its worker.
+     *
+     * @param worker
+     *            the reader.
+     */
+    private void openReader(final ReaderWorker worker) {
+
+        worker.open(new ReaderWorker.Callback<Exception>() {
+
+            @Override
+            public void onComplete(Exception result) {
+
+                if (result != null) {
+                    logMsg(result.toString());
+                    ready();
+                    return;
+                }
+
+                logMsg("Reader name: " + worker.getReader().getReaderName());
+                logMsg("Number of slots: " + worker.getReader().getNumSlots());
+
+                getSharedPreferences(PREFS, MODE_PRIVATE).edit()
+                        .putString(PREF_LAST_READER, readerKey(worker.getDevice()))
+                        .apply();
+                ready();
+
+                if (mTraceEnabled) {
+                    startTrace(worker);
+                }
+
+                mRegistry.setOpened(worker.getDevice(), true);
+            }
+        });
+    }
+
+    /**
+     * Closes the reader on its worker.
+     *
+     * @param worker
+     *            the reader.
+     */
+    void closeReader(final ReaderWorker worker) {
+
+        worker.close(new ReaderWorker.Callback<Exception>() {
+
+            @Override
+            public void onComplete(Exception result) {
+                mRegistry.setOpened(worker.getDevice(), false);
+            }
+        });
+    }
+
+    /**
+     * Returns the directory of the trace files, in the internal storage of
+     * the app: a trace holds every APDU of the card, personal data included.
+     *
+     * @param context
+     *            the context.
+     * @return the directory.
+     */
+    static File getTraceDir(Context context) {
+        File dir = new File(context.getFilesDir(), "traces");
+        dir.mkdirs();
+        return dir;
+    }
+
+    /**
+     * Starts or stops tracing every open reader, and readers opened later.
+     * Traces already running are left alone when the option is unchanged.
+     *
+     * @param enabled
+     *            true to trace.
+     */
+    void setTraceEnabled(boolean enabled) {
+
+        if (enabled == mTraceEnabled) {
+            return;
+        }
+        mTraceEnabled = enabled;
+
+        for (ReaderWorker worker : mReaderPool.getWorkers()) {
+            if (!worker.getReader().isOpened()) {
+                continue;
+            }
+            if (enabled) {
+                startTrace(worker);
+            } else {
+                worker.stopTrace(null);
+            }
+        }
+    }
+
+    /**
+     * Starts recording a trace of the reader to a new file.
+     *
+     * @param worker
+     *            the reader.
+     */
+    private void startTrace(ReaderWorker worker) {
+
+        final File file = new File(getTraceDir(this), worker.getName().replace('/', '_')
+                + "-" + System.currentTimeMillis() + ".trace");
+
+        worker.startTrace(file, new ReaderWorker.Callback<Exception>() {
+
+            @Override
+            public void onComplete(Exception result) {
+                if (result != null) {
+                    logMsg("Trace: " + result.toString());
+                } else {
+                    logMsg("Tracing to " + file.getName());
+                }
+            }
+        });
+    }
+
+    /**
+     * Opens the read journal, in the internal storage of the app, on a
+     * background thread and starts writing reads to it.
+     */
+    private void openJournal() {
+
+        final ReadJournal journal = new ReadJournal(new File(getFilesDir(), "journal"));
+        mJournal = journal;
+
+        new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    journal.open();
+                    mReaderPool.setJournal(journal);
+                    logMsg("Journal: " + journal.size() + " read(s)");
+                } catch (IOException e) {
+                    logMsg("Journal: " + e.toString());
+                }
+            }
+        }, "Journal open").start();
+    }
+
+    /**
+     * Exports the reads of the journal made today as newline-delimited JSON
+     * with inline photos, or cancels the export that is running. An export
+     * that did not finish resumes where it stopped. Only the export goes to
+     * the external storage; the journal itself stays internal.
+     */
+    void exportJournal() {
+
+        JournalExporter running = mExporter;
+        if (running != null) {
+            running.cancel();
+            return;
+        }
+
+        Calendar day = Calendar.getInstance();
+        day.set(Calendar.HOUR_OF_DAY, 0);
+        day.set(Calendar.MINUTE, 0);
+        day.set(Calendar.SECOND, 0);
+        day.set(Calendar.MILLISECOND, 0);
+        long from = day.getTimeInMillis();
+        day.add(Calendar.DAY_OF_MONTH, 1);
+
+        File dir = new File(getExternalFilesDir(null), "export");
+        dir.mkdirs();
+        final File file = new File(dir, "reads-"
+                + new SimpleDateFormat("yyyyMMdd", Locale.US).format(new Date(from)) + ".ndjson");
+
+        final JournalExporter exporter = new JournalExporter(mJournal, file,
+                JournalExporter.Format.NDJSON, JournalExporter.PhotoMode.BASE64);
+        exporter.setTimeRange(from, day.getTimeInMillis() - 1);
+        exporter.setListener(new JournalExporter.Listener() {
+
+            @Override
+            public void onProgress(long exported, long scanned, long total) {
+                logMsg("Export: " + exported + " read(s), " + scanned + " of " + total + " scanned");
+            }
+        });
+        mExporter = exporter;
+
+        new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    if (exporter.run()) {
+                        logMsg("Exported to " + file.getPath());
+                    } else {
+                        logMsg("Export paused");
+                    }
+                } catch (IOException e) {
+                    logMsg("Export: " + e.toString());
+                } finally {
+                    mExporter = null;
+                }
+            }
+        }, "Export").start();
+    }
+
+    /**
+     * Logs a read made while no client was attached.
+     */
+    private void logResult(ReaderWorker worker, int slotNum, ReadIcResult result) {
+        logMsg(worker.getName() + " slot " + slotNum + ": "
+                + ((result.e != null) ? result.e.toString() : result.getIc()));
+    }
+
+    /**
+     * Logs the message to the client, or keeps it until one attaches. It can
+     * be called from any thread.
+     *
+     * @param msg
+     *            the message.
+     */
+    private void logMsg(String msg) {
+
+        synchronized (mPendingLog) {
+            Client client = mClient;
+            if (client != null) {
+                client.onMessage(msg);
+            } else {
+                mPendingLog.append(System.currentTimeMillis(), msg);
+            }
+        }
+    }
+}
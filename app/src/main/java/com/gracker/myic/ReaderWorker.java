@@ -0,0 +1,472 @@
+package com.gracker.myic;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbManager;
+
+import com.acs.smartcard.Reader;
+import com.gracker.mykad.JpnReader;
+import com.gracker.mykad.ReadCancelledException;
+import com.gracker.mykad.ReadIcParams;
+import com.gracker.mykad.ReadIcResult;
+import com.gracker.mykad.ReaderOperation;
+import com.gracker.mykad.ReaderSession;
+import com.gracker.mykad.TraceRecorder;
+
+/**
+ * One reader with its own worker thread.
+ *
+ * Everything that talks to the reader (open, close and reads on any of its
+ * slots) is queued on the worker, so commands to one reader stay in order
+ * while different readers work in parallel. Reads can be cancelled, and
+ * stop at their deadline, between two APDUs. The exchanges can be recorded
+ * to a trace file.
+ *
+ * @author Jeffrey Loh
+ * @version 1.0, January 2020
+ */
+final class ReaderWorker {
+
+    /**
+     * Interface definition for a callback to be invoked when a command
+     * completes. It runs on the worker thread.
+     *
+     * @param <T>
+     *            the result type.
+     */
+    interface Callback<T> {
+
+        /**
+         * Called when the command completes.
+         *
+         * @param result
+         *            the result.
+         */
+        void onComplete(T result);
+    }
+
+    private final UsbDevice mDevice;
+    private final Reader mReader;
+    private final TraceRecorder mRecorder;
+    private final ReaderSession mSession;
+    private final JpnReader mJpnReader;
+    private final ExecutorService mExecutor;
+    private volatile ReadJournal mJournal;
+    private volatile int mCardSlot;
+    private final List<ReaderOperation> mOperations = new ArrayList<ReaderOperation>();
+
+    /**
+     * Creates a worker for the device. The reader is not opened.
+     *
+     * @param manager
+     *            the USB manager.
+     * @param device
+     *            the device.
+     */
+    ReaderWorker(UsbManager manager, UsbDevice device) {
+
+        mDevice = device;
+        mReader = new Reader(manager);
+        mRecorder = new TraceRecorder(new AcsCardTransport(mReader));
+        mSession = new ReaderSession(mRecorder);
+        mJpnReader = new JpnReader(mSession);
+
+        final String threadName = "Reader " + device.getDeviceName();
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, threadName);
+            }
+        });
+    }
+
+    /**
+     * Returns the device.
+     *
+     * @return the device.
+     */
+    UsbDevice getDevice() {
+        return mDevice;
+    }
+
+    /**
+     * Returns the device name.
+     *
+     * @return the device name.
+     */
+    String getName() {
+        return mDevice.getDeviceName();
+    }
+
+    /**
+     * Returns the reader. Only use it on the worker thread.
+     *
+     * @return the reader.
+     */
+    Reader getReader() {
+        return mReader;
+    }
+
+    /**
+     * Returns the reader session.
+     *
+     * @return the session.
+     */
+    ReaderSession getSession() {
+        return mSession;
+    }
+
+    /**
+     * Sets the journal every successful read is written to.
+     *
+     * @param journal
+     *            the journal, or null.
+     */
+    void setJournal(ReadJournal journal) {
+        mJournal = journal;
+    }
+
+    /**
+     * Returns the trace recorder in front of the reader.
+     *
+     * @return the recorder.
+     */
+    TraceRecorder getTraceRecorder() {
+        return mRecorder;
+    }
+
+    /**
+     * Returns the JPN reader.
+     *
+     * @return the JPN reader.
+     */
+    JpnReader getJpnReader() {
+        return mJpnReader;
+    }
+
+    /**
+     * Returns the executor that runs work for this reader in order.
+     *
+     * @return the executor.
+     */
+    ExecutorService getExecutor() {
+        return mExecutor;
+    }
+
+    /**
+     * Opens the reader.
+     *
+     * @param callback
+     *            receives null on success or the error.
+     */
+    void open(final Callback<Exception> callback) {
+
+        execute(new Runnable() {
+
+            @Override
+            public void run() {
+
+                Exception result = null;
+
+                try {
+
+                    mReader.open(mDevice);
+
+                } catch (Exception e) {
+
+                    result = e;
+                }
+
+                callback.onComplete(result);
+            }
+        }, callback);
+    }
+
+    /**
+     * Closes the reader.
+     *
+     * @param callback
+     *            called once the reader is closed, or null.
+     */
+    void close(final Callback<Exception> callback) {
+
+        execute(new Runnable() {
+
+            @Override
+            public void run() {
+
+                mReader.close();
+                mSession.invalidateAll();
+
+                try {
+                    mRecorder.stop();
+                } catch (IOException e) {
+                    // The trace is closed even if the last records are lost
+                }
+
+                if (callback != null) {
+                    callback.onComplete(null);
+                }
+            }
+        }, callback);
+    }
+
+    /**
+     * Starts recording a trace. The card sessions are dropped once the
+     * header holds their state, so the trace starts with a power-up and can
+     * be replayed on its own.
+     *
+     * @param file
+     *            the trace file.
+     * @param callback
+     *            receives null on success or the error.
+     */
+    void startTrace(final File file, final Callback<Exception> callback) {
+
+        execute(new Runnable() {
+
+            @Override
+            public void run() {
+
+                Exception result = null;
+
+                try {
+
+                    // The header keeps the session as it was, then the
+                    // trace starts from a cold card
+                    mRecorder.start(file, mSession);
+                    mSession.invalidateAll();
+
+                } catch (IOException e) {
+
+                    result = e;
+                }
+
+                callback.onComplete(result);
+            }
+        }, callback);
+    }
+
+    /**
+     * Stops recording a trace.
+     *
+     * @param callback
+     *            receives null on success or the error, or null.
+     */
+    void stopTrace(final Callback<Exception> callback) {
+
+        execute(new Runnable() {
+
+            @Override
+            public void run() {
+
+                Exception result = null;
+
+                try {
+
+                    mRecorder.stop();
+
+                } catch (IOException e) {
+
+                    result = e;
+                }
+
+                if (callback != null) {
+                    callback.onComplete(result);
+                }
+            }
+        }, callback);
+    }
+
+    /**
+     * Queues a read.
+     *
+     * @param params
+     *            what to read.
+     * @param listener
+     *            the listener for every exchange of the read, or null.
+     * @param callback
+     *            receives the result.
+     * @return the operation, which can be cancelled.
+     */
+    ReaderOperation read(final ReadIcParams params,
+            final ReaderSession.ExchangeListener listener,
+            final Callback<ReadIcResult> callback) {
+
+        final ReaderOperation operation = new ReaderOperation(params.slotNum,
+                params.timeoutMillis);
+
+        synchronized (mOperations) {
+            mOperations.add(operation);
+        }
+
+        try {
+
+            mExecutor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    ReadIcResult result;
+
+                    mSession.setOperation(operation);
+                    mSession.setExchangeListener(listener);
+
+                    try {
+
+                        // Stop here if cancelled while queued
+                        operation.checkpoint();
+
+                        mRecorder.markRead(params.slotNum, params.fields,
+                                params.readphoto);
+
+                        result = mJpnReader.read(params.slotNum, params.fields,
+                                params.readphoto, params.photoListener);
+
+                    } catch (ReadCancelledException e) {
+
+                        result = new ReadIcResult();
+                        result.e = e;
+
+                    } finally {
+
+                        mSession.setExchangeListener(null);
+                        mSession.setOperation(null);
+                        finish(operation);
+                    }
+
+                    ReadJournal journal = mJournal;
+                    if (journal != null && result.e == null) {
+                        journal.append(System.currentTimeMillis(), result, params.readphoto);
+                    }
+
+                    callback.onComplete(result);
+                }
+            });
+
+        } catch (RejectedExecutionException e) {
+
+            finish(operation);
+
+            ReadIcResult result = new ReadIcResult();
+            result.e = e;
+            callback.onComplete(result);
+        }
+
+        return operation;
+    }
+
+    /**
+     * Records the slot a card was inserted in.
+     *
+     * @param slotNum
+     *            the slot number.
+     */
+    void cardInserted(int slotNum) {
+        mCardSlot = slotNum;
+    }
+
+    /**
+     * Returns the slot a card was last inserted in, for a read started on
+     * the reader rather than on a slot.
+     *
+     * @return the slot number, 0 until a card is inserted.
+     */
+    int getCardSlot() {
+        return mCardSlot;
+    }
+
+    /**
+     * Cancels the reads of a slot whose card was removed and forgets the
+     * card session.
+     *
+     * @param slotNum
+     *            the slot number.
+     */
+    void cardRemoved(int slotNum) {
+        cancel(slotNum);
+        mSession.forget(slotNum);
+        mRecorder.markRemoved(slotNum);
+    }
+
+    /**
+     * Cancels the running and queued reads of a slot, for example when its
+     * card is removed.
+     *
+     * @param slotNum
+     *            the slot number.
+     */
+    void cancel(int slotNum) {
+
+        synchronized (mOperations) {
+            for (ReaderOperation operation : mOperations) {
+                if (operation.getSlotNum() == slotNum) {
+                    operation.cancel();
+                }
+            }
+        }
+    }
+
+    private void finish(ReaderOperation operation) {
+        synchronized (mOperations) {
+            mOperations.remove(operation);
+        }
+    }
+
+    private void execute(Runnable command, Callback<Exception> callback) {
+
+        try {
+
+            mExecutor.execute(command);
+
+        } catch (RejectedExecutionException e) {
+
+            if (callback != null) {
+                callback.onComplete(e);
+            }
+        }
+    }
+
+    /**
+     * Queues a command that uses the reader, for example to check the state
+     * of its slots.
+     *
+     * @param command
+     *            the command, run on the worker thread.
+     * @return false if the worker has stopped and the command was dropped.
+     */
+    boolean submit(Runnable command) {
+
+        try {
+            mExecutor.execute(command);
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Closes the reader on the worker thread and stops the worker.
+     */
+    void shutdown() {
+
+        synchronized (mOperations) {
+            for (ReaderOperation operation : mOperations) {
+                operation.cancel();
+            }
+        }
+
+        close(null);
+        mExecutor.shutdown();
+    }
+}
@@ -0,0 +1,183 @@
+package com.gracker.myic;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Base64;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class JournalExporterTest {
+
+    private static final int READS = 2500;
+
+    private File mDir;
+    private ReadJournal mJournal;
+
+    @Before
+    public void setUp() throws Exception {
+
+        mDir = Files.createTempDirectory("export").toFile();
+        mJournal = new ReadJournal(new File(mDir, "journal"));
+        mJournal.open();
+
+        for (int i = 0; i < READS; i++) {
+            mJournal.append(i, TestReads.result(TestReads.IC), i % 100 == 0);
+        }
+        mJournal.flush();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mJournal.close();
+        delete(mDir);
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static List<String> lines(File file) throws IOException {
+        return Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void namesPhotoFilesWithoutAnIcByTheirPlaceInTheJournal() throws Exception {
+
+        // Two reads whose IC number failed, in the same millisecond
+        for (int i = 0; i < 2; i++) {
+            mJournal.append(5000, TestReads.result(null), true);
+        }
+        mJournal.flush();
+
+        File output = new File(mDir, "reads.csv");
+        JournalExporter exporter = new JournalExporter(mJournal, output,
+                JournalExporter.Format.CSV, JournalExporter.PhotoMode.FILES);
+        exporter.setTimeRange(5000, 5000);
+
+        assertTrue(exporter.run());
+
+        List<String> lines = lines(output);
+        assertEquals(3, lines.size());
+        assertTrue(lines.get(1).endsWith(",read-" + (READS + 1) + "-5000.jpg"));
+        assertTrue(lines.get(2).endsWith(",read-" + (READS + 2) + "-5000.jpg"));
+        assertEquals(2, new File(mDir, "reads.csv.photos").list().length);
+    }
+
+    @Test
+    public void writesCsvWithPhotoFiles() throws Exception {
+
+        File output = new File(mDir, "reads.csv");
+        JournalExporter exporter = new JournalExporter(mJournal, output,
+                JournalExporter.Format.CSV, JournalExporter.PhotoMode.FILES);
+        exporter.setTimeRange(1000, 1999);
+
+        assertTrue(exporter.run());
+
+        List<String> lines = lines(output);
+        assertEquals(1001, lines.size());
+        assertTrue(lines.get(0).startsWith("time,ic,name,"));
+        assertTrue(lines.get(1).contains("," + TestReads.IC + "," + TestReads.NAME + ","));
+        assertTrue(lines.get(1).endsWith("," + TestReads.IC + "-1000.jpg"));
+        assertTrue(lines.get(2).endsWith(","));
+        assertArrayEquals(TestReads.jpeg(), Files.readAllBytes(
+                new File(mDir, "reads.csv.photos/" + TestReads.IC + "-1000.jpg").toPath()));
+        assertFalse(exporter.getCheckpointFile().exists());
+    }
+
+    @Test
+    public void writesJsonWithInlinePhotos() throws Exception {
+
+        File output = new File(mDir, "reads.ndjson");
+        JournalExporter exporter = new JournalExporter(mJournal, output,
+                JournalExporter.Format.NDJSON, JournalExporter.PhotoMode.BASE64);
+
+        assertTrue(exporter.run());
+
+        List<String> lines = lines(output);
+        assertEquals(READS, lines.size());
+
+        String first = lines.get(0);
+        assertTrue(first.startsWith("{\"time\":\"1970-01-01T00:00:00.000Z\",\"ic\":\"" + TestReads.IC + "\""));
+        String photo = first.substring(first.indexOf("\"photo\":\"") + 9, first.length() - 2);
+        assertArrayEquals(TestReads.jpeg(), Base64.getDecoder().decode(photo));
+        assertFalse(lines.get(1).contains("\"photo\""));
+    }
+
+    @Test
+    public void resumesFromTheLastCheckpoint() throws Exception {
+
+        File full = new File(mDir, "full.ndjson");
+        new JournalExporter(mJournal, full, JournalExporter.Format.NDJSON,
+                JournalExporter.PhotoMode.BASE64).run();
+
+        File output = new File(mDir, "reads.ndjson");
+        final JournalExporter exporter = new JournalExporter(mJournal, output,
+                JournalExporter.Format.NDJSON, JournalExporter.PhotoMode.BASE64);
+        exporter.setListener(new JournalExporter.Listener() {
+
+            @Override
+            public void onProgress(long exported, long scanned, long total) {
+                assertEquals(READS, total);
+                if (scanned == 2 * JournalExporter.CHECKPOINT_INTERVAL) {
+                    exporter.cancel();
+                }
+            }
+        });
+
+        assertFalse(exporter.run());
+        assertTrue(exporter.getCheckpointFile().exists());
+        assertEquals(2 * JournalExporter.CHECKPOINT_INTERVAL, lines(output).size());
+
+        JournalExporter resumed = new JournalExporter(mJournal, output,
+                JournalExporter.Format.NDJSON, JournalExporter.PhotoMode.BASE64);
+        assertTrue(resumed.run());
+
+        assertEquals(lines(full), lines(output));
+        assertFalse(resumed.getCheckpointFile().exists());
+    }
+
+    @Test
+    public void startsOverWhenTheSettingsChange() throws Exception {
+
+        File full = new File(mDir, "full.ndjson");
+        new JournalExporter(mJournal, full, JournalExporter.Format.NDJSON,
+                JournalExporter.PhotoMode.NONE).run();
+
+        File output = new File(mDir, "reads.ndjson");
+        final JournalExporter exporter = new JournalExporter(mJournal, output,
+                JournalExporter.Format.NDJSON, JournalExporter.PhotoMode.BASE64);
+        exporter.setListener(new JournalExporter.Listener() {
+
+            @Override
+            public void onProgress(long exported, long scanned, long total) {
+                if (scanned == JournalExporter.CHECKPOINT_INTERVAL) {
+                    exporter.cancel();
+                }
+            }
+        });
+
+        assertFalse(exporter.run());
+        assertTrue(exporter.getCheckpointFile().exists());
+
+        // Without photos the lines already written would not match
+        JournalExporter changed = new JournalExporter(mJournal, output,
+                JournalExporter.Format.NDJSON, JournalExporter.PhotoMode.NONE);
+        assertTrue(changed.run());
+
+        assertEquals(lines(full), lines(output));
+        assertFalse(changed.getCheckpointFile().exists());
+    }
+}
@@ -0,0 +1,122 @@
+package com.gracker.myic;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.gracker.mykad.ReadIcResult;
+
+import static org.junit.Assert.*;
+
+public class ReadJournalTest {
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("journal", "");
+        mDir.delete();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    private static String ic(int i) {
+        return String.format("%012d", i % 500);
+    }
+
+    @Test
+    public void findsAndLoadsReads() throws Exception {
+
+        ReadJournal journal = new ReadJournal(mDir);
+        journal.open();
+        journal.append(1000, TestReads.result(TestReads.IC), true);
+        journal.append(2000, TestReads.result("880101015555"), false);
+        journal.append(3000, TestReads.result(TestReads.IC), false);
+        journal.flush();
+
+        List<ReadJournal.Entry> entries = journal.find(TestReads.IC);
+        assertEquals(2, entries.size());
+        assertEquals(1000, entries.get(0).time);
+        assertEquals(3000, entries.get(1).time);
+
+        ReadIcResult loaded = journal.load(entries.get(0));
+        assertEquals(TestReads.NAME, loaded.getName());
+        assertEquals(TestReads.DOB, loaded.getDob());
+        assertEquals(TestReads.POSTCODE, loaded.getPostcode());
+        assertArrayEquals(TestReads.jpeg(), loaded.photo);
+        assertNull(journal.load(entries.get(1)).photo);
+
+        assertEquals(1, journal.find(TestReads.IC, 2000, 4000).size());
+        journal.close();
+    }
+
+    @Test
+    public void searchesSealedSegmentsAfterReopening() throws Exception {
+
+        ReadJournal journal = new ReadJournal(mDir, 64 * 1024);
+        journal.open();
+        for (int i = 0; i < 2000; i++) {
+            journal.append(i, TestReads.result(ic(i)), i % 10 == 0);
+        }
+        journal.close();
+
+        assertTrue(new File(mDir, "1.idx").exists());
+
+        journal = new ReadJournal(mDir, 64 * 1024);
+        journal.open();
+        assertEquals(2000, journal.size());
+
+        List<ReadJournal.Entry> entries = journal.find(ic(7));
+        assertEquals(4, entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            assertEquals(7 + i * 500, entries.get(i).time);
+            assertEquals(ic(7), journal.load(entries.get(i)).getIc());
+        }
+
+        journal.append(5000, TestReads.result(ic(7)), false);
+        journal.flush();
+        assertEquals(5, journal.find(ic(7)).size());
+        journal.close();
+    }
+
+    @Test
+    public void dropsAPartlyWrittenRecord() throws Exception {
+
+        ReadJournal journal = new ReadJournal(mDir);
+        journal.open();
+        journal.append(1000, TestReads.result(TestReads.IC), false);
+        journal.append(2000, TestReads.result(TestReads.IC), false);
+        journal.close();
+
+        File segment = new File(mDir, "0.seg");
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        file.setLength(file.length() - 10);
+        file.close();
+
+        journal = new ReadJournal(mDir);
+        journal.open();
+        assertEquals(1, journal.find(TestReads.IC).size());
+
+        journal.append(3000, TestReads.result(TestReads.IC), false);
+        journal.flush();
+
+        List<ReadJournal.Entry> entries = journal.find(TestReads.IC);
+        assertEquals(2, entries.size());
+        assertEquals(TestReads.NAME, journal.load(entries.get(1)).getName());
+        journal.close();
+    }
+}
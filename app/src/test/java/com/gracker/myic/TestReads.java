@@ -0,0 +1,95 @@
+package com.gracker.myic;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+
+import com.gracker.mykad.CardImage;
+import com.gracker.mykad.JpnCommands;
+import com.gracker.mykad.JpnField;
+import com.gracker.mykad.JpnReader;
+import com.gracker.mykad.ReadIcResult;
+
+/**
+ * Reads of a sample MyKad for the journal tests, built through the public
+ * API of the mykad library.
+ */
+final class TestReads {
+
+    static final String NAME = "AHMAD BIN ABDULLAH";
+    static final String IC = "900131105678";
+    static final String DOB = "31-1-1990";
+    static final String POSTCODE = "50480";
+
+    private TestReads() {
+    }
+
+    /**
+     * Returns the card image of the sample card.
+     *
+     * @param ic
+     *            the IC number, or null for a read whose IC field failed.
+     */
+    static CardImage image(String ic) {
+
+        byte[] jpn1 = new byte[CardImage.fileLength(JpnCommands.FILE_JPN1)];
+        put(jpn1, JpnField.NAME, NAME);
+        put(jpn1, JpnField.IC, (ic == null) ? "" : ic);
+        putBcd(jpn1, JpnField.DOB, 0x19, 0x90, 0x01, 0x31);
+
+        byte[] address = new byte[CardImage.fileLength(JpnCommands.FILE_ADDRESS)];
+        putBcd(address, JpnField.POSTCODE, 0x50, 0x48, 0x00);
+
+        CardImage image = new CardImage();
+        image.put(JpnCommands.FILE_JPN1, 0, jpn1, jpn1.length);
+        image.put(JpnCommands.FILE_ADDRESS, 0, address, address.length);
+        image.addFields(EnumSet.of(JpnField.NAME, JpnField.DOB, JpnField.POSTCODE));
+        if (ic != null) {
+            image.addFields(EnumSet.of(JpnField.IC));
+        }
+
+        return image;
+    }
+
+    /**
+     * Returns the sample photo. The journal does not decode it, so any bytes
+     * will do.
+     */
+    static byte[] jpeg() {
+
+        byte[] jpeg = new byte[3000];
+        for (int i = 0; i < jpeg.length; i++) {
+            jpeg[i] = (byte) (i % 0xFF);
+        }
+
+        return jpeg;
+    }
+
+    /**
+     * Returns a complete read of the sample card, with its photo.
+     *
+     * @param ic
+     *            the IC number, or null for a read whose IC field failed.
+     */
+    static ReadIcResult result(String ic) {
+
+        ReadIcResult result = new ReadIcResult();
+        JpnReader.decode(image(ic), result);
+        result.photo = jpeg();
+
+        return result;
+    }
+
+    private static void put(byte[] file, JpnField field, String text) {
+
+        Arrays.fill(file, field.offset, field.end(), (byte) ' ');
+        for (int i = 0; i < text.length() && i < field.length; i++) {
+            file[field.offset + i] = (byte) text.charAt(i);
+        }
+    }
+
+    private static void putBcd(byte[] file, JpnField field, int... bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            file[field.offset + i] = (byte) bytes[i];
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.gracker.mykad;
+
+/**
+ * A command APDU compiled once to its wire bytes.
+ *
+ * Instances are immutable. {@link #getBytes()} returns the backing array so
+ * that it can be handed to {@code Reader.transmit} without a copy; callers
+ * must not modify it.
+ *
+ * @author Jeffrey Loh
+ * @version 1.0, January 2020
+ */
+public final class Apdu {
+
+    private final byte[] mBytes;
+    private final boolean mHasLe;
+
+    private Apdu(byte[] bytes, boolean hasLe) {
+        mBytes = bytes;
+        mHasLe = hasLe;
+    }
+
+    /**
+     * Returns the encoded command. The array is shared and must not be
+     * modified.
+     *
+     * @return the command bytes.
+     */
+    public byte[] getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * Returns the length of the encoded command.
+     *
+     * @return the command length.
+     */
+    public int getLength() {
+        return mBytes.length;
+    }
+
+    /**
+     * Returns the instruction byte of the command.
+     *
+     * @return the INS byte.
+     */
+    int getIns() {
+        return mBytes[1] & 0xFF;
+    }
+
+    /**
+     * Returns the same command with another expected response length, as
+     * asked for by a {@code 6Cxx} status word.
+     *
+     * @param le
+     *            the Le byte, 0 to 255.
+     * @return the command.
+     */
+    Apdu withLe(int le) {
+
+        if (le < 0 || le > 0xFF) {
+            throw new IllegalArgumentException("Invalid Le: " + le);
+        }
+
+        byte[] bytes;
+        if (mHasLe) {
+            bytes = mBytes.clone();
+        } else {
+            bytes = new byte[mBytes.length + 1];
+            System.arraycopy(mBytes, 0, bytes, 0, mBytes.length);
+        }
+        bytes[bytes.length - 1] = (byte) le;
+
+        return new Apdu(bytes, true);
+    }
+
+    @Override
+    public String toString() {
+
+        StringBuilder builder = new StringBuilder(mBytes.length * 3);
+
+        for (int i = 0; i < mBytes.length; i++) {
+
+            if (i > 0) {
+                builder.append(' ');
+            }
+
+            builder.append(Character.toUpperCase(Character.forDigit((mBytes[i] >> 4) & 0xF, 16)));
+            builder.append(Character.toUpperCase(Character.forDigit(mBytes[i] & 0xF, 16)));
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Builds a short (case 1 to 4) command APDU.
+     */
+    static final class Builder {
+
+        private final int mCla;
+        private final int mIns;
+        private int mP1;
+        private int mP2;
+        private byte[] mData;
+        private int mLe = -1;
+
+        /**
+         * Creates a builder for the command.
+         *
+         * @param cla
+         *            the class byte.
+         * @param ins
+         *            the instruction byte.
+         */
+        Builder(int cla, int ins) {
+            mCla = cla;
+            mIns = ins;
+        }
+
+        /**
+         * Sets the parameter bytes.
+         *
+         * @param p1
+         *            the first parameter byte.
+         * @param p2
+         *            the second parameter byte.
+         * @return this builder.
+         */
+        Builder params(int p1, int p2) {
+            mP1 = p1;
+            mP2 = p2;
+            return this;
+        }
+
+        /**
+         * Sets the command data. Lc is derived from its length.
+         *
+         * @param data
+         *            the command data.
+         * @return this builder.
+         */
+        Builder data(byte... data) {
+            if (data.length > 0xFF) {
+                throw new IllegalArgumentException("Data too long: " + data.length);
+            }
+            mData = data;
+            return this;
+        }
+
+        /**
+         * Sets the expected response length.
+         *
+         * @param le
+         *            the Le byte, 0 to 255.
+         * @return this builder.
+         */
+        Builder le(int le) {
+            if (le < 0 || le > 0xFF) {
+                throw new IllegalArgumentException("Invalid Le: " + le);
+            }
+            mLe = le;
+            return this;
+        }
+
+        /**
+         * Encodes the command.
+         *
+         * @return the compiled command.
+         */
+        Apdu build() {
+
+            int dataLength = (mData == null) ? 0 : mData.length;
+            int length = 4 + (dataLength > 0 ? 1 + dataLength : 0) + (mLe >= 0 ? 1 : 0);
+            byte[] bytes = new byte[length];
+            int i = 0;
+
+            bytes[i++] = (byte) mCla;
+            bytes[i++] = (byte) mIns;
+            bytes[i++] = (byte) mP1;
+            bytes[i++] = (byte) mP2;
+
+            if (dataLength > 0) {
+                bytes[i++] = (byte) dataLength;
+                System.arraycopy(mData, 0, bytes, i, dataLength);
+                i += dataLength;
+            }
+
+            if (mLe >= 0) {
+                bytes[i] = (byte) mLe;
+            }
+
+            return new Apdu(bytes, mLe >= 0);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.gracker.mykad;
+
+/**
+ * A response APDU held in a pooled buffer.
+ *
+ * The response is a view: the bytes stay in the pool's buffer and callers
+ * read them through {@link #getBuffer()} and the lengths below instead of
+ * copying them out. Call {@link #release()} once the data is no longer
+ * needed so the buffer can be reused by the next exchange.
+ *
+ * @author Jeffrey Loh
+ * @version 1.0, January 2020
+ */
+public final class ApduResponse {
+
+    private final ResponseBufferPool mPool;
+    private final byte[] mBuffer;
+    private int mLength;
+
+    ApduResponse(ResponseBufferPool pool, int bufferSize) {
+        mPool = pool;
+        mBuffer = new byte[bufferSize];
+    }
+
+    /**
+     * Returns the backing buffer. Valid bytes start at offset 0.
+     *
+     * @return the buffer.
+     */
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * Returns the length of the response including the status word.
+     *
+     * @return the response length.
+     */
+    public int getLength() {
+        return mLength;
+    }
+
+    void setLength(int length) {
+        mLength = length;
+    }
+
+    /**
+     * Returns the length of the response data without the status word.
+     *
+     * @return the data length.
+     */
+    int getDataLength() {
+        return mLength < 2 ? 0 : mLength - 2;
+    }
+
+    /**
+     * Returns the status word.
+     *
+     * @return SW1 and SW2 as one integer, or -1 if the response is too short.
+     */
+    int getSw() {
+        if (mLength < 2) {
+            return -1;
+        }
+        return ((mBuffer[mLength - 2] & 0xFF) << 8) | (mBuffer[mLength - 1] & 0xFF);
+    }
+
+    /**
+     * Returns the response to its pool.
+     */
+    void release() {
+        mLength = 0;
+        mPool.release(this);
+    }
+}
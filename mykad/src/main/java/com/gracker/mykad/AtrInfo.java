@@ -0,0 +1,98 @@
+package com.gracker.mykad;
+
+/**
+ * The protocol options announced in an ATR (ISO 7816-3).
+ *
+ * Protocol masks use the PC/SC values, which are also the values of
+ * {@code Reader.PROTOCOL_T0} and {@code Reader.PROTOCOL_T1}.
+ *
+ * @author Jeffrey Loh
+ * @version 1.0, January 2020
+ */
+final class AtrInfo {
+
+    /** Mask of the T=0 protocol. */
+    static final int PROTOCOL_T0 = 1;
+
+    /** Mask of the T=1 protocol. */
+    static final int PROTOCOL_T1 = 2;
+
+    private final int mProtocols;
+
+    private AtrInfo(int protocols) {
+        mProtocols = protocols;
+    }
+
+    /**
+     * Parses the interface bytes of an ATR.
+     *
+     * A card that does not list any protocol supports T=0 only. A truncated
+     * ATR yields the protocols seen before the end.
+     *
+     * @param atr
+     *            the ATR.
+     * @return the protocol options.
+     */
+    static AtrInfo parse(byte[] atr) {
+
+        if (atr == null || atr.length < 2) {
+            return new AtrInfo(PROTOCOL_T0);
+        }
+
+        int protocols = 0;
+        int i = 1;
+        int y = (atr[i++] >> 4) & 0xF;
+
+        while (true) {
+
+            // Skip TAi, TBi and TCi
+            for (int mask = 0x1; mask <= 0x4; mask <<= 1) {
+                if ((y & mask) != 0) {
+                    i++;
+                }
+            }
+
+            if ((y & 0x8) == 0 || i >= atr.length) {
+                break;
+            }
+
+            // TDi: next protocol and presence of the next interface bytes
+            int td = atr[i++] & 0xFF;
+            int protocol = td & 0xF;
+            if (protocol < 2) {
+                protocols |= 1 << protocol;
+            }
+            y = (td >> 4) & 0xF;
+        }
+
+        return new AtrInfo(protocols == 0 ? PROTOCOL_T0 : protocols);
+    }
+
+    /**
+     * Returns the protocols the card supports.
+     *
+     * @return the protocol mask.
+     */
+    int getProtocols() {
+        return mProtocols;
+    }
+
+    /**
+     * Returns true if the card supports T=1.
+     *
+     * @return true if T=1 is supported.
+     */
+    boolean supportsT1() {
+        return (mProtocols & PROTOCOL_T1) != 0;
+    }
+
+    /**
+     * Returns the protocol to ask for: T=1 when the card supports it, which
+     * needs no GET RESPONSE round trips, otherwise T=0.
+     *
+     * @return the preferred protocol.
+     */
+    int getPreferredProtocol() {
+        return supportsT1() ? PROTOCOL_T1 : PROTOCOL_T0;
+    }
+}
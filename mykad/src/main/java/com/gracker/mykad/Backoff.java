@@ -0,0 +1,53 @@
+package com.gracker.mykad;
+
+/**
+ * The waits between attempts at a range that failed.
+ *
+ * A card with poor contact often answers the next attempt, so a failed
+ * range is read again a few times, waiting twice as long each time up to a
+ * small cap, before it is given up on. A cancelled read stops at the next
+ * exchange after the wait.
+ *
+ * @author Jeffrey Loh
+ * @version 1.0, January 2020
+ */
+final class Backoff {
+
+    /** Attempts at a range, the first one included. */
+    static final int ATTEMPTS = 3;
+
+    private static final long FIRST_DELAY_MILLIS = 10;
+    private static final long MAX_DELAY_MILLIS = 80;
+
+    private Backoff() {
+    }
+
+    /**
+     * Returns the wait before an attempt.
+     *
+     * @param retry
+     *            the number of attempts already failed, from 1.
+     * @return the wait in milliseconds.
+     */
+    static long delayMillis(int retry) {
+        return Math.min(MAX_DELAY_MILLIS, FIRST_DELAY_MILLIS << Math.min(retry - 1, 16));
+    }
+
+    /**
+     * Waits before an attempt.
+     *
+     * @param retry
+     *            the number of attempts already failed, from 1.
+     * @throws ReadCancelledException
+     *             if the thread is interrupted.
+     */
+    static void pause(int retry) throws ReadCancelledException {
+
+        try {
+            Thread.sleep(delayMillis(retry));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ReadCancelledException("Read interrupted", false);
+        }
+    }
+}
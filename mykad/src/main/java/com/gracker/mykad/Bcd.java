@@ -0,0 +1,73 @@
+package com.gracker.mykad;
+
+/**
+ * Decodes the BCD values stored on MyKad.
+ *
+ * @author Jeffrey Loh
+ * @version 1.0, January 2020
+ */
+final class Bcd {
+
+    private Bcd() {
+    }
+
+    /**
+     * Decodes one BCD byte.
+     *
+     * @param b
+     *            the byte.
+     * @return the value, 0 to 99 for valid BCD.
+     */
+    static int decode(byte b) {
+        return ((b >> 4) & 0xF) * 10 + (b & 0xF);
+    }
+
+    /**
+     * Reads a 4 byte BCD date (year, month, day) as a number.
+     *
+     * @param dataBytes
+     *            the data.
+     * @param offset
+     *            the offset of the date.
+     * @return the date as yyyymmdd.
+     */
+    static int date(byte[] dataBytes, int offset) {
+
+        int year = decode(dataBytes[offset]) * 100 + decode(dataBytes[offset + 1]);
+        int month = decode(dataBytes[offset + 2]);
+        int day = decode(dataBytes[offset + 3]);
+
+        return (year * 100 + month) * 100 + day;
+    }
+
+    /**
+     * Formats a date read by {@link #date(byte[], int)}.
+     *
+     * @param date
+     *            the date as yyyymmdd.
+     * @return the date as day-month-year.
+     */
+    static String formatDate(int date) {
+        return (date % 100) + "-" + (date / 100 % 100) + "-" + (date / 10000);
+    }
+
+    /**
+     * Reads a 3 byte BCD postcode, whose last digit is padding, as a
+     * number.
+     *
+     * @param dataBytes
+     *            the data.
+     * @param offset
+     *            the offset of the postcode.
+     * @return the postcode.
+     */
+    static int postcode(byte[] dataBytes, int offset) {
+
+        int postcode = 0;
+        for (int b = offset; b < offset + 3; b++) {
+            postcode = (postcode * 100) + decode(dataBytes[b]);
+        }
+
+        return postcode / 10;
+    }
+}
@@ -0,0 +1,231 @@
+package com.gracker.mykad;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The results of recent reads, kept in memory so that a card tapped again
+ * soon is not read again.
+ *
+ * A card is identified by its IC number together with its ATR, which the
+ * reader can get with a single short read. Entries expire after a fixed
+ * time, and the least recently used entries are dropped when the cache holds
+ * too many entries or too many photo bytes. The cache is shared by every
+ * reader.
+ *
+ * @author Jeffrey Loh
+ * @version 1.0, January 2020
+ */
+public final class CardCache {
+
+    /** Bytes counted for an entry besides its photo. */
+    private static final int ENTRY_OVERHEAD = 1024;
+
+    private static final class Entry {
+
+        final JpnRecord record;
+        final Set<JpnField> fields;
+        final byte[] photo;
+        final long time;
+        final int size;
+
+        Entry(JpnRecord record, Set<JpnField> fields, byte[] photo, long time) {
+            this.record = record;
+            this.fields = fields;
+            this.photo = photo;
+            this.time = time;
+            this.size = ENTRY_OVERHEAD + ((photo == null) ? 0 : photo.length);
+        }
+    }
+
+    private final int mMaxEntries;
+    private final long mMaxBytes;
+    private final long mTtlNanos;
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long mBytes;
+    private long mHits;
+    private long mMisses;
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param maxEntries
+     *            the most entries kept.
+     * @param maxBytes
+     *            the most bytes kept, counting the photos.
+     * @param ttlMillis
+     *            how long an entry stays valid.
+     */
+    public CardCache(int maxEntries, long maxBytes, long ttlMillis) {
+        mMaxEntries = maxEntries;
+        mMaxBytes = maxBytes;
+        mTtlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    private static String key(String ic, byte[] atr) {
+        return ic + "/" + Hex.toHexString(atr);
+    }
+
+    /**
+     * Looks up a card.
+     *
+     * @param ic
+     *            the IC number.
+     * @param atr
+     *            the ATR.
+     * @param fields
+     *            the fields needed.
+     * @param photo
+     *            true if the photo is needed.
+     * @return the cached result, or null if the card is not cached with
+     *         those fields.
+     */
+    ReadIcResult get(String ic, byte[] atr, Set<JpnField> fields, boolean photo) {
+        return get(ic, atr, fields, photo, System.nanoTime());
+    }
+
+    synchronized ReadIcResult get(String ic, byte[] atr, Set<JpnField> fields,
+            boolean photo, long now) {
+
+        String key = key(ic, atr);
+        Entry entry = mEntries.get(key);
+
+        if (entry != null && now - entry.time > mTtlNanos) {
+            remove(key);
+            entry = null;
+        }
+
+        if (entry == null || !entry.fields.containsAll(fields)
+                || (photo && entry.photo == null)) {
+            mMisses++;
+            return null;
+        }
+
+        mHits++;
+
+        ReadIcResult result = new ReadIcResult();
+        result.record = entry.record;
+        result.photo = photo ? entry.photo : null;
+
+        return result;
+    }
+
+    /**
+     * Stores the result of a successful read. A card already cached keeps
+     * what the new read did not get: its photo when the read had none, and
+     * the fields the read did not ask for.
+     *
+     * @param ic
+     *            the IC number.
+     * @param atr
+     *            the ATR.
+     * @param fields
+     *            the fields read.
+     * @param result
+     *            the result. Its photo must not be changed afterwards.
+     */
+    void put(String ic, byte[] atr, Set<JpnField> fields, ReadIcResult result) {
+        put(ic, atr, fields, result, System.nanoTime());
+    }
+
+    synchronized void put(String ic, byte[] atr, Set<JpnField> fields,
+            ReadIcResult result, long now) {
+
+        String key = key(ic, atr);
+        Entry old = mEntries.get(key);
+        remove(key);
+
+        JpnRecord record = result.record;
+        byte[] photo = result.photo;
+
+        if (old != null && now - old.time <= mTtlNanos) {
+            if (photo == null) {
+                photo = old.photo;
+            }
+            if (!fields.containsAll(old.fields)) {
+                record = merge(old.record, result.record, fields);
+                fields = record.getImage().getFields();
+            }
+        }
+
+        Entry entry = new Entry(record, fields, photo, now);
+        mEntries.put(key, entry);
+        mBytes += entry.size;
+
+        // Drop the least recently used entries
+        Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+        while ((mEntries.size() > mMaxEntries || mBytes > mMaxBytes) && it.hasNext()) {
+            Entry eldest = it.next().getValue();
+            if (eldest == entry) {
+                break;
+            }
+            mBytes -= eldest.size;
+            it.remove();
+        }
+    }
+
+    /**
+     * Returns a record with the fields of an older read, overwritten by
+     * those of a newer one.
+     */
+    private static JpnRecord merge(JpnRecord older, JpnRecord newer, Set<JpnField> fields) {
+
+        CardImage image = new CardImage();
+        copy(older.getImage(), older.getImage().getFields(), image);
+        copy(newer.getImage(), fields, image);
+
+        return new JpnRecord(image);
+    }
+
+    private static void copy(CardImage from, Set<JpnField> fields, CardImage to) {
+
+        for (JpnField field : fields) {
+            byte[] file = from.getFile(field.file);
+            to.put(field.file, field.offset,
+                    Arrays.copyOfRange(file, field.offset, field.end()), field.length);
+        }
+
+        to.addFields(fields);
+    }
+
+    private void remove(String key) {
+        Entry entry = mEntries.remove(key);
+        if (entry != null) {
+            mBytes -= entry.size;
+        }
+    }
+
+    /**
+     * Forgets every cached card. The hit and miss counts are kept.
+     */
+    public synchronized void clear() {
+        mEntries.clear();
+        mBytes = 0;
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    /**
+     * Returns the share of lookups that found the card.
+     *
+     * @return the hit rate, 0 to 1.
+     */
+    public synchronized double getHitRate() {
+        long lookups = mHits + mMisses;
+        return (lookups == 0) ? 0 : (double) mHits / lookups;
+    }
+}
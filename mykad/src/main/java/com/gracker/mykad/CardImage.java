@@ -0,0 +1,102 @@
+package com.gracker.mykad;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * The raw bytes read from the JPN files.
+ *
+ * Each file is kept as one array indexed by file offset, so a field is found
+ * at {@link JpnField#offset} of {@link #getFile(int)}.
+ *
+ * @author Jeffrey Loh
+ * @version 1.0, January 2020
+ */
+public final class CardImage {
+
+    /** The number of files, so file numbers run from 0 to FILE_COUNT - 1. */
+    public static final int FILE_COUNT = ReadPlanner.FILE_END.length;
+
+    private final byte[][] mFiles = new byte[ReadPlanner.FILE_END.length][];
+    private final EnumSet<JpnField> mFields = EnumSet.noneOf(JpnField.class);
+
+    /**
+     * Returns true if the field was read.
+     *
+     * @param field
+     *            the field.
+     * @return true if the field was read.
+     */
+    public boolean contains(JpnField field) {
+        return mFields.contains(field);
+    }
+
+    /**
+     * Returns the fields that were read.
+     *
+     * @return the fields.
+     */
+    public Set<JpnField> getFields() {
+        return mFields;
+    }
+
+    /**
+     * Returns the bytes of a file, or null if nothing was read from it.
+     *
+     * @param file
+     *            the file number.
+     * @return the file bytes.
+     */
+    public byte[] getFile(int file) {
+        return mFiles[file];
+    }
+
+    /**
+     * Returns the length of a file as kept in the image: the end of its
+     * readable area.
+     *
+     * @param file
+     *            the file number.
+     * @return the length in bytes, 0 if no fields are read from the file.
+     */
+    public static int fileLength(int file) {
+        return ReadPlanner.FILE_END[file];
+    }
+
+    /**
+     * Copies bytes into a file, creating it at its full length first.
+     *
+     * @param file
+     *            the file number.
+     * @param offset
+     *            the offset in the file.
+     * @param buffer
+     *            the bytes.
+     * @param length
+     *            the number of bytes to copy.
+     */
+    public void put(int file, int offset, byte[] buffer, int length) {
+
+        byte[] bytes = mFiles[file];
+        if (bytes == null) {
+            bytes = new byte[ReadPlanner.FILE_END[file]];
+            mFiles[file] = bytes;
+        }
+
+        System.arraycopy(buffer, 0, bytes, offset, length);
+    }
+
+    /**
+     * Marks fields as read.
+     *
+     * @param fields
+     *            the fields.
+     */
+    public void addFields(Set<JpnField> fields) {
+        mFields.addAll(fields);
+    }
+
+    void removeFields(Set<JpnField> fields) {
+        mFields.removeAll(fields);
+    }
+}
@@ -0,0 +1,176 @@
+package com.gracker.mykad;
+
+import java.util.Arrays;
+
+/**
+ * What is known about the card currently in a slot.
+ *
+ * The session remembers the ATR, the protocol, the selected application and
+ * the transfer length from the last power-up, so that another read of the
+ * same card can skip the reset and the application select. It is
+ * invalidated when an exchange fails, and forgotten when the card is
+ * removed.
+ *
+ * A photo transfer that fails part way leaves the chunks it read here with
+ * the IC number of the card, and the next transfer from a card with the
+ * same IC number carries on after them. The ATR is not used for this, as
+ * MyKad cards share ATRs. Removing the card drops the chunks.
+ *
+ * @author Jeffrey Loh
+ * @version 1.0, January 2020
+ */
+final class CardSession {
+
+    private byte[] mAtr;
+    private int mProtocol;
+    private int mTransferLength;
+    private volatile boolean mSelected;
+    private byte[] mPartialPhoto;
+    private String mPartialPhotoIc;
+    private int mPartialPhotoChunk;
+    private int mGeneration;
+
+    /**
+     * Returns true if the card is powered and the JPN application selected.
+     *
+     * @return true if the session can be reused.
+     */
+    boolean isWarm() {
+        return mSelected;
+    }
+
+    /**
+     * Returns the ATR of the card.
+     *
+     * @return the ATR, or null if the card has not been powered.
+     */
+    byte[] getAtr() {
+        return mAtr;
+    }
+
+    /**
+     * Returns the protocol in use.
+     *
+     * @return the protocol.
+     */
+    int getProtocol() {
+        return mProtocol;
+    }
+
+    int getTransferLength() {
+        return mTransferLength;
+    }
+
+    void setTransferLength(int length) {
+        mTransferLength = length;
+    }
+
+    /**
+     * Records a power-up. The card starts with no application selected and
+     * no transfer length.
+     *
+     * @param atr
+     *            the ATR.
+     * @param protocol
+     *            the protocol.
+     */
+    void powered(byte[] atr, int protocol) {
+        mAtr = atr;
+        mProtocol = protocol;
+        mTransferLength = 0;
+        mSelected = false;
+    }
+
+    /**
+     * Records that the JPN application is selected.
+     */
+    void selected() {
+        mSelected = true;
+    }
+
+    /**
+     * Marks the session cold. The next read starts with a cold reset.
+     */
+    void invalidate() {
+        mSelected = false;
+        mTransferLength = 0;
+    }
+
+    /**
+     * Forgets the card, including any photo read part way.
+     */
+    synchronized void forget() {
+        invalidate();
+        mAtr = null;
+        clearPartialPhoto();
+        mGeneration++;
+    }
+
+    /**
+     * Returns a number that changes whenever the card is forgotten.
+     *
+     * @return the generation.
+     */
+    synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Keeps the photo chunks read before a transfer failed, unless the card
+     * was forgotten since the transfer started.
+     *
+     * @param ic
+     *            the IC number of the card.
+     * @param photo
+     *            the photo buffer.
+     * @param length
+     *            the length read, a whole number of chunks.
+     * @param chunkSize
+     *            the chunk size.
+     * @param generation
+     *            the generation when the transfer started.
+     */
+    synchronized void keepPartialPhoto(String ic, byte[] photo, int length,
+            int chunkSize, int generation) {
+
+        if (generation == mGeneration && length > 0) {
+            mPartialPhotoIc = ic;
+            mPartialPhoto = Arrays.copyOf(photo, length);
+            mPartialPhotoChunk = chunkSize;
+        }
+    }
+
+    /**
+     * Returns true if photo chunks are kept from a failed transfer.
+     *
+     * @return true if there are kept chunks.
+     */
+    synchronized boolean hasPartialPhoto() {
+        return mPartialPhoto != null;
+    }
+
+    /**
+     * Returns the photo chunks kept from a failed transfer of a card.
+     *
+     * @param ic
+     *            the IC number of the card.
+     * @return the chunks, or null if there are none for that card.
+     */
+    synchronized byte[] getPartialPhoto(String ic) {
+        return (ic != null && ic.equals(mPartialPhotoIc)) ? mPartialPhoto : null;
+    }
+
+    /**
+     * Returns the chunk size of the kept photo chunks.
+     *
+     * @return the chunk size.
+     */
+    synchronized int getPartialPhotoChunk() {
+        return mPartialPhotoChunk;
+    }
+
+    synchronized void clearPartialPhoto() {
+        mPartialPhoto = null;
+        mPartialPhotoIc = null;
+    }
+}
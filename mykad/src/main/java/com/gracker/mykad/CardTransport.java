@@ -0,0 +1,114 @@
+package com.gracker.mykad;
+
+/**
+ * The link to the card in a slot: power, protocol and APDU exchange.
+ *
+ * The read engine only talks to the card through this interface, so it can
+ * run against a reader, a recorded trace or a simulated card. The constants
+ * have the values used by the ACS reader library and PC/SC.
+ *
+ * @author Jeffrey Loh
+ * @version 1.0, January 2020
+ */
+public interface CardTransport {
+
+    /** Power action: power the card down. */
+    int CARD_POWER_DOWN = 0;
+
+    /** Power action: cold reset. */
+    int CARD_COLD_RESET = 1;
+
+    /** Power action: warm reset. */
+    int CARD_WARM_RESET = 2;
+
+    /** Card state: unknown. */
+    int CARD_UNKNOWN = 0;
+
+    /** Card state: no card in the slot. */
+    int CARD_ABSENT = 1;
+
+    /** Card state: a card is present but not powered. */
+    int CARD_PRESENT = 2;
+
+    /** Card state: the card is powered. */
+    int CARD_POWERED = 4;
+
+    /** Card state: the card is powered and a protocol can be set. */
+    int CARD_NEGOTIABLE = 5;
+
+    /** Card state: the card is powered and its protocol is set. */
+    int CARD_SPECIFIC = 6;
+
+    /** Protocol: none set. */
+    int PROTOCOL_UNDEFINED = 0;
+
+    /** Protocol: T=0. */
+    int PROTOCOL_T0 = 1;
+
+    /** Protocol: T=1. */
+    int PROTOCOL_T1 = 2;
+
+    /**
+     * Powers, resets or powers down the card.
+     *
+     * @param slotNum
+     *            the slot number.
+     * @param action
+     *            the power action.
+     * @return the ATR, or null when powering down.
+     * @throws SmartCardException
+     *             if the card cannot be powered.
+     */
+    byte[] power(int slotNum, int action) throws SmartCardException;
+
+    /**
+     * Sets the protocol of a powered card.
+     *
+     * @param slotNum
+     *            the slot number.
+     * @param preferredProtocols
+     *            the acceptable protocols.
+     * @return the protocol set.
+     * @throws SmartCardException
+     *             if no acceptable protocol can be set.
+     */
+    int setProtocol(int slotNum, int preferredProtocols) throws SmartCardException;
+
+    /**
+     * Returns the protocol in use.
+     *
+     * @param slotNum
+     *            the slot number.
+     * @return the protocol.
+     */
+    int getProtocol(int slotNum);
+
+    /**
+     * Returns the state of the slot.
+     *
+     * @param slotNum
+     *            the slot number.
+     * @return the card state.
+     */
+    int getState(int slotNum);
+
+    /**
+     * Sends a command APDU and receives the response APDU.
+     *
+     * @param slotNum
+     *            the slot number.
+     * @param command
+     *            the command buffer.
+     * @param commandLength
+     *            the command length.
+     * @param response
+     *            the response buffer.
+     * @param responseLength
+     *            the size of the response buffer.
+     * @return the response length.
+     * @throws SmartCardException
+     *             if the exchange fails.
+     */
+    int transmit(int slotNum, byte[] command, int commandLength,
+            byte[] response, int responseLength) throws SmartCardException;
+}
@@ -0,0 +1,69 @@
+package com.gracker.mykad;
+
+/**
+ * Converts bytes to HEX strings.
+ *
+ * @author Jeffrey Loh
+ * @version 1.0, January 2020
+ */
+public final class Hex {
+
+    private static final char[] DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private Hex() {
+    }
+
+    /**
+     * Converts the integer to HEX string, with an even number of digits.
+     *
+     * @param i
+     *            the integer.
+     * @return the HEX string.
+     */
+    public static String toHexString(int i) {
+
+        String hexString = Integer.toHexString(i);
+        if (hexString.length() % 2 != 0) {
+            hexString = "0" + hexString;
+        }
+
+        return hexString.toUpperCase();
+    }
+
+    /**
+     * Converts the byte array to HEX string, each byte followed by a space.
+     *
+     * @param buffer
+     *            the buffer.
+     * @return the HEX string.
+     */
+    public static String toHexString(byte[] buffer) {
+        return toHexString(buffer, 0, buffer.length);
+    }
+
+    /**
+     * Converts part of a byte array to HEX string, each byte followed by a
+     * space.
+     *
+     * @param buffer
+     *            the buffer.
+     * @param offset
+     *            the offset of the first byte.
+     * @param length
+     *            the number of bytes.
+     * @return the HEX string.
+     */
+    public static String toHexString(byte[] buffer, int offset, int length) {
+
+        char[] chars = new char[length * 3];
+
+        for (int i = 0; i < length; i++) {
+            int b = buffer[offset + i];
+            chars[i * 3] = DIGITS[(b >> 4) & 0xF];
+            chars[i * 3 + 1] = DIGITS[b & 0xF];
+            chars[i * 3 + 2] = ' ';
+        }
+
+        return new String(chars);
+    }
+}
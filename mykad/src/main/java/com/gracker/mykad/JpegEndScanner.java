@@ -0,0 +1,184 @@
+package com.gracker.mykad;
+
+/**
+ * Finds the end of a JPEG image while its bytes arrive.
+ *
+ * The scanner walks the marker segments and skips their payload, then looks
+ * for the EOI marker in the entropy-coded data. This lets the photo transfer
+ * stop at the real end of the image instead of reading the whole photo file.
+ *
+ * @author Jeffrey Loh
+ * @version 1.0, January 2020
+ */
+final class JpegEndScanner {
+
+    private static final int STATE_SOI = 0;
+    private static final int STATE_SOI_CODE = 1;
+    private static final int STATE_MARKER = 2;
+    private static final int STATE_MARKER_CODE = 3;
+    private static final int STATE_LENGTH_HIGH = 4;
+    private static final int STATE_LENGTH_LOW = 5;
+    private static final int STATE_SKIP = 6;
+    private static final int STATE_ENTROPY = 7;
+    private static final int STATE_ENTROPY_FF = 8;
+    private static final int STATE_DONE = 9;
+    private static final int STATE_INVALID = 10;
+
+    private int mState;
+    private int mPosition;
+    private int mSkip;
+    private boolean mScan;
+    private int mEnd;
+
+    JpegEndScanner() {
+        reset();
+    }
+
+    /**
+     * Prepares the scanner for a new image.
+     */
+    void reset() {
+        mState = STATE_SOI;
+        mPosition = 0;
+        mSkip = 0;
+        mScan = false;
+        mEnd = -1;
+    }
+
+    /**
+     * Returns true unless the data seen so far is not a JPEG image.
+     *
+     * @return true if the data may be a JPEG image.
+     */
+    boolean isJpeg() {
+        return mState != STATE_INVALID;
+    }
+
+    /**
+     * Returns the image length once the EOI marker has been seen.
+     *
+     * @return the image length, or -1 if the end is not known yet.
+     */
+    int getEnd() {
+        return mEnd;
+    }
+
+    /**
+     * Returns true once entropy-coded data has arrived, which is when a
+     * partial image can first be decoded.
+     *
+     * @return true if scan data has been seen.
+     */
+    boolean hasScanData() {
+        return mState == STATE_ENTROPY || mState == STATE_ENTROPY_FF
+                || mState == STATE_DONE;
+    }
+
+    /**
+     * Scans the next part of the image.
+     *
+     * @param buffer
+     *            the buffer.
+     * @param offset
+     *            the offset of the data.
+     * @param length
+     *            the length of the data.
+     * @return the image length once the EOI marker has been seen, otherwise
+     *         -1.
+     */
+    int feed(byte[] buffer, int offset, int length) {
+
+        int end = offset + length;
+
+        for (int i = offset; i < end && mState < STATE_DONE; i++, mPosition++) {
+
+            int b = buffer[i] & 0xFF;
+
+            switch (mState) {
+
+            case STATE_SOI:
+                mState = (b == 0xFF) ? STATE_SOI_CODE : STATE_INVALID;
+                break;
+
+            case STATE_SOI_CODE:
+                mState = (b == 0xD8) ? STATE_MARKER : STATE_INVALID;
+                break;
+
+            case STATE_MARKER:
+                mState = (b == 0xFF) ? STATE_MARKER_CODE : STATE_INVALID;
+                break;
+
+            case STATE_MARKER_CODE:
+                onMarker(b);
+                break;
+
+            case STATE_LENGTH_HIGH:
+                mSkip = b << 8;
+                mState = STATE_LENGTH_LOW;
+                break;
+
+            case STATE_LENGTH_LOW:
+                mSkip = (mSkip | b) - 2;
+                if (mSkip < 0) {
+                    mState = STATE_INVALID;
+                } else {
+                    mState = (mSkip == 0) ? afterSegment() : STATE_SKIP;
+                }
+                break;
+
+            case STATE_SKIP:
+                if (--mSkip == 0) {
+                    mState = afterSegment();
+                }
+                break;
+
+            case STATE_ENTROPY:
+                if (b == 0xFF) {
+                    mState = STATE_ENTROPY_FF;
+                }
+                break;
+
+            case STATE_ENTROPY_FF:
+                if (b == 0x00 || (b >= 0xD0 && b <= 0xD7)) {
+                    // Stuffed byte or restart marker
+                    mState = STATE_ENTROPY;
+                } else if (b != 0xFF) {
+                    // Next segment, e.g. another scan of a progressive image
+                    onMarker(b);
+                }
+                break;
+            }
+        }
+
+        return mEnd;
+    }
+
+    private void onMarker(int code) {
+
+        if (code == 0xFF) {
+
+            // Fill byte
+            return;
+        }
+
+        if (code == 0xD9) {
+
+            mEnd = mPosition + 1;
+            mState = STATE_DONE;
+
+        } else if (code == 0x01 || (code >= 0xD0 && code <= 0xD8)) {
+
+            // Markers without a payload
+            mState = mScan ? STATE_ENTROPY : STATE_MARKER;
+
+        } else {
+
+            mScan = (code == 0xDA);
+            mState = STATE_LENGTH_HIGH;
+        }
+    }
+
+    private int afterSegment() {
+        return mScan ? STATE_ENTROPY : STATE_MARKER;
+    }
+}
@@ -0,0 +1,180 @@
+package com.gracker.mykad;
+
+/**
+ * The command table for the JPN application on MyKad.
+ *
+ * Every command the reader sends is compiled here once, so the read thread
+ * only passes ready-made byte arrays to the reader.
+ *
+ * @author Jeffrey Loh
+ * @version 1.0, January 2020
+ */
+public final class JpnCommands {
+
+    /** File holding the personal particulars (JPN1-0 and JPN1-1). */
+    public static final int FILE_JPN1 = 0x01;
+
+    /** File holding the photo. */
+    public static final int FILE_PHOTO = 0x02;
+
+    /** File holding the address (JPN1-4). */
+    public static final int FILE_ADDRESS = 0x04;
+
+    /** Largest chunk a single {@code CC 06} read can return. */
+    public static final int MAX_CHUNK = 0xFF;
+
+    /** Offset of the first photo byte in the photo file. */
+    public static final int PHOTO_OFFSET = 0x03;
+
+    /**
+     * Upper bound of the photo size. The photo reads cover the file from
+     * {@link #PHOTO_OFFSET} up to at least {@code PHOTO_OFFSET + PHOTO_MAX}.
+     */
+    public static final int PHOTO_MAX = 4000;
+
+    private static final byte[] JPN_AID = { (byte) 0xA0, 0x00, 0x00, 0x00,
+            0x74, 0x4A, 0x50, 0x4E, 0x00, 0x10 };
+
+    /** Selects the JPN application. */
+    static final Apdu SELECT_APPLICATION = new Apdu.Builder(0x00, 0xA4)
+            .params(0x04, 0x00).data(JPN_AID).build();
+
+    private static final Apdu[] GET_RESPONSE = new Apdu[MAX_CHUNK + 1];
+    private static final Apdu[] SET_LENGTH = new Apdu[MAX_CHUNK + 1];
+    private static final Apdu[] READ = new Apdu[MAX_CHUNK + 1];
+    private static final RangeRead[][] READ_PHOTO = new RangeRead[MAX_CHUNK + 1][];
+
+    private JpnCommands() {
+    }
+
+    /**
+     * Returns the {@code 00 C0} command that fetches the response announced
+     * by a {@code 61xx} status word under T=0.
+     *
+     * @param length
+     *            the number of bytes available, 0 to 255.
+     * @return the command.
+     */
+    static Apdu getResponse(int length) {
+
+        Apdu apdu = GET_RESPONSE[length];
+        if (apdu == null) {
+            apdu = new Apdu.Builder(0x00, 0xC0).le(length).build();
+            GET_RESPONSE[length] = apdu;
+        }
+
+        return apdu;
+    }
+
+    /**
+     * Returns the {@code C8 32} command that sets the transfer length.
+     *
+     * @param length
+     *            the transfer length, 1 to 255.
+     * @return the command.
+     */
+    static Apdu setLength(int length) {
+
+        Apdu apdu = SET_LENGTH[length];
+        if (apdu == null) {
+            apdu = new Apdu.Builder(0xC8, 0x32)
+                    .data((byte) 0x08, (byte) 0x00, (byte) 0x00,
+                            (byte) length, (byte) (length >> 8))
+                    .build();
+            SET_LENGTH[length] = apdu;
+        }
+
+        return apdu;
+    }
+
+    /**
+     * Returns the {@code CC 06} command that reads the selected range.
+     *
+     * @param length
+     *            the number of bytes to read, 1 to 255.
+     * @return the command.
+     */
+    static Apdu read(int length) {
+
+        Apdu apdu = READ[length];
+        if (apdu == null) {
+            apdu = new Apdu.Builder(0xCC, 0x06).le(length).build();
+            READ[length] = apdu;
+        }
+
+        return apdu;
+    }
+
+    /**
+     * Compiles the {@code CC 00} command that selects a range of a file.
+     *
+     * @param file
+     *            the file number.
+     * @param offset
+     *            the offset in the file.
+     * @param length
+     *            the number of bytes.
+     * @return the command.
+     */
+    static Apdu selectRange(int file, int offset, int length) {
+
+        return new Apdu.Builder(0xCC, 0x00)
+                .data((byte) file, (byte) 0x00, (byte) 0x01, (byte) 0x00,
+                        (byte) offset, (byte) (offset >> 8),
+                        (byte) length, (byte) (length >> 8))
+                .build();
+    }
+
+    /**
+     * Returns the commands that read the photo in chunks of the given size,
+     * one entry per chunk. The table is compiled on first use.
+     *
+     * @param chunkSize
+     *            the chunk size, 1 to 255.
+     * @return the chunk reads.
+     */
+    static RangeRead[] photoReads(int chunkSize) {
+
+        RangeRead[] chunks = READ_PHOTO[chunkSize];
+        if (chunks == null) {
+
+            // Enough chunks to reach the end of the photo area
+            int count = (PHOTO_MAX + chunkSize - 1) / chunkSize;
+            chunks = new RangeRead[count];
+
+            for (int i = 0; i < count; i++) {
+                chunks[i] = new RangeRead(FILE_PHOTO,
+                        PHOTO_OFFSET + i * chunkSize, chunkSize);
+            }
+
+            READ_PHOTO[chunkSize] = chunks;
+        }
+
+        return chunks;
+    }
+
+    /**
+     * The three commands that read one range of a file: set length, select
+     * range and read.
+     */
+    static final class RangeRead {
+
+        final int file;
+        final int offset;
+        final int length;
+
+        final Apdu setLength;
+        final Apdu selectRange;
+        final Apdu read;
+
+        RangeRead(int file, int offset, int length) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+
+            setLength = setLength(length);
+            selectRange = selectRange(file, offset, length);
+            read = read(length);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.gracker.mykad;
+
+/**
+ * The fields of the JPN application, with their location on the card.
+ *
+ * Offsets are absolute offsets in the file, so that fields from different
+ * records of the same file can be planned as one range.
+ *
+ * @author Jeffrey Loh
+ * @version 1.0, January 2020
+ */
+public enum JpnField {
+
+    // JPN1-0
+    ORG_NAME(JpnCommands.FILE_JPN1, 0x03, 150),
+    GMPC_NAME(JpnCommands.FILE_JPN1, 0x03 + 150, 80),
+
+    // JPN1-1
+    NAME(JpnCommands.FILE_JPN1, 0xE9, 40),
+    IC(JpnCommands.FILE_JPN1, 0xE9 + 40, 13),
+    GENDER(JpnCommands.FILE_JPN1, 0xE9 + 53, 1, false),
+    OLD_IC(JpnCommands.FILE_JPN1, 0xE9 + 54, 8, false),
+    DOB(JpnCommands.FILE_JPN1, 0xE9 + 62, 4),
+    BIRTH_PLACE(JpnCommands.FILE_JPN1, 0xE9 + 66, 25, false),
+    ISSUE_DATE(JpnCommands.FILE_JPN1, 0xE9 + 91, 4),
+    CITIZENSHIP(JpnCommands.FILE_JPN1, 0xE9 + 95, 18),
+    RACE(JpnCommands.FILE_JPN1, 0xE9 + 113, 25),
+    RELIGION(JpnCommands.FILE_JPN1, 0xE9 + 138, 11),
+
+    // JPN1-4
+    ADDRESS1(JpnCommands.FILE_ADDRESS, 0x03, 30),
+    ADDRESS2(JpnCommands.FILE_ADDRESS, 0x03 + 30, 30),
+    ADDRESS3(JpnCommands.FILE_ADDRESS, 0x03 + 60, 30),
+    POSTCODE(JpnCommands.FILE_ADDRESS, 0x03 + 90, 3),
+    CITY(JpnCommands.FILE_ADDRESS, 0x03 + 93, 25),
+    STATE(JpnCommands.FILE_ADDRESS, 0x03 + 118, 30);
+
+    /** The file number. */
+    public final int file;
+
+    /** The offset in the file. */
+    public final int offset;
+
+    /** The length in bytes. */
+    public final int length;
+
+    /**
+     * Whether the text is returned without its padding. Gender, old IC and
+     * birth place have always been returned as stored on the card.
+     */
+    public final boolean trimmed;
+
+    JpnField(int file, int offset, int length) {
+        this(file, offset, length, true);
+    }
+
+    JpnField(int file, int offset, int length, boolean trimmed) {
+        this.file = file;
+        this.offset = offset;
+        this.length = length;
+        this.trimmed = trimmed;
+    }
+
+    /**
+     * Returns the offset just past the field.
+     *
+     * @return the end offset.
+     */
+    public int end() {
+        return offset + length;
+    }
+}
@@ -0,0 +1,242 @@
+package com.gracker.mykad;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Reads the JPN application of a MyKad through a reader session.
+ *
+ * A reader is used by one thread at a time; reads on different readers can
+ * run in parallel. With a {@link CardCache} the reader first reads the IC
+ * number alone, and returns the cached result of a card read recently. The
+ * cache is left out while the session's transport is recording a trace, so
+ * that the trace holds full reads that a replay without the cache repeats.
+ *
+ * @author Jeffrey Loh
+ * @version 1.0, January 2020
+ */
+public final class JpnReader {
+
+    /** The fields read to identify a card, for the cache and kept photo chunks. */
+    static final Set<JpnField> IDENTITY = EnumSet.of(JpnField.IC);
+
+    private final ReaderSession mSession;
+    private final PhotoTransfer mPhotoTransfer;
+    private volatile CardCache mCache;
+
+    /**
+     * Creates a JPN reader.
+     *
+     * @param session
+     *            the reader session.
+     */
+    public JpnReader(ReaderSession session) {
+        mSession = session;
+        mPhotoTransfer = new PhotoTransfer(session);
+    }
+
+    /**
+     * Sets the cache of recent results.
+     *
+     * @param cache
+     *            the cache, or null to read every card in full.
+     */
+    public void setCache(CardCache cache) {
+        mCache = cache;
+    }
+
+    /**
+     * Returns the reader session.
+     *
+     * @return the session.
+     */
+    ReaderSession getSession() {
+        return mSession;
+    }
+
+    /**
+     * Reads the fields, and the photo if asked, from the card.
+     *
+     * The card is powered and the JPN application selected unless the card
+     * session from an earlier read is still warm, so a later read of the same
+     * card (for example the photo after the text) starts right away.
+     *
+     * A failed file range or photo chunk is read again a few times before
+     * giving up. Fields that still cannot be read are left null and listed
+     * in {@link ReadIcResult#fieldErrors}; a photo that cannot be read is
+     * left null with its error in {@link ReadIcResult#photoError}, and the
+     * chunks read so far are kept so that the next read of a card with the
+     * same IC number carries on after them. The IC number is only read for
+     * this, if it was not among the fields, when chunks are to be kept or
+     * resumed. {@link ReadIcResult#e} is only set when the
+     * card cannot be read at all or the read was cancelled.
+     *
+     * @param slotNum
+     *            the slot number.
+     * @param fields
+     *            the fields to read.
+     * @param readPhoto
+     *            true to read the photo.
+     * @param photoListener
+     *            the listener for the photo while it arrives, or null.
+     * @return the result.
+     */
+    public ReadIcResult read(int slotNum, Set<JpnField> fields, boolean readPhoto,
+            PhotoTransfer.Listener photoListener) {
+
+        long start = System.nanoTime();
+        ReadIcResult result = readCard(slotNum, fields, readPhoto, photoListener);
+
+        ReadStats stats = mSession.getStats();
+        stats.record(ReadStats.Phase.READ, System.nanoTime() - start);
+        if (result.e != null) {
+            stats.error(ReadStats.Phase.READ);
+        }
+
+        return result;
+    }
+
+    private ReadIcResult readCard(int slotNum, Set<JpnField> fields,
+            boolean readPhoto, PhotoTransfer.Listener photoListener) {
+
+        ReadIcResult result = new ReadIcResult();
+
+        try {
+            connect(slotNum);
+        } catch (Exception e) {
+            mSession.invalidate(slotNum);
+            result.e = e;
+            return result;
+        }
+
+        CardCache cache = isRecording() ? null : mCache;
+        String ic = null;
+        byte[] atr = null;
+
+        if (cache != null) {
+
+            try {
+                ic = new JpnRecord(ReadPlanner.plan(IDENTITY).execute(mSession, slotNum, null))
+                        .getIc();
+                atr = mSession.getCard(slotNum).getAtr();
+            } catch (Exception e) {
+                mSession.invalidate(slotNum);
+                result.e = e;
+                return result;
+            }
+
+            if (ic == null || ic.isEmpty()) {
+                cache = null;
+            } else {
+                ReadIcResult cached = cache.get(ic, atr, fields, readPhoto);
+                if (cached != null) {
+                    if (cached.photo != null && photoListener != null) {
+                        photoListener.onPhotoData(cached.photo, cached.photo.length, true);
+                    }
+                    return cached;
+                }
+            }
+        }
+
+        CardImage image;
+
+        try {
+            image = ReadPlanner.plan(fields).execute(mSession, slotNum, result.fieldErrors);
+            decode(image, result);
+        } catch (Exception e) {
+            mSession.invalidate(slotNum);
+            result.e = e;
+            return result;
+        }
+
+        // The plan may read more fields than asked for
+        result.fieldErrors.keySet().retainAll(fields);
+
+        if (!result.fieldErrors.isEmpty()) {
+            mSession.invalidate(slotNum);
+            if (result.fieldErrors.keySet().containsAll(fields)) {
+                result.e = result.fieldErrors.get(fields.iterator().next());
+                return result;
+            }
+        }
+
+        if (readPhoto) {
+            try {
+                // A photo read part way is only resumed for the same IC
+                // number. The transfer reads it itself if it needs it.
+                String photoIc = (ic != null) ? ic : result.getIc();
+                if (photoIc != null && photoIc.isEmpty()) {
+                    photoIc = null;
+                }
+
+                result.photo = mPhotoTransfer.read(slotNum, photoIc, photoListener);
+            } catch (ReadCancelledException e) {
+                mSession.invalidate(slotNum);
+                result.e = e;
+            } catch (Exception e) {
+                mSession.invalidate(slotNum);
+                result.photoError = e;
+            }
+        }
+
+        if (cache != null && result.isComplete()) {
+            cache.put(ic, atr, image.getFields(), result);
+        }
+
+        return result;
+    }
+
+    private boolean isRecording() {
+        CardTransport transport = mSession.getTransport();
+        return transport instanceof TraceRecorder
+                && ((TraceRecorder) transport).isRecording();
+    }
+
+    /**
+     * Makes sure the card is powered with the JPN application selected,
+     * reusing the card session when the card has stayed powered.
+     *
+     * @param slotNum
+     *            the slot number.
+     * @throws SmartCardException
+     *             if the card cannot be powered or selected.
+     */
+    private void connect(int slotNum) throws SmartCardException {
+
+        CardSession card = mSession.getCard(slotNum);
+        if (card.isWarm() && mSession.isPowered(slotNum)) {
+            return;
+        }
+
+        card = mSession.power(slotNum, 1); // 1 Cold Reset 2 Warm Reset
+
+        // Under T=0 the session fetches the select response itself
+        long start = System.nanoTime();
+        try {
+            int sw = mSession.send(slotNum, JpnCommands.SELECT_APPLICATION);
+            if (!ReaderSession.isSuccess(sw)) {
+                throw new SmartCardException("Select of the JPN application failed: SW "
+                        + Integer.toHexString(sw), sw);
+            }
+        } catch (SmartCardException e) {
+            mSession.getStats().error(ReadStats.Phase.SELECT);
+            throw e;
+        }
+        mSession.getStats().record(ReadStats.Phase.SELECT, System.nanoTime() - start);
+
+        card.selected();
+    }
+
+    /**
+     * Attaches the fields held in a card image to a result. The fields are
+     * decoded when the result is asked for them.
+     *
+     * @param image
+     *            the card image.
+     * @param result
+     *            the result.
+     */
+    public static void decode(CardImage image, ReadIcResult result) {
+        result.record = new JpnRecord(image);
+    }
+}
@@ -0,0 +1,211 @@
+package com.gracker.mykad;
+
+import java.nio.charset.Charset;
+
+/**
+ * A read-only view of the JPN1-0, JPN1-1 and JPN1-4 records held in a
+ * {@link CardImage}.
+ *
+ * Nothing is decoded up front. Text fields are decoded as ISO-8859-1 when
+ * first asked for, without the space and NUL padding, and then kept, so a
+ * caller that only wants the IC number pays for that field alone. Dates and
+ * the postcode are returned as numbers.
+ *
+ * @author Jeffrey Loh
+ * @version 1.0, January 2020
+ */
+public final class JpnRecord {
+
+    /** The card stores text as single bytes. */
+    static final Charset LATIN_1 = Charset.forName("ISO-8859-1");
+
+    private static final JpnField[] FIELDS = JpnField.values();
+
+    private final CardImage mImage;
+    private String[] mText;
+
+    /**
+     * Creates a view of a card image.
+     *
+     * @param image
+     *            the card image.
+     */
+    public JpnRecord(CardImage image) {
+        mImage = image;
+    }
+
+    /**
+     * Returns the card image the record reads from.
+     *
+     * @return the card image.
+     */
+    public CardImage getImage() {
+        return mImage;
+    }
+
+    /**
+     * Returns true if the field was read.
+     *
+     * @param field
+     *            the field.
+     * @return true if the field was read.
+     */
+    public boolean has(JpnField field) {
+        return mImage.contains(field);
+    }
+
+    /**
+     * Returns the file offset of the first byte of a text field that is not
+     * padding.
+     *
+     * @param field
+     *            the field, which must have been read.
+     * @return the start offset, {@link #textEnd(JpnField)} if the field is
+     *         blank.
+     */
+    int textStart(JpnField field) {
+
+        byte[] file = mImage.getFile(field.file);
+        int start = field.offset;
+        int end = field.end();
+
+        while (start < end && isPadding(file[start])) {
+            start++;
+        }
+
+        return start;
+    }
+
+    /**
+     * Returns the file offset just past the last byte of a text field that
+     * is not padding.
+     *
+     * @param field
+     *            the field, which must have been read.
+     * @return the end offset.
+     */
+    int textEnd(JpnField field) {
+
+        byte[] file = mImage.getFile(field.file);
+        int start = field.offset;
+        int end = field.end();
+
+        while (end > start && isPadding(file[end - 1])) {
+            end--;
+        }
+
+        return end;
+    }
+
+    private static boolean isPadding(byte b) {
+        return (b & 0xFF) <= ' ';
+    }
+
+    /**
+     * Returns a text field, without its padding if the field is
+     * {@link JpnField#trimmed}.
+     *
+     * @param field
+     *            the field.
+     * @return the text, or null if the field was not read.
+     */
+    public String getText(JpnField field) {
+
+        if (!has(field)) {
+            return null;
+        }
+
+        if (mText == null) {
+            mText = new String[FIELDS.length];
+        }
+
+        String text = mText[field.ordinal()];
+        if (text == null) {
+            int start = field.trimmed ? textStart(field) : field.offset;
+            int end = field.trimmed ? Math.max(start, textEnd(field)) : field.end();
+            text = new String(mImage.getFile(field.file), start, end - start, LATIN_1);
+            mText[field.ordinal()] = text;
+        }
+
+        return text;
+    }
+
+    /**
+     * Compares a text field with a string without decoding the field.
+     *
+     * @param field
+     *            the field.
+     * @param text
+     *            the text, without padding.
+     * @return true if the field was read and holds the text.
+     */
+    public boolean textEquals(JpnField field, CharSequence text) {
+
+        if (!has(field)) {
+            return false;
+        }
+
+        int start = textStart(field);
+        int end = Math.max(start, textEnd(field));
+        if (end - start != text.length()) {
+            return false;
+        }
+
+        byte[] file = mImage.getFile(field.file);
+        for (int i = start; i < end; i++) {
+            if ((file[i] & 0xFF) != text.charAt(i - start)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns a BCD date field as a number.
+     *
+     * @param field
+     *            {@link JpnField#DOB} or {@link JpnField#ISSUE_DATE}.
+     * @return the date as yyyymmdd, or -1 if the field was not read.
+     */
+    public int getDate(JpnField field) {
+
+        if (!has(field)) {
+            return -1;
+        }
+
+        return Bcd.date(mImage.getFile(field.file), field.offset);
+    }
+
+    /**
+     * Returns the postcode as a number.
+     *
+     * @return the postcode, or -1 if it was not read.
+     */
+    public int getPostcode() {
+
+        if (!has(JpnField.POSTCODE)) {
+            return -1;
+        }
+
+        return Bcd.postcode(mImage.getFile(JpnField.POSTCODE.file), JpnField.POSTCODE.offset);
+    }
+
+    /**
+     * Returns the IC number.
+     *
+     * @return the IC number, or null if it was not read.
+     */
+    public String getIc() {
+        return getText(JpnField.IC);
+    }
+
+    /**
+     * Returns the name.
+     *
+     * @return the name, or null if it was not read.
+     */
+    public String getName() {
+        return getText(JpnField.NAME);
+    }
+}
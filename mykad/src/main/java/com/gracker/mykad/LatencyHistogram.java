@@ -0,0 +1,145 @@
+package com.gracker.mykad;
+
+/**
+ * A latency histogram with log-linear buckets.
+ *
+ * Every power of two is split into {@link #SUB_BUCKETS} buckets, so a
+ * percentile is accurate to within 12.5% from one nanosecond up to about a
+ * minute. Recording only increments counters in a fixed array.
+ *
+ * @author Jeffrey Loh
+ * @version 1.0, January 2020
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BITS = 3;
+    static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    /** Highest bit of the largest value kept apart; larger values share the last bucket. */
+    private static final int MAX_BIT = 36;
+
+    private static final int BUCKETS = (MAX_BIT - SUB_BITS + 2) * SUB_BUCKETS;
+
+    private final long[] mCounts = new long[BUCKETS];
+    private long mCount;
+    private long mSum;
+    private long mMax;
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos
+     *            the latency in nanoseconds.
+     */
+    synchronized void record(long nanos) {
+
+        if (nanos < 0) {
+            nanos = 0;
+        }
+
+        mCounts[bucket(nanos)]++;
+        mCount++;
+        mSum += nanos;
+        if (nanos > mMax) {
+            mMax = nanos;
+        }
+    }
+
+    /**
+     * Returns the number of latencies recorded.
+     *
+     * @return the count.
+     */
+    synchronized long getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the mean latency.
+     *
+     * @return the mean in nanoseconds.
+     */
+    synchronized long getMean() {
+        return (mCount == 0) ? 0 : mSum / mCount;
+    }
+
+    /**
+     * Returns the largest latency.
+     *
+     * @return the maximum in nanoseconds.
+     */
+    synchronized long getMax() {
+        return mMax;
+    }
+
+    /**
+     * Returns the latency below which a share of the recorded latencies
+     * fall, as the upper bound of its bucket.
+     *
+     * @param percentile
+     *            the percentile, 0 to 100.
+     * @return the latency in nanoseconds.
+     */
+    synchronized long getPercentile(double percentile) {
+
+        if (mCount == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(percentile / 100 * mCount);
+        if (rank < 1) {
+            rank = 1;
+        }
+
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), mMax);
+            }
+        }
+
+        return mMax;
+    }
+
+    /**
+     * Forgets every recorded latency.
+     */
+    synchronized void reset() {
+
+        for (int i = 0; i < BUCKETS; i++) {
+            mCounts[i] = 0;
+        }
+
+        mCount = 0;
+        mSum = 0;
+        mMax = 0;
+    }
+
+    static int bucket(long value) {
+
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int bit = 63 - Long.numberOfLeadingZeros(value);
+        if (bit > MAX_BIT) {
+            return BUCKETS - 1;
+        }
+
+        int shift = bit - SUB_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >> shift) & (SUB_BUCKETS - 1));
+    }
+
+    static long upperBound(int bucket) {
+
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+
+        int shift = bucket / SUB_BUCKETS - 1;
+        int sub = bucket % SUB_BUCKETS;
+
+        return ((long) (SUB_BUCKETS + sub + 1) << shift) - 1;
+    }
+}
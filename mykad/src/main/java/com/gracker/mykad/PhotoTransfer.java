@@ -0,0 +1,293 @@
+package com.gracker.mykad;
+
+import java.util.Arrays;
+
+/**
+ * Reads the photo from the card.
+ *
+ * The transfer uses the largest chunk the card and reader accept. A chunk
+ * that fails is read again at the same size, and the size only steps down
+ * when the first chunk is rejected for its length. The size is kept in the
+ * session, and after {@link #PROBE_INTERVAL} clean transfers at a smaller
+ * size the next larger one is tried again, so a card that once answered
+ * badly does not hold the reader at small chunks for good.
+ * It stops as soon as the JPEG end marker has arrived, and the transfer
+ * length is only set again when it changes. A listener can receive the
+ * image as it grows, so that it can be decoded before the transfer ends.
+ *
+ * A transfer that fails part way keeps the chunks it read in the card
+ * session under the IC number of the card, and the next transfer for the
+ * same IC number carries on after them. When the caller does not know the
+ * IC number, it is only read if there are chunks to keep or to resume.
+ *
+ * @author Jeffrey Loh
+ * @version 1.0, January 2020
+ */
+public final class PhotoTransfer {
+
+    private static final int SW_SUCCESS = 0x9000;
+
+    /**
+     * Interface definition for a callback to be invoked while the photo
+     * arrives. It runs on the thread of the transfer.
+     */
+    public interface Listener {
+
+        /**
+         * Called after every chunk once scan data has arrived, and once more
+         * when the image is complete.
+         *
+         * @param photo
+         *            the image so far. It is only valid during the call.
+         * @param length
+         *            the length of the image so far.
+         * @param complete
+         *            true if the whole image has arrived.
+         */
+        void onPhotoData(byte[] photo, int length, boolean complete);
+    }
+
+    /**
+     * Chunk sizes tried in order until one is accepted. 0xFF is the largest
+     * a read can return, so this is only a fallback for readers or cards
+     * that reject it, not a speed-up.
+     */
+    private static final int[] CHUNK_SIZES = { 0xFF, 0xF8, 0xE0, 0xC0, 0x80, 0x40 };
+
+    /** Clean transfers at a smaller chunk size before a larger one is tried. */
+    static final int PROBE_INTERVAL = 16;
+
+    private final ReaderSession mSession;
+    private final byte[] mPhoto = new byte[JpnCommands.PHOTO_MAX + JpnCommands.MAX_CHUNK];
+    private final JpegEndScanner mScanner = new JpegEndScanner();
+    private final ReadStats mStats;
+
+    /**
+     * Creates a photo transfer.
+     *
+     * @param session
+     *            the reader session.
+     */
+    PhotoTransfer(ReaderSession session) {
+        mSession = session;
+        mStats = session.getStats();
+    }
+
+    /**
+     * Reads the photo.
+     *
+     * @param slotNum
+     *            the slot number.
+     * @param ic
+     *            the IC number of the card, or null if it was not read.
+     * @param listener
+     *            the listener for the partial image, or null.
+     * @return the JPEG image.
+     * @throws SmartCardException
+     *             if the photo cannot be read.
+     */
+    byte[] read(int slotNum, String ic, Listener listener) throws SmartCardException {
+
+        long start = System.nanoTime();
+
+        try {
+            byte[] photo = transfer(slotNum, ic, listener);
+            mStats.record(ReadStats.Phase.PHOTO, System.nanoTime() - start);
+            return photo;
+        } catch (SmartCardException e) {
+            mStats.error(ReadStats.Phase.PHOTO);
+            throw e;
+        }
+    }
+
+    private byte[] transfer(int slotNum, String ic, Listener listener)
+            throws SmartCardException {
+
+        CardSession card = mSession.getCard(slotNum);
+        int generation = card.getGeneration();
+        int chunkSize = mSession.getPhotoChunk();
+        int length = 0;
+        int end = -1;
+        int index = 0;
+        int failures = 0;
+        boolean clean = true;
+
+        if (mSession.getCleanPhotoTransfers() >= PROBE_INTERVAL) {
+            chunkSize = largerChunk(chunkSize);
+        }
+
+        mScanner.reset();
+
+        // Carry on after the chunks kept from a transfer that failed
+        if (ic == null && card.hasPartialPhoto()) {
+            ic = readIc(slotNum);
+        }
+        byte[] partial = card.getPartialPhoto(ic);
+        if (partial != null) {
+            card.clearPartialPhoto();
+            chunkSize = card.getPartialPhotoChunk();
+            length = partial.length;
+            index = length / chunkSize;
+            System.arraycopy(partial, 0, mPhoto, 0, length);
+            mScanner.feed(mPhoto, 0, length);
+        }
+
+        while (true) {
+
+            JpnCommands.RangeRead[] chunks = JpnCommands.photoReads(chunkSize);
+            if (index >= chunks.length) {
+                break;
+            }
+
+            long chunkStart = System.nanoTime();
+            SmartCardException error = null;
+            ApduResponse response = null;
+            boolean rejected = false;
+
+            try {
+                response = mSession.readRange(slotNum, chunks[index]);
+            } catch (ReadCancelledException e) {
+                throw e;
+            } catch (SmartCardException e) {
+                error = e;
+                rejected = isLengthRejected(e.getSw());
+            }
+
+            if (response != null && (response.getSw() != SW_SUCCESS
+                    || response.getDataLength() != chunkSize)) {
+                rejected = isLengthRejected(response.getSw())
+                        // The session followed a 6Cxx with the length asked for
+                        || (response.getSw() == SW_SUCCESS
+                                && response.getDataLength() < chunkSize);
+                error = new SmartCardException("Photo chunk " + index + " failed at size "
+                        + chunkSize + ": SW " + Integer.toHexString(response.getSw()));
+                response.release();
+            }
+
+            if (error != null) {
+
+                mStats.error(ReadStats.Phase.PHOTO_CHUNK);
+                clean = false;
+
+                // The transfer length may not have been set
+                card.setTransferLength(0);
+
+                // Step down only when the first chunk is refused for its size
+                int smaller = (index == 0 && rejected) ? smallerChunk(chunkSize) : -1;
+                if (smaller >= 0) {
+                    mStats.retry(ReadStats.Retry.PHOTO_CHUNK);
+                    chunkSize = smaller;
+                    failures = 0;
+                    continue;
+                }
+
+                // Read the same chunk again, keeping the ones before it
+                failures++;
+                if (failures >= Backoff.ATTEMPTS) {
+                    if (ic == null && length > 0) {
+                        ic = readIcToKeep(slotNum);
+                    }
+                    if (ic == null) {
+                        throw new SmartCardException(error.getMessage() + " after "
+                                + failures + " attempts");
+                    }
+                    card.keepPartialPhoto(ic, mPhoto, length, chunkSize, generation);
+                    throw new SmartCardException(error.getMessage() + " after " + failures
+                            + " attempts, " + length + " bytes kept");
+                }
+
+                mStats.retry(ReadStats.Retry.RANGE);
+                Backoff.pause(failures);
+                continue;
+            }
+
+            failures = 0;
+            mStats.record(ReadStats.Phase.PHOTO_CHUNK, System.nanoTime() - chunkStart);
+
+            int dataLength = response.getDataLength();
+            System.arraycopy(response.getBuffer(), 0, mPhoto, length, dataLength);
+            response.release();
+
+            end = mScanner.feed(mPhoto, length, dataLength);
+            length += dataLength;
+
+            if (end >= 0) {
+                break;
+            }
+
+            if (listener != null && mScanner.hasScanData()) {
+                listener.onPhotoData(mPhoto, length, false);
+            }
+
+            index++;
+        }
+
+        mSession.photoTransferred(chunkSize, clean);
+
+        if (end < 0) {
+            end = length;
+        }
+
+        if (listener != null) {
+            listener.onPhotoData(mPhoto, end, true);
+        }
+
+        return Arrays.copyOf(mPhoto, end);
+    }
+
+    private String readIc(int slotNum) throws SmartCardException {
+
+        String ic = new JpnRecord(ReadPlanner.plan(JpnReader.IDENTITY)
+                .execute(mSession, slotNum, null)).getIc();
+
+        return (ic == null || ic.isEmpty()) ? null : ic;
+    }
+
+    /**
+     * Reads the IC number of a card whose transfer has failed, so that the
+     * chunks read can be kept.
+     *
+     * @return the IC number, or null if it cannot be read either.
+     */
+    private String readIcToKeep(int slotNum) throws ReadCancelledException {
+
+        try {
+            return readIc(slotNum);
+        } catch (ReadCancelledException e) {
+            throw e;
+        } catch (SmartCardException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if the card or reader refused a chunk for its length,
+     * with {@code 67xx} or {@code 6Cxx}.
+     */
+    private static boolean isLengthRejected(int sw) {
+        int sw1 = sw >> 8;
+        return sw1 == 0x67 || sw1 == 0x6C;
+    }
+
+    private static int largerChunk(int chunkSize) {
+
+        for (int i = CHUNK_SIZES.length - 1; i >= 0; i--) {
+            if (CHUNK_SIZES[i] > chunkSize) {
+                return CHUNK_SIZES[i];
+            }
+        }
+
+        return chunkSize;
+    }
+
+    private static int smallerChunk(int chunkSize) {
+
+        for (int size : CHUNK_SIZES) {
+            if (size < chunkSize) {
+                return size;
+            }
+        }
+
+        return -1;
+    }
+}
@@ -0,0 +1,37 @@
+package com.gracker.mykad;
+
+/**
+ * Thrown when a read is cancelled or runs past its deadline.
+ *
+ * @author Jeffrey Loh
+ * @version 1.0, January 2020
+ */
+public class ReadCancelledException extends SmartCardException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final boolean mTimeout;
+
+    /**
+     * Creates the exception.
+     *
+     * @param message
+     *            the message.
+     * @param timeout
+     *            true if the deadline was exceeded.
+     */
+    ReadCancelledException(String message, boolean timeout) {
+        super(message);
+        mTimeout = timeout;
+    }
+
+    /**
+     * Returns true if the read ran past its deadline rather than being
+     * cancelled.
+     *
+     * @return true on timeout.
+     */
+    public boolean isTimeout() {
+        return mTimeout;
+    }
+}
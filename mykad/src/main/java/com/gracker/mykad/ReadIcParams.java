@@ -0,0 +1,22 @@
+package com.gracker.mykad;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * What to read from a card.
+ *
+ * @author Jeffrey Loh
+ * @version 1.0, January 2020
+ */
+public class ReadIcParams {
+
+    /** Default time allowed for a read, photo included. */
+    public static final long DEFAULT_TIMEOUT_MILLIS = 10000;
+
+    public int slotNum;
+    public Set<JpnField> fields = EnumSet.allOf(JpnField.class);
+    public boolean readphoto;
+    public long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    public PhotoTransfer.Listener photoListener;
+}
@@ -0,0 +1,129 @@
+package com.gracker.mykad;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * The data read from a MyKad.
+ *
+ * The text fields are read through a {@link JpnRecord} over the raw card
+ * files, so each one is only decoded if it is asked for. Fields that were
+ * not requested or could not be read are null. The photo is kept as the
+ * JPEG bytes read from the card, so it can be stored or forwarded without
+ * being decoded.
+ *
+ * A read that only partly failed still returns what it could read. The
+ * fields that could not be read are listed in {@link #fieldErrors}, and a
+ * photo that could not be read in {@link #photoError}.
+ *
+ * @author Jeffrey Loh
+ * @version 1.0, January 2020
+ */
+public class ReadIcResult {
+    public Exception e;
+
+    /** The card files, or null if none were read. */
+    public JpnRecord record;
+
+    public byte[] photo;
+
+    /** The error of every requested field that could not be read. */
+    public final Map<JpnField, Exception> fieldErrors = new EnumMap<JpnField, Exception>(
+            JpnField.class);
+
+    /** The error if the photo was requested but could not be read. */
+    public Exception photoError;
+
+    /**
+     * Returns true if everything requested was read.
+     *
+     * @return true if there were no errors.
+     */
+    public boolean isComplete() {
+        return e == null && fieldErrors.isEmpty() && photoError == null;
+    }
+
+    private String text(JpnField field) {
+        return (record == null) ? null : record.getText(field);
+    }
+
+    private String date(JpnField field) {
+        return (record == null || !record.has(field)) ? null
+                : Bcd.formatDate(record.getDate(field));
+    }
+
+    public String getOrgName() {
+        return text(JpnField.ORG_NAME);
+    }
+
+    public String getGmpcName() {
+        return text(JpnField.GMPC_NAME);
+    }
+
+    public String getName() {
+        return text(JpnField.NAME);
+    }
+
+    public String getIc() {
+        return text(JpnField.IC);
+    }
+
+    public String getGender() {
+        return text(JpnField.GENDER);
+    }
+
+    public String getOldIc() {
+        return text(JpnField.OLD_IC);
+    }
+
+    /** Returns the date of birth as day-month-year. */
+    public String getDob() {
+        return date(JpnField.DOB);
+    }
+
+    public String getBirthPlace() {
+        return text(JpnField.BIRTH_PLACE);
+    }
+
+    /** Returns the issue date as day-month-year. */
+    public String getIssueDate() {
+        return date(JpnField.ISSUE_DATE);
+    }
+
+    public String getCitizenship() {
+        return text(JpnField.CITIZENSHIP);
+    }
+
+    public String getRace() {
+        return text(JpnField.RACE);
+    }
+
+    public String getReligion() {
+        return text(JpnField.RELIGION);
+    }
+
+    public String getAddress1() {
+        return text(JpnField.ADDRESS1);
+    }
+
+    public String getAddress2() {
+        return text(JpnField.ADDRESS2);
+    }
+
+    public String getAddress3() {
+        return text(JpnField.ADDRESS3);
+    }
+
+    public String getPostcode() {
+        return (record == null || !record.has(JpnField.POSTCODE)) ? null
+                : Integer.toString(record.getPostcode());
+    }
+
+    public String getCity() {
+        return text(JpnField.CITY);
+    }
+
+    public String getState() {
+        return text(JpnField.STATE);
+    }
+}
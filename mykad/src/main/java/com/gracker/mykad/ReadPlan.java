@@ -0,0 +1,158 @@
+package com.gracker.mykad;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A compiled list of range reads for a set of fields.
+ *
+ * @author Jeffrey Loh
+ * @version 1.0, January 2020
+ * @see ReadPlanner
+ */
+final class ReadPlan {
+
+    private static final int SW_SUCCESS = 0x9000;
+
+    private final Set<JpnField> mFields;
+    private final JpnCommands.RangeRead[] mRanges;
+    private final List<Set<JpnField>> mRangeFields;
+
+    ReadPlan(Set<JpnField> fields, List<JpnCommands.RangeRead> ranges,
+            List<Set<JpnField>> rangeFields) {
+        mFields = Collections.unmodifiableSet(fields);
+        mRanges = ranges.toArray(new JpnCommands.RangeRead[ranges.size()]);
+        mRangeFields = rangeFields;
+    }
+
+    /**
+     * Returns the fields read by the plan.
+     *
+     * @return the fields.
+     */
+    Set<JpnField> getFields() {
+        return mFields;
+    }
+
+    /**
+     * Returns the number of range reads.
+     *
+     * @return the number of ranges.
+     */
+    int getRangeCount() {
+        return mRanges.length;
+    }
+
+    /**
+     * Returns a range read.
+     *
+     * @param index
+     *            the index.
+     * @return the range read.
+     */
+    JpnCommands.RangeRead getRange(int index) {
+        return mRanges[index];
+    }
+
+    /**
+     * Reads the planned ranges. The JPN application must be selected.
+     *
+     * A range that fails, whether the exchange throws, the status word is
+     * not 9000 or the data comes back short, is read again after a
+     * {@link Backoff} wait. A range that still fails after
+     * {@link Backoff#ATTEMPTS} attempts drops the fields it covers from the
+     * image, and the other ranges are still read.
+     *
+     * @param session
+     *            the reader session.
+     * @param slotNum
+     *            the slot number.
+     * @param errors
+     *            receives the error of every field dropped, or null.
+     * @return the bytes read.
+     * @throws ReadCancelledException
+     *             if the read is cancelled.
+     */
+    CardImage execute(ReaderSession session, int slotNum, Map<JpnField, Exception> errors)
+            throws ReadCancelledException {
+
+        CardImage image = new CardImage();
+        image.addFields(mFields);
+        ReadStats stats = session.getStats();
+
+        for (int i = 0; i < mRanges.length; i++) {
+
+            JpnCommands.RangeRead range = mRanges[i];
+            ReadStats.Phase phase = (range.file == JpnCommands.FILE_ADDRESS)
+                    ? ReadStats.Phase.FILE_ADDRESS : ReadStats.Phase.FILE_JPN1;
+            SmartCardException error = null;
+
+            for (int attempt = 0; attempt < Backoff.ATTEMPTS; attempt++) {
+
+                if (attempt > 0) {
+                    stats.retry(ReadStats.Retry.RANGE);
+                    Backoff.pause(attempt);
+                }
+
+                long start = System.nanoTime();
+                error = read(session, slotNum, range, image);
+
+                if (error == null) {
+                    stats.record(phase, System.nanoTime() - start);
+                    break;
+                }
+
+                stats.error(phase);
+
+                // The transfer length may not have been set
+                session.getCard(slotNum).setTransferLength(0);
+            }
+
+            if (error != null) {
+                image.removeFields(mRangeFields.get(i));
+                if (errors != null) {
+                    for (JpnField field : mRangeFields.get(i)) {
+                        errors.put(field, error);
+                    }
+                }
+            }
+        }
+
+        return image;
+    }
+
+    /**
+     * Reads one range into the image.
+     *
+     * @return null if the whole range was read, the error otherwise.
+     */
+    private static SmartCardException read(ReaderSession session, int slotNum,
+            JpnCommands.RangeRead range, CardImage image) throws ReadCancelledException {
+
+        ApduResponse response;
+        try {
+            response = session.readRange(slotNum, range);
+        } catch (ReadCancelledException e) {
+            throw e;
+        } catch (SmartCardException e) {
+            return e;
+        }
+
+        int sw = response.getSw();
+        int length = response.getDataLength();
+
+        if (sw != SW_SUCCESS || length < range.length) {
+            response.release();
+            return new SmartCardException("Read of file " + range.file + " at "
+                    + range.offset + " failed: SW " + Integer.toHexString(sw)
+                    + ", " + length + " of " + range.length + " bytes");
+        }
+
+        image.put(range.file, range.offset, response.getBuffer(), range.length);
+        response.release();
+
+        return null;
+    }
+}
@@ -0,0 +1,121 @@
+package com.gracker.mykad;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Plans the smallest set of reads that covers the requested fields.
+ *
+ * Fields of the same file that are adjacent, or separated by a small gap,
+ * are merged into one range. Ranges longer than a single read are split into
+ * chunks of equal size where the file allows it, so the transfer length only
+ * has to be set once per range.
+ *
+ * @author Jeffrey Loh
+ * @version 1.0, January 2020
+ */
+final class ReadPlanner {
+
+    /** End of the readable area of each file, indexed by file number. */
+    static final int[] FILE_END = { 0, 0xE9 + 0xA0, 0, 0, 0x03 + 0x94 };
+
+    /** Gaps up to this many bytes are read through instead of split. */
+    static final int MERGE_GAP = 32;
+
+    private static final Map<Set<JpnField>, ReadPlan> sPlans = new HashMap<Set<JpnField>, ReadPlan>();
+
+    private ReadPlanner() {
+    }
+
+    /**
+     * Returns the plan that reads the fields. Plans are compiled once per set
+     * of fields.
+     *
+     * @param fields
+     *            the fields.
+     * @return the plan.
+     */
+    static synchronized ReadPlan plan(Set<JpnField> fields) {
+
+        EnumSet<JpnField> key = EnumSet.noneOf(JpnField.class);
+        key.addAll(fields);
+
+        ReadPlan plan = sPlans.get(key);
+        if (plan == null) {
+            plan = compile(key);
+            sPlans.put(key, plan);
+        }
+
+        return plan;
+    }
+
+    private static ReadPlan compile(EnumSet<JpnField> fields) {
+
+        List<JpnCommands.RangeRead> ranges = new ArrayList<JpnCommands.RangeRead>();
+        List<Set<JpnField>> rangeFields = new ArrayList<Set<JpnField>>();
+
+        for (int file = 0; file < FILE_END.length; file++) {
+
+            int start = -1;
+            int end = -1;
+
+            // Fields are declared in offset order within each file
+            for (JpnField field : fields) {
+
+                if (field.file != file) {
+                    continue;
+                }
+
+                if (start >= 0 && field.offset <= end + MERGE_GAP) {
+                    end = Math.max(end, field.end());
+                    continue;
+                }
+
+                if (start >= 0) {
+                    split(file, start, end, fields, ranges, rangeFields);
+                }
+
+                start = field.offset;
+                end = field.end();
+            }
+
+            if (start >= 0) {
+                split(file, start, end, fields, ranges, rangeFields);
+            }
+        }
+
+        return new ReadPlan(fields, ranges, rangeFields);
+    }
+
+    private static void split(int file, int start, int end,
+            EnumSet<JpnField> fields, List<JpnCommands.RangeRead> ranges,
+            List<Set<JpnField>> rangeFields) {
+
+        int length = end - start;
+        int count = (length + JpnCommands.MAX_CHUNK - 1) / JpnCommands.MAX_CHUNK;
+        int chunkSize = (length + count - 1) / count;
+
+        // Read a few bytes past the range if that keeps every chunk the same size
+        boolean equal = start + count * chunkSize <= FILE_END[file];
+
+        for (int offset = start; offset < end; offset += chunkSize) {
+
+            int size = equal ? chunkSize : Math.min(chunkSize, end - offset);
+
+            EnumSet<JpnField> covered = EnumSet.noneOf(JpnField.class);
+            for (JpnField field : fields) {
+                if (field.file == file && field.offset < offset + size
+                        && field.end() > offset) {
+                    covered.add(field);
+                }
+            }
+
+            ranges.add(new JpnCommands.RangeRead(file, offset, size));
+            rangeFields.add(covered);
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package com.gracker.mykad;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency histograms and error counts of the read path.
+ *
+ * There is one histogram per read phase and one per APDU type, looked up by
+ * index, so recording takes no allocation and the statistics can stay on in
+ * production. The statistics are shared by every reader of the process.
+ *
+ * @author Jeffrey Loh
+ * @version 1.0, January 2020
+ */
+public final class ReadStats {
+
+    /** The phases of a read. */
+    public enum Phase {
+        /** A whole read, text and photo. */
+        READ,
+        /** Power-up and protocol negotiation. */
+        POWER,
+        /** Selecting the JPN application. */
+        SELECT,
+        /** One range of the JPN1 file. */
+        FILE_JPN1,
+        /** One range of the address file. */
+        FILE_ADDRESS,
+        /** The whole photo transfer. */
+        PHOTO,
+        /** One photo chunk. */
+        PHOTO_CHUNK,
+        /** Decoding the photo to a bitmap. */
+        PHOTO_DECODE,
+        /** Process start to the first reader ready to read. */
+        STARTUP
+    }
+
+    /** The APDU types, by instruction byte. */
+    enum ApduType {
+        SELECT(0xA4),
+        GET_RESPONSE(0xC0),
+        SET_LENGTH(0x32),
+        SELECT_RANGE(0x00),
+        READ(0x06),
+        OTHER(-1);
+
+        final int ins;
+
+        ApduType(int ins) {
+            this.ins = ins;
+        }
+    }
+
+    /** The reasons a command is sent again. */
+    enum Retry {
+        /** GET RESPONSE after 61xx. */
+        GET_RESPONSE,
+        /** Resent with the length asked for by 6Cxx. */
+        WRONG_LENGTH,
+        /** Photo chunk retried at a smaller size. */
+        PHOTO_CHUNK,
+        /** File range or photo chunk read again after it failed. */
+        RANGE
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+    private static final ApduType[] APDU_TYPES = ApduType.values();
+    private static final Retry[] RETRIES = Retry.values();
+
+    /** APDU type of every instruction byte. */
+    private static final ApduType[] BY_INS = new ApduType[256];
+
+    static {
+        for (int i = 0; i < BY_INS.length; i++) {
+            BY_INS[i] = ApduType.OTHER;
+        }
+        for (ApduType type : APDU_TYPES) {
+            if (type.ins >= 0) {
+                BY_INS[type.ins] = type;
+            }
+        }
+    }
+
+    private static final ReadStats INSTANCE = new ReadStats();
+
+    private final LatencyHistogram[] mPhases = new LatencyHistogram[PHASES.length];
+    private final LatencyHistogram[] mApdus = new LatencyHistogram[APDU_TYPES.length];
+    private final long[] mPhaseErrors = new long[PHASES.length];
+    private final long[] mApduErrors = new long[APDU_TYPES.length];
+    private final long[] mRetries = new long[RETRIES.length];
+
+    ReadStats() {
+
+        for (int i = 0; i < mPhases.length; i++) {
+            mPhases[i] = new LatencyHistogram();
+        }
+
+        for (int i = 0; i < mApdus.length; i++) {
+            mApdus[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Returns the statistics of the process.
+     *
+     * @return the statistics.
+     */
+    public static ReadStats get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the APDU type of an instruction byte.
+     *
+     * @param ins
+     *            the INS byte.
+     * @return the APDU type.
+     */
+    static ApduType apduType(int ins) {
+        return BY_INS[ins & 0xFF];
+    }
+
+    /**
+     * Records the duration of a phase.
+     *
+     * @param phase
+     *            the phase.
+     * @param nanos
+     *            the duration in nanoseconds.
+     */
+    public void record(Phase phase, long nanos) {
+        mPhases[phase.ordinal()].record(nanos);
+    }
+
+    /**
+     * Records the round trip of an APDU.
+     *
+     * @param ins
+     *            the INS byte.
+     * @param nanos
+     *            the round trip in nanoseconds.
+     */
+    void recordApdu(int ins, long nanos) {
+        mApdus[BY_INS[ins & 0xFF].ordinal()].record(nanos);
+    }
+
+    /**
+     * Counts a failed phase.
+     *
+     * @param phase
+     *            the phase.
+     */
+    public synchronized void error(Phase phase) {
+        mPhaseErrors[phase.ordinal()]++;
+    }
+
+    /**
+     * Counts a failed APDU exchange.
+     *
+     * @param ins
+     *            the INS byte.
+     */
+    synchronized void apduError(int ins) {
+        mApduErrors[BY_INS[ins & 0xFF].ordinal()]++;
+    }
+
+    /**
+     * Counts a command sent again.
+     *
+     * @param retry
+     *            the reason.
+     */
+    synchronized void retry(Retry retry) {
+        mRetries[retry.ordinal()]++;
+    }
+
+    /**
+     * Returns the histogram of a phase.
+     *
+     * @param phase
+     *            the phase.
+     * @return the histogram.
+     */
+    LatencyHistogram getHistogram(Phase phase) {
+        return mPhases[phase.ordinal()];
+    }
+
+    /**
+     * Returns the histogram of an APDU type.
+     *
+     * @param type
+     *            the APDU type.
+     * @return the histogram.
+     */
+    LatencyHistogram getHistogram(ApduType type) {
+        return mApdus[type.ordinal()];
+    }
+
+    synchronized long getErrors(Phase phase) {
+        return mPhaseErrors[phase.ordinal()];
+    }
+
+    synchronized long getErrors(ApduType type) {
+        return mApduErrors[type.ordinal()];
+    }
+
+    synchronized long getRetries(Retry retry) {
+        return mRetries[retry.ordinal()];
+    }
+
+    /**
+     * Forgets every recorded latency and count.
+     */
+    public synchronized void reset() {
+
+        for (int i = 0; i < mPhases.length; i++) {
+            mPhases[i].reset();
+            mPhaseErrors[i] = 0;
+        }
+
+        for (int i = 0; i < mApdus.length; i++) {
+            mApdus[i].reset();
+            mApduErrors[i] = 0;
+        }
+
+        for (int i = 0; i < mRetries.length; i++) {
+            mRetries[i] = 0;
+        }
+    }
+
+    /**
+     * Writes the statistics as CSV, one line per phase, APDU type and retry
+     * reason, with latencies in microseconds.
+     *
+     * @param writer
+     *            the writer.
+     * @throws IOException
+     *             if the writer fails.
+     */
+    public void writeCsv(Writer writer) throws IOException {
+
+        writer.write("kind,name,count,errors,mean_us,p50_us,p90_us,p99_us,max_us\n");
+
+        for (Phase phase : PHASES) {
+            writeRow(writer, "phase", phase.name(), getHistogram(phase), getErrors(phase));
+        }
+
+        for (ApduType type : APDU_TYPES) {
+            writeRow(writer, "apdu", type.name(), getHistogram(type), getErrors(type));
+        }
+
+        for (Retry retry : RETRIES) {
+            writer.write("retry," + retry.name() + "," + getRetries(retry) + ",,,,,,\n");
+        }
+    }
+
+    private static void writeRow(Writer writer, String kind, String name,
+            LatencyHistogram histogram, long errors) throws IOException {
+
+        writer.write(kind + "," + name + "," + histogram.getCount() + "," + errors
+                + "," + micros(histogram.getMean())
+                + "," + micros(histogram.getPercentile(50))
+                + "," + micros(histogram.getPercentile(90))
+                + "," + micros(histogram.getPercentile(99))
+                + "," + micros(histogram.getMax()) + "\n");
+    }
+
+    /**
+     * Returns a summary of the phases and APDU types seen so far, for the
+     * stats panel.
+     *
+     * @return the summary.
+     */
+    public String summary() {
+
+        StringBuilder builder = new StringBuilder();
+
+        for (Phase phase : PHASES) {
+            appendLine(builder, phase.name(), getHistogram(phase), getErrors(phase));
+        }
+
+        builder.append('\n');
+        for (ApduType type : APDU_TYPES) {
+            appendLine(builder, "APDU " + type.name(), getHistogram(type), getErrors(type));
+        }
+
+        builder.append('\n');
+        for (Retry retry : RETRIES) {
+            builder.append("Retry ").append(retry.name()).append(": ")
+                    .append(getRetries(retry)).append('\n');
+        }
+
+        return builder.toString();
+    }
+
+    private static void appendLine(StringBuilder builder, String name,
+            LatencyHistogram histogram, long errors) {
+
+        long count = histogram.getCount();
+        if (count == 0 && errors == 0) {
+            return;
+        }
+
+        builder.append(name).append(": n=").append(count)
+                .append(" p50=").append(micros(histogram.getPercentile(50)))
+                .append(" p99=").append(micros(histogram.getPercentile(99)))
+                .append(" max=").append(micros(histogram.getMax())).append(" us");
+        if (errors > 0) {
+            builder.append(" errors=").append(errors);
+        }
+        builder.append('\n');
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
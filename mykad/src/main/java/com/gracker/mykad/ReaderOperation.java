@@ -0,0 +1,72 @@
+package com.gracker.mykad;
+
+/**
+ * An operation queued on a reader, with a deadline and a cancel flag.
+ *
+ * Cancellation is cooperative: the session checks the operation before
+ * every exchange, so a cancelled or late operation stops at the next APDU.
+ *
+ * @author Jeffrey Loh
+ * @version 1.0, January 2020
+ */
+public final class ReaderOperation {
+
+    private final int mSlotNum;
+    private final long mDeadline;
+    private volatile boolean mCancelled;
+
+    /**
+     * Creates an operation.
+     *
+     * @param slotNum
+     *            the slot number.
+     * @param timeoutMillis
+     *            the time allowed from now, or 0 for no deadline.
+     */
+    public ReaderOperation(int slotNum, long timeoutMillis) {
+        mSlotNum = slotNum;
+        mDeadline = (timeoutMillis > 0) ? System.nanoTime() + timeoutMillis * 1000000L : 0;
+    }
+
+    /**
+     * Returns the slot number.
+     *
+     * @return the slot number.
+     */
+    public int getSlotNum() {
+        return mSlotNum;
+    }
+
+    /**
+     * Cancels the operation. It stops before its next exchange.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Returns true if the operation has been cancelled.
+     *
+     * @return true if cancelled.
+     */
+    boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Throws if the operation has been cancelled or is past its deadline.
+     *
+     * @throws ReadCancelledException
+     *             if the operation must stop.
+     */
+    public void checkpoint() throws ReadCancelledException {
+
+        if (mCancelled) {
+            throw new ReadCancelledException("Read cancelled", false);
+        }
+
+        if (mDeadline != 0 && System.nanoTime() - mDeadline > 0) {
+            throw new ReadCancelledException("Read deadline exceeded", true);
+        }
+    }
+}
@@ -0,0 +1,539 @@
+package com.gracker.mykad;
+
+/**
+ * Exchanges APDUs with the card through a {@link CardTransport}.
+ *
+ * The session owns the response buffers used for its reader, so that
+ * repeated reads reuse the same memory. It also keeps a {@link CardSession}
+ * for each slot, so that {@code C8 32} is only sent when the transfer length
+ * changes and a card that is still powered can be read again without a
+ * reset.
+ *
+ * After a power-up the session asks for T=1 when the ATR offers it, and
+ * answers {@code 61xx} and {@code 6Cxx} status words itself, so callers
+ * see the final response under either protocol. The time spent in each
+ * exchange is recorded per protocol, and in {@link ReadStats} per APDU type.
+ *
+ * @author Jeffrey Loh
+ * @version 1.0, January 2020
+ */
+public final class ReaderSession {
+
+    /** Largest response: a full 256 byte read plus the status word. */
+    static final int MAX_RESPONSE = 256 + 2;
+
+    private static final int POOL_CAPACITY = 8;
+    private static final int INITIAL_SLOTS = 2;
+
+    /** Most status word follow-ups sent for one command. */
+    private static final int MAX_FOLLOW_UPS = 4;
+
+    private static final int SW_SUCCESS = 0x9000;
+
+    private static final int STATS_T0 = 0;
+    private static final int STATS_T1 = 1;
+    private static final int STATS_OTHER = 2;
+
+    /**
+     * Interface definition for a callback to be invoked after every exchange.
+     */
+    public interface ExchangeListener {
+
+        /**
+         * Called after a command has been sent.
+         *
+         * @param slotNum
+         *            the slot number.
+         * @param command
+         *            the command.
+         * @param response
+         *            the response, or null if the exchange failed. It is
+         *            only valid during the call.
+         * @param e
+         *            the error, or null.
+         */
+        void onExchange(int slotNum, Apdu command, ApduResponse response,
+                Exception e);
+    }
+
+    private final CardTransport mTransport;
+    private final ResponseBufferPool mPool;
+    private final ReadStats mStats;
+    private CardSession[] mCards = new CardSession[INITIAL_SLOTS];
+    private volatile int mPhotoChunk = JpnCommands.MAX_CHUNK;
+    private int mCleanPhotoTransfers;
+    private volatile ExchangeListener mListener;
+    private volatile ReaderOperation mOperation;
+
+    private final long[] mExchangeCount = new long[3];
+    private final long[] mExchangeNanos = new long[3];
+
+    /**
+     * Creates a session.
+     *
+     * @param transport
+     *            the card transport.
+     */
+    public ReaderSession(CardTransport transport) {
+        this(transport, ReadStats.get());
+    }
+
+    /**
+     * Creates a session that records its latencies in the given statistics
+     * instead of those of the process.
+     *
+     * @param transport
+     *            the card transport.
+     * @param stats
+     *            the statistics.
+     */
+    ReaderSession(CardTransport transport, ReadStats stats) {
+        mTransport = transport;
+        mPool = new ResponseBufferPool(MAX_RESPONSE, POOL_CAPACITY);
+        mStats = stats;
+    }
+
+    /**
+     * Returns the card transport.
+     *
+     * @return the transport.
+     */
+    CardTransport getTransport() {
+        return mTransport;
+    }
+
+    /**
+     * Returns the statistics the reads of this session are recorded in.
+     *
+     * @return the statistics.
+     */
+    ReadStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Registers a callback to be invoked after every exchange.
+     *
+     * @param listener
+     *            the listener, or null.
+     */
+    public void setExchangeListener(ExchangeListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Sets the operation being run. Every exchange first checks that it has
+     * not been cancelled or run past its deadline.
+     *
+     * @param operation
+     *            the operation, or null.
+     */
+    public void setOperation(ReaderOperation operation) {
+        mOperation = operation;
+    }
+
+    /**
+     * Returns the photo chunk size last accepted by the card and reader.
+     *
+     * @return the chunk size.
+     */
+    int getPhotoChunk() {
+        return mPhotoChunk;
+    }
+
+    /**
+     * Sets the photo chunk size and starts counting clean transfers again.
+     *
+     * @param chunkSize
+     *            the chunk size.
+     */
+    synchronized void setPhotoChunk(int chunkSize) {
+        mPhotoChunk = chunkSize;
+        mCleanPhotoTransfers = 0;
+    }
+
+    /**
+     * Returns the number of photo transfers in a row that ran without an
+     * error at the current chunk size.
+     *
+     * @return the transfer count.
+     */
+    synchronized int getCleanPhotoTransfers() {
+        return mCleanPhotoTransfers;
+    }
+
+    /**
+     * Records the end of a photo transfer.
+     *
+     * @param chunkSize
+     *            the chunk size the transfer ended with.
+     * @param clean
+     *            true if no chunk failed.
+     */
+    synchronized void photoTransferred(int chunkSize, boolean clean) {
+
+        if (chunkSize != mPhotoChunk || !clean) {
+            setPhotoChunk(chunkSize);
+        } else {
+            mCleanPhotoTransfers++;
+        }
+    }
+
+    /**
+     * Returns the number of slots the session keeps card sessions for.
+     *
+     * @return the slot count.
+     */
+    synchronized int getSlotCount() {
+        return mCards.length;
+    }
+
+    /**
+     * Returns the session of the card in a slot.
+     *
+     * @param slotNum
+     *            the slot number.
+     * @return the card session.
+     */
+    synchronized CardSession getCard(int slotNum) {
+
+        if (slotNum >= mCards.length) {
+            CardSession[] cards = new CardSession[slotNum + 1];
+            System.arraycopy(mCards, 0, cards, 0, mCards.length);
+            mCards = cards;
+        }
+
+        CardSession card = mCards[slotNum];
+        if (card == null) {
+            card = new CardSession();
+            mCards[slotNum] = card;
+        }
+
+        return card;
+    }
+
+    /**
+     * Marks the session of the card in a slot cold, for example after an
+     * error, so the card is powered and selected again before the next
+     * read.
+     *
+     * @param slotNum
+     *            the slot number.
+     */
+    void invalidate(int slotNum) {
+        getCard(slotNum).invalidate();
+    }
+
+    /**
+     * Forgets the card in a slot when it is removed.
+     *
+     * @param slotNum
+     *            the slot number.
+     */
+    public void forget(int slotNum) {
+        getCard(slotNum).forget();
+    }
+
+    /**
+     * Forgets the cards in every slot, for example when the reader is
+     * closed.
+     */
+    public synchronized void invalidateAll() {
+        for (CardSession card : mCards) {
+            if (card != null) {
+                card.forget();
+            }
+        }
+    }
+
+    /**
+     * Returns true if the transport reports the card in the slot as powered.
+     *
+     * @param slotNum
+     *            the slot number.
+     * @return true if the card is powered.
+     */
+    boolean isPowered(int slotNum) {
+        return mTransport.getState(slotNum) >= CardTransport.CARD_POWERED;
+    }
+
+    /**
+     * Powers the card in the slot, negotiates the protocol and starts a new
+     * card session.
+     *
+     * @param slotNum
+     *            the slot number.
+     * @param action
+     *            the power action.
+     * @return the card session.
+     * @throws SmartCardException
+     *             if the card cannot be powered.
+     */
+    CardSession power(int slotNum, int action) throws SmartCardException {
+
+        checkpoint();
+
+        CardSession card = getCard(slotNum);
+        card.invalidate();
+
+        ReadStats stats = mStats;
+        long start = System.nanoTime();
+
+        try {
+            byte[] atr = mTransport.power(slotNum, action);
+            card.powered(atr, negotiate(slotNum, AtrInfo.parse(atr)));
+        } catch (SmartCardException e) {
+            stats.error(ReadStats.Phase.POWER);
+            throw e;
+        }
+
+        stats.record(ReadStats.Phase.POWER, System.nanoTime() - start);
+
+        return card;
+    }
+
+    /**
+     * Sets the protocol the ATR prefers, letting the reader choose if it
+     * refuses.
+     */
+    private int negotiate(int slotNum, AtrInfo info) throws SmartCardException {
+
+        try {
+
+            return mTransport.setProtocol(slotNum, info.getPreferredProtocol());
+
+        } catch (SmartCardException e) {
+
+            // The card may be in specific mode or refuse the PPS
+            try {
+                return mTransport.setProtocol(slotNum,
+                        CardTransport.PROTOCOL_T0 | CardTransport.PROTOCOL_T1);
+            } catch (SmartCardException e2) {
+                return mTransport.getProtocol(slotNum);
+            }
+        }
+    }
+
+    /**
+     * Sends a command and receives the response into a pooled buffer.
+     *
+     * A {@code 61xx} status word is followed by a GET RESPONSE for the
+     * announced length, and a {@code 6Cxx} status word by the same command
+     * with the length the card asked for.
+     *
+     * @param slotNum
+     *            the slot number.
+     * @param command
+     *            the command.
+     * @return the response. The caller must release it.
+     * @throws SmartCardException
+     *             if the exchange fails or the operation must stop.
+     */
+    ApduResponse transmit(int slotNum, Apdu command) throws SmartCardException {
+
+        ApduResponse response = exchange(slotNum, command);
+
+        for (int i = 0; i < MAX_FOLLOW_UPS; i++) {
+
+            int sw = response.getSw();
+            int sw1 = sw >> 8;
+            Apdu followUp;
+
+            if (sw1 == 0x61) {
+                followUp = JpnCommands.getResponse(sw & 0xFF);
+                mStats.retry(ReadStats.Retry.GET_RESPONSE);
+            } else if (sw1 == 0x6C) {
+                followUp = command.withLe(sw & 0xFF);
+                mStats.retry(ReadStats.Retry.WRONG_LENGTH);
+            } else {
+                break;
+            }
+
+            response.release();
+            response = exchange(slotNum, followUp);
+        }
+
+        return response;
+    }
+
+    private ApduResponse exchange(int slotNum, Apdu command)
+            throws SmartCardException {
+
+        checkpoint();
+
+        ApduResponse response = mPool.acquire();
+        ExchangeListener listener = mListener;
+        int stats = statsIndex(getCard(slotNum).getProtocol());
+        long start = System.nanoTime();
+
+        try {
+
+            response.setLength(mTransport.transmit(slotNum, command.getBytes(),
+                    command.getLength(), response.getBuffer(),
+                    response.getBuffer().length));
+            long nanos = System.nanoTime() - start;
+            record(stats, nanos);
+            mStats.recordApdu(command.getIns(), nanos);
+
+        } catch (SmartCardException e) {
+
+            response.release();
+            mStats.apduError(command.getIns());
+            if (listener != null) {
+                listener.onExchange(slotNum, command, null, e);
+            }
+            throw e;
+
+        } catch (RuntimeException e) {
+
+            response.release();
+            mStats.apduError(command.getIns());
+            if (listener != null) {
+                listener.onExchange(slotNum, command, null, e);
+            }
+            throw e;
+        }
+
+        if (listener != null) {
+            listener.onExchange(slotNum, command, response, null);
+        }
+
+        return response;
+    }
+
+    private static int statsIndex(int protocol) {
+
+        if (protocol == CardTransport.PROTOCOL_T0) {
+            return STATS_T0;
+        } else if (protocol == CardTransport.PROTOCOL_T1) {
+            return STATS_T1;
+        }
+
+        return STATS_OTHER;
+    }
+
+    private synchronized void record(int stats, long nanos) {
+        mExchangeCount[stats]++;
+        mExchangeNanos[stats] += nanos;
+    }
+
+    /**
+     * Returns the number of exchanges made under a protocol.
+     *
+     * @param protocol
+     *            {@code CardTransport.PROTOCOL_T0} or {@code CardTransport.PROTOCOL_T1}.
+     *            Any other value counts the remaining protocols.
+     * @return the exchange count.
+     */
+    public synchronized long getExchangeCount(int protocol) {
+        return mExchangeCount[statsIndex(protocol)];
+    }
+
+    /**
+     * Returns the mean round-trip time of the exchanges made under a
+     * protocol.
+     *
+     * @param protocol
+     *            {@code CardTransport.PROTOCOL_T0} or {@code CardTransport.PROTOCOL_T1}.
+     *            Any other value counts the remaining protocols.
+     * @return the mean time in microseconds.
+     */
+    public synchronized long getAverageExchangeMicros(int protocol) {
+
+        int stats = statsIndex(protocol);
+        return (mExchangeCount[stats] == 0) ? 0
+                : mExchangeNanos[stats] / mExchangeCount[stats] / 1000;
+    }
+
+    private void checkpoint() throws ReadCancelledException {
+
+        ReaderOperation operation = mOperation;
+        if (operation != null) {
+            operation.checkpoint();
+        }
+    }
+
+    /**
+     * Sends a command whose response is not needed.
+     *
+     * @param slotNum
+     *            the slot number.
+     * @param command
+     *            the command.
+     * @return the status word.
+     * @throws SmartCardException
+     *             if the exchange fails.
+     */
+    int send(int slotNum, Apdu command) throws SmartCardException {
+
+        ApduResponse response = transmit(slotNum, command);
+        int sw = response.getSw();
+        response.release();
+
+        return sw;
+    }
+
+    /**
+     * Returns true if a status word reports success. A {@code 61xx} left
+     * after the follow-ups still means the command worked.
+     *
+     * @param sw
+     *            the status word.
+     * @return true for {@code 9000} and {@code 61xx}.
+     */
+    static boolean isSuccess(int sw) {
+        return sw == SW_SUCCESS || (sw >> 8) == 0x61;
+    }
+
+    /**
+     * Sets the transfer length unless the card already uses it. The length
+     * is only remembered once the card has accepted it.
+     *
+     * @param slotNum
+     *            the slot number.
+     * @param length
+     *            the transfer length.
+     * @throws SmartCardException
+     *             if the exchange fails or the card refuses the length.
+     */
+    void setTransferLength(int slotNum, int length) throws SmartCardException {
+
+        CardSession card = getCard(slotNum);
+        if (card.getTransferLength() == length) {
+            return;
+        }
+
+        card.setTransferLength(0);
+        int sw = send(slotNum, JpnCommands.setLength(length));
+        if (!isSuccess(sw)) {
+            throw new SmartCardException("Set length " + length + " failed: SW "
+                    + Integer.toHexString(sw), sw);
+        }
+        card.setTransferLength(length);
+    }
+
+    /**
+     * Reads a range of a file.
+     *
+     * @param slotNum
+     *            the slot number.
+     * @param range
+     *            the range.
+     * @return the response. The caller must release it.
+     * @throws SmartCardException
+     *             if the exchange fails, or the card refuses the transfer
+     *             length or the range.
+     */
+    ApduResponse readRange(int slotNum, JpnCommands.RangeRead range)
+            throws SmartCardException {
+
+        setTransferLength(slotNum, range.length);
+        int sw = send(slotNum, range.selectRange);
+        if (!isSuccess(sw)) {
+            throw new SmartCardException("Select of file " + range.file + " at "
+                    + range.offset + " failed: SW " + Integer.toHexString(sw), sw);
+        }
+
+        return transmit(slotNum, range.read);
+    }
+}
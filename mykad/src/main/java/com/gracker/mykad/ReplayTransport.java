@@ -0,0 +1,196 @@
+package com.gracker.mykad;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A card transport that plays back a recorded trace.
+ *
+ * Every operation must match the next operation of the trace, so the read
+ * engine has to ask for the same commands as when the trace was recorded.
+ * Otherwise the replay fails with a "Trace diverged" error. Operations
+ * return at once, or after the time the reader took in the trace.
+ *
+ * @author Jeffrey Loh
+ * @version 1.0, January 2020
+ */
+final class ReplayTransport implements CardTransport {
+
+    private final List<TraceRecord> mRecords;
+    private final boolean mRealTime;
+    private int mPosition;
+    private int mPoweredSlots;
+    private int mProtocol = PROTOCOL_UNDEFINED;
+
+    /**
+     * Creates a replay.
+     *
+     * @param records
+     *            the trace.
+     * @param realTime
+     *            true to take as long as the reader did, false to run at
+     *            full speed.
+     */
+    ReplayTransport(List<TraceRecord> records, boolean realTime) {
+        mRecords = records;
+        mRealTime = realTime;
+    }
+
+    /**
+     * Returns true once every record has been played.
+     *
+     * @return true if finished.
+     */
+    synchronized boolean isFinished() {
+        return mPosition >= mRecords.size();
+    }
+
+    /**
+     * Returns the session records at the start of the trace.
+     *
+     * @return the session records, in slot order.
+     */
+    synchronized List<TraceRecord> getSessionRecords() {
+
+        List<TraceRecord> records = new ArrayList<TraceRecord>();
+        for (TraceRecord record : mRecords) {
+            if (record.type != TraceRecord.TYPE_SESSION) {
+                break;
+            }
+            records.add(record);
+        }
+
+        return records;
+    }
+
+    /**
+     * Skips to the start of the next read and returns it. A card removal on
+     * the way powers the slot down.
+     *
+     * @return the read record, or null at the end of the trace.
+     */
+    synchronized TraceRecord nextRead() {
+
+        while (mPosition < mRecords.size()) {
+
+            TraceRecord record = mRecords.get(mPosition++);
+
+            if (record.type == TraceRecord.TYPE_READ) {
+                return record;
+            } else if (record.type == TraceRecord.TYPE_REMOVED) {
+                mPoweredSlots &= ~(1 << record.slotNum);
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public synchronized byte[] power(int slotNum, int action)
+            throws SmartCardException {
+
+        TraceRecord record = next(TraceRecord.TYPE_POWER, slotNum);
+
+        mPoweredSlots &= ~(1 << slotNum);
+        mProtocol = PROTOCOL_UNDEFINED;
+        complete(record);
+
+        if (action != CARD_POWER_DOWN) {
+            mPoweredSlots |= 1 << slotNum;
+        }
+
+        return record.response;
+    }
+
+    @Override
+    public synchronized int setProtocol(int slotNum, int preferredProtocols)
+            throws SmartCardException {
+
+        TraceRecord record = next(TraceRecord.TYPE_PROTOCOL, slotNum);
+        complete(record);
+        mProtocol = record.result;
+
+        return mProtocol;
+    }
+
+    @Override
+    public synchronized int getProtocol(int slotNum) {
+        return mProtocol;
+    }
+
+    @Override
+    public synchronized int getState(int slotNum) {
+        return ((mPoweredSlots & (1 << slotNum)) != 0) ? CARD_SPECIFIC
+                : CARD_PRESENT;
+    }
+
+    @Override
+    public synchronized int transmit(int slotNum, byte[] command,
+            int commandLength, byte[] response, int responseLength)
+            throws SmartCardException {
+
+        TraceRecord record = next(TraceRecord.TYPE_TRANSMIT, slotNum);
+
+        if (!matches(record.command, command, commandLength)) {
+            throw new SmartCardException("Trace diverged at record "
+                    + (mPosition - 1) + ": other command");
+        }
+
+        complete(record);
+
+        if (record.response.length > responseLength) {
+            throw new SmartCardException("Response buffer too small");
+        }
+        System.arraycopy(record.response, 0, response, 0, record.response.length);
+
+        return record.response.length;
+    }
+
+    private TraceRecord next(int type, int slotNum) throws SmartCardException {
+
+        if (mPosition >= mRecords.size()) {
+            throw new SmartCardException("Trace ended");
+        }
+
+        TraceRecord record = mRecords.get(mPosition);
+        if (record.type != type || record.slotNum != slotNum) {
+            throw new SmartCardException("Trace diverged at record " + mPosition
+                    + ": " + record);
+        }
+
+        mPosition++;
+        return record;
+    }
+
+    private static boolean matches(byte[] recorded, byte[] command, int length) {
+
+        if (recorded == null || recorded.length != length) {
+            return false;
+        }
+
+        for (int i = 0; i < length; i++) {
+            if (recorded[i] != command[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void complete(TraceRecord record) throws SmartCardException {
+
+        if (mRealTime) {
+
+            long deadline = System.nanoTime() + record.durationNanos;
+            long left;
+            while ((left = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(left);
+            }
+        }
+
+        if (record.error != null) {
+            throw new SmartCardException(record.error);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.gracker.mykad;
+
+/**
+ * A small pool of response buffers.
+ *
+ * Buffers are sized for the largest response the JPN application sends, so a
+ * read allocates only while the pool warms up and never afterwards.
+ *
+ * @author Jeffrey Loh
+ * @version 1.0, January 2020
+ */
+final class ResponseBufferPool {
+
+    private final int mBufferSize;
+    private final ApduResponse[] mFree;
+    private int mFreeCount;
+
+    /**
+     * Creates a pool.
+     *
+     * @param bufferSize
+     *            the size of each buffer.
+     * @param capacity
+     *            the number of idle buffers kept.
+     */
+    ResponseBufferPool(int bufferSize, int capacity) {
+        mBufferSize = bufferSize;
+        mFree = new ApduResponse[capacity];
+    }
+
+    /**
+     * Returns the size of each buffer.
+     *
+     * @return the buffer size.
+     */
+    int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * Takes a buffer from the pool, allocating one if the pool is empty.
+     *
+     * @return an empty response.
+     */
+    synchronized ApduResponse acquire() {
+
+        if (mFreeCount == 0) {
+            return new ApduResponse(this, mBufferSize);
+        }
+
+        ApduResponse response = mFree[--mFreeCount];
+        mFree[mFreeCount] = null;
+        return response;
+    }
+
+    synchronized void release(ApduResponse response) {
+
+        // Drop the buffer if the pool is already full
+        if (mFreeCount < mFree.length) {
+            mFree[mFreeCount++] = response;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.gracker.mykad;
+
+/**
+ * Thrown when the card or the link to it fails: no card, a failed power-up
+ * or protocol change, a failed exchange, or a response the read cannot use.
+ *
+ * Transports wrap the errors of their own reader library in this exception,
+ * so the read engine does not depend on any of them.
+ *
+ * @author Jeffrey Loh
+ * @version 1.0, January 2020
+ */
+public class SmartCardException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int mSw;
+
+    /**
+     * Creates the exception.
+     *
+     * @param message
+     *            the message.
+     */
+    public SmartCardException(String message) {
+        this(message, -1);
+    }
+
+    /**
+     * Creates the exception for a status word the read cannot use.
+     *
+     * @param message
+     *            the message.
+     * @param sw
+     *            the status word.
+     */
+    public SmartCardException(String message, int sw) {
+        super(message);
+        mSw = sw;
+    }
+
+    /**
+     * Creates the exception for an error of a reader library.
+     *
+     * @param cause
+     *            the error.
+     */
+    public SmartCardException(Throwable cause) {
+        super(cause.getMessage(), cause);
+        mSw = -1;
+    }
+
+    /**
+     * Returns the status word the card answered with.
+     *
+     * @return the status word, or -1 if the error was not a status word.
+     */
+    public int getSw() {
+        return mSw;
+    }
+}
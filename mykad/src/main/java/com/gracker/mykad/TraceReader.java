@@ -0,0 +1,119 @@
+package com.gracker.mykad;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads a trace file written by {@link TraceRecorder}.
+ *
+ * @author Jeffrey Loh
+ * @version 1.0, January 2020
+ */
+public final class TraceReader {
+
+    private TraceReader() {
+    }
+
+    /**
+     * Reads every record of a trace file. A record cut short at the end of
+     * the file, as left by a crash, is dropped.
+     *
+     * @param file
+     *            the trace file.
+     * @return the records.
+     * @throws IOException
+     *             if the file cannot be read or is not a trace.
+     */
+    public static List<TraceRecord> read(File file) throws IOException {
+
+        InputStream in = new FileInputStream(file);
+        try {
+            return read(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads every record of a trace.
+     *
+     * @param in
+     *            the trace.
+     * @return the records.
+     * @throws IOException
+     *             if the trace cannot be read or is not a trace.
+     */
+    public static List<TraceRecord> read(InputStream in) throws IOException {
+
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+
+        if (data.readInt() != TraceRecorder.MAGIC) {
+            throw new IOException("Not a trace file");
+        }
+
+        int version = data.readShort();
+        // Version 1 traces have no session records
+        if (version < 1 || version > TraceRecorder.VERSION) {
+            throw new IOException("Unsupported trace version " + version);
+        }
+
+        // Wall-clock start
+        data.readLong();
+
+        List<TraceRecord> records = new ArrayList<TraceRecord>();
+
+        while (true) {
+
+            int type = data.read();
+            if (type < 0) {
+                break;
+            }
+
+            try {
+
+                int slotNum = data.readUnsignedByte();
+                long timeNanos = data.readLong();
+                long durationNanos = data.readLong();
+                int argument = data.readInt();
+                int result = data.readInt();
+                byte[] command = readBytes(data);
+                byte[] response = readBytes(data);
+
+                String error = null;
+                if ((type & TraceRecorder.FLAG_ERROR) != 0) {
+                    byte[] message = readBytes(data);
+                    error = new String(message, TraceRecorder.UTF_8);
+                }
+
+                records.add(new TraceRecord(type & ~TraceRecorder.FLAG_ERROR,
+                        slotNum, timeNanos, durationNanos, argument, result,
+                        command, response, error));
+
+            } catch (EOFException e) {
+                break;
+            }
+        }
+
+        return records;
+    }
+
+    private static byte[] readBytes(DataInputStream data) throws IOException {
+
+        int length = data.readShort();
+        if (length < 0) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        data.readFully(bytes);
+
+        return bytes;
+    }
+}
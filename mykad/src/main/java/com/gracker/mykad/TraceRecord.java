@@ -0,0 +1,73 @@
+package com.gracker.mykad;
+
+/**
+ * One entry of an APDU trace.
+ *
+ * @author Jeffrey Loh
+ * @version 1.0, January 2020
+ */
+public final class TraceRecord {
+
+    /** A power action; the argument is the action, the response the ATR. */
+    static final int TYPE_POWER = 1;
+
+    /**
+     * A protocol change; the argument holds the preferred protocols and the
+     * result the protocol set.
+     */
+    static final int TYPE_PROTOCOL = 2;
+
+    /** An exchange; the command and the response are kept. */
+    static final int TYPE_TRANSMIT = 3;
+
+    /**
+     * The start of a read; the argument holds the field mask and the result
+     * is 1 if the photo was read.
+     */
+    static final int TYPE_READ = 4;
+
+    /** The card was removed. */
+    static final int TYPE_REMOVED = 5;
+
+    /**
+     * The state of the session when the trace started; the argument holds
+     * the photo chunk size and the result the transfer length of the slot.
+     */
+    static final int TYPE_SESSION = 6;
+
+    final int type;
+    final int slotNum;
+
+    /** Start of the entry since the start of the trace. */
+    final long timeNanos;
+
+    /** Time the reader took. */
+    final long durationNanos;
+
+    final int argument;
+    final int result;
+    final byte[] command;
+    final byte[] response;
+
+    /** The error message if the operation failed, otherwise null. */
+    final String error;
+
+    TraceRecord(int type, int slotNum, long timeNanos, long durationNanos,
+            int argument, int result, byte[] command, byte[] response,
+            String error) {
+        this.type = type;
+        this.slotNum = slotNum;
+        this.timeNanos = timeNanos;
+        this.durationNanos = durationNanos;
+        this.argument = argument;
+        this.result = result;
+        this.command = command;
+        this.response = response;
+        this.error = error;
+    }
+
+    @Override
+    public String toString() {
+        return "type " + type + " slot " + slotNum + " at " + timeNanos + " ns";
+    }
+}
@@ -0,0 +1,346 @@
+package com.gracker.mykad;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Set;
+
+/**
+ * Records every operation on a card transport to a binary trace file.
+ *
+ * The recorder sits between the read engine and the transport and passes
+ * every call through. While a trace is open, each power action, protocol
+ * change and exchange is appended with its start time and duration in
+ * nanoseconds. Records are packed into a direct buffer that is written to
+ * the file when it fills up and when the trace is closed, so recording costs
+ * no allocation and no system call per APDU.
+ *
+ * <p>
+ * File layout, big-endian: the magic {@code "MYTR"}, a version short and the
+ * wall-clock start in milliseconds, then records made of the type (with
+ * {@link #FLAG_ERROR} set if the operation failed), the slot, the start time
+ * and the duration as longs, the argument and the result as ints, the
+ * command and the response each as a length short followed by the bytes (a
+ * length of -1 for none), and for failed operations the error message as a
+ * length short followed by UTF-8 bytes.
+ * </p>
+ *
+ * <p>
+ * The trace starts with one {@link TraceRecord#TYPE_SESSION} record per
+ * slot holding the state of the reader session, so that a replay starts
+ * from the same photo chunk size and transfer length.
+ * </p>
+ *
+ * @author Jeffrey Loh
+ * @version 1.0, January 2020
+ */
+public final class TraceRecorder implements CardTransport {
+
+    static final int MAGIC = 0x4D595452;
+    static final int VERSION = 2;
+
+    /** Set in the type of a record whose operation failed. */
+    static final int FLAG_ERROR = 0x80;
+
+    /** Longest error message kept. */
+    static final int MAX_ERROR = 0xFF;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int HEADER_SIZE = 2 + 8 + 8 + 4 + 4 + 2 + 2;
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final CardTransport mTransport;
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private FileChannel mChannel;
+    private long mStartNanos;
+
+    /**
+     * Creates a recorder in front of a transport. Nothing is recorded until
+     * a trace is started.
+     *
+     * @param transport
+     *            the transport.
+     */
+    public TraceRecorder(CardTransport transport) {
+        mTransport = transport;
+    }
+
+    /**
+     * Returns the transport being recorded.
+     *
+     * @return the transport.
+     */
+    CardTransport getTransport() {
+        return mTransport;
+    }
+
+    /**
+     * Starts a trace, closing the current one.
+     *
+     * @param file
+     *            the trace file. It is replaced if it exists.
+     * @param session
+     *            the session in front of this recorder, whose state is
+     *            written at the start of the trace.
+     * @throws IOException
+     *             if the file cannot be created.
+     */
+    public void start(File file, ReaderSession session) throws IOException {
+
+        // Read the session first: it calls into this recorder under its lock
+        int photoChunk = session.getPhotoChunk();
+        int[] transferLengths = new int[session.getSlotCount()];
+        for (int slotNum = 0; slotNum < transferLengths.length; slotNum++) {
+            transferLengths[slotNum] = session.getCard(slotNum).getTransferLength();
+        }
+
+        start(file, photoChunk, transferLengths);
+    }
+
+    private synchronized void start(File file, int photoChunk, int[] transferLengths)
+            throws IOException {
+
+        stop();
+
+        FileChannel channel = new FileOutputStream(file).getChannel();
+
+        mBuffer.clear();
+        mBuffer.putInt(MAGIC);
+        mBuffer.putShort((short) VERSION);
+        mBuffer.putLong(System.currentTimeMillis());
+
+        mChannel = channel;
+        mStartNanos = System.nanoTime();
+
+        for (int slotNum = 0; slotNum < transferLengths.length; slotNum++) {
+            record(TraceRecord.TYPE_SESSION, slotNum, mStartNanos, mStartNanos,
+                    photoChunk, transferLengths[slotNum], null, 0, null, 0, null);
+        }
+    }
+
+    /**
+     * Returns true if a trace is open.
+     *
+     * @return true if recording.
+     */
+    synchronized boolean isRecording() {
+        return mChannel != null;
+    }
+
+    /**
+     * Writes the pending records and closes the trace.
+     *
+     * @throws IOException
+     *             if the records cannot be written.
+     */
+    public synchronized void stop() throws IOException {
+
+        FileChannel channel = mChannel;
+        if (channel == null) {
+            return;
+        }
+
+        mChannel = null;
+
+        try {
+            flush(channel);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Records the start of a read, so that a replay can repeat it.
+     *
+     * @param slotNum
+     *            the slot number.
+     * @param fields
+     *            the fields read.
+     * @param readPhoto
+     *            true if the photo is read.
+     */
+    public synchronized void markRead(int slotNum, Set<JpnField> fields,
+            boolean readPhoto) {
+
+        if (mChannel == null) {
+            return;
+        }
+
+        int mask = 0;
+        for (JpnField field : fields) {
+            mask |= 1 << field.ordinal();
+        }
+
+        long now = System.nanoTime();
+        record(TraceRecord.TYPE_READ, slotNum, now, now, mask,
+                readPhoto ? 1 : 0, null, 0, null, 0, null);
+    }
+
+    /**
+     * Records that the card in a slot was removed.
+     *
+     * @param slotNum
+     *            the slot number.
+     */
+    public synchronized void markRemoved(int slotNum) {
+
+        if (mChannel == null) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        record(TraceRecord.TYPE_REMOVED, slotNum, now, now, 0, 0, null, 0,
+                null, 0, null);
+    }
+
+    @Override
+    public synchronized byte[] power(int slotNum, int action)
+            throws SmartCardException {
+
+        long start = System.nanoTime();
+        byte[] atr;
+
+        try {
+            atr = mTransport.power(slotNum, action);
+        } catch (SmartCardException e) {
+            record(TraceRecord.TYPE_POWER, slotNum, start, System.nanoTime(),
+                    action, 0, null, 0, null, 0, e);
+            throw e;
+        }
+
+        record(TraceRecord.TYPE_POWER, slotNum, start, System.nanoTime(),
+                action, 0, null, 0, atr, atr == null ? 0 : atr.length, null);
+
+        return atr;
+    }
+
+    @Override
+    public synchronized int setProtocol(int slotNum, int preferredProtocols)
+            throws SmartCardException {
+
+        long start = System.nanoTime();
+        int protocol;
+
+        try {
+            protocol = mTransport.setProtocol(slotNum, preferredProtocols);
+        } catch (SmartCardException e) {
+            record(TraceRecord.TYPE_PROTOCOL, slotNum, start,
+                    System.nanoTime(), preferredProtocols, 0, null, 0, null,
+                    0, e);
+            throw e;
+        }
+
+        record(TraceRecord.TYPE_PROTOCOL, slotNum, start, System.nanoTime(),
+                preferredProtocols, protocol, null, 0, null, 0, null);
+
+        return protocol;
+    }
+
+    @Override
+    public int getProtocol(int slotNum) {
+        return mTransport.getProtocol(slotNum);
+    }
+
+    @Override
+    public int getState(int slotNum) {
+        return mTransport.getState(slotNum);
+    }
+
+    @Override
+    public synchronized int transmit(int slotNum, byte[] command,
+            int commandLength, byte[] response, int responseLength)
+            throws SmartCardException {
+
+        long start = System.nanoTime();
+        int length;
+
+        try {
+            length = mTransport.transmit(slotNum, command, commandLength,
+                    response, responseLength);
+        } catch (SmartCardException e) {
+            record(TraceRecord.TYPE_TRANSMIT, slotNum, start,
+                    System.nanoTime(), 0, 0, command, commandLength, null, 0,
+                    e);
+            throw e;
+        }
+
+        record(TraceRecord.TYPE_TRANSMIT, slotNum, start, System.nanoTime(),
+                0, 0, command, commandLength, response, length, null);
+
+        return length;
+    }
+
+    private void record(int type, int slotNum, long start, long end,
+            int argument, int result, byte[] command, int commandLength,
+            byte[] response, int responseLength, Exception e) {
+
+        FileChannel channel = mChannel;
+        if (channel == null) {
+            return;
+        }
+
+        byte[] error = null;
+        if (e != null) {
+            String message = String.valueOf(e.getMessage());
+            error = message.getBytes(UTF_8);
+        }
+        int errorLength = (error == null) ? 0 : Math.min(error.length, MAX_ERROR);
+
+        int size = HEADER_SIZE + (command == null ? 0 : commandLength)
+                + (response == null ? 0 : responseLength)
+                + (error == null ? 0 : 2 + errorLength);
+
+        try {
+
+            if (mBuffer.remaining() < size) {
+                flush(channel);
+            }
+
+            mBuffer.put((byte) (type | (error == null ? 0 : FLAG_ERROR)));
+            mBuffer.put((byte) slotNum);
+            mBuffer.putLong(start - mStartNanos);
+            mBuffer.putLong(end - start);
+            mBuffer.putInt(argument);
+            mBuffer.putInt(result);
+            putBytes(command, commandLength);
+            putBytes(response, responseLength);
+
+            if (error != null) {
+                mBuffer.putShort((short) errorLength);
+                mBuffer.put(error, 0, errorLength);
+            }
+
+        } catch (IOException ioe) {
+
+            // Give up the trace rather than fail the read
+            mChannel = null;
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void putBytes(byte[] bytes, int length) {
+
+        if (bytes == null) {
+            mBuffer.putShort((short) -1);
+        } else {
+            mBuffer.putShort((short) length);
+            mBuffer.put(bytes, 0, length);
+        }
+    }
+
+    private void flush(FileChannel channel) throws IOException {
+
+        mBuffer.flip();
+        while (mBuffer.hasRemaining()) {
+            channel.write(mBuffer);
+        }
+        mBuffer.clear();
+    }
+}
@@ -0,0 +1,128 @@
+package com.gracker.mykad;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Runs the reads of a recorded trace through the read engine again.
+ *
+ * The session starts with the photo chunk size and transfer lengths the
+ * trace was recorded with. Each read starts with the fields and photo
+ * option it was recorded with, and card removals reset the card session as
+ * they did on the device, so the engine sends the same commands and gets
+ * the recorded responses. The latencies of the replay are kept in statistics
+ * of its own, so a replay does not mix with the reads of the process.
+ *
+ * @author Jeffrey Loh
+ * @version 1.0, January 2020
+ */
+public final class TraceReplayer {
+
+    /**
+     * Interface definition for a callback to be invoked after every read of
+     * the trace.
+     */
+    public interface Listener {
+
+        /**
+         * Called when a read has been replayed.
+         *
+         * @param slotNum
+         *            the slot number.
+         * @param result
+         *            the result.
+         * @param elapsedNanos
+         *            the time the read took.
+         */
+        void onReplay(int slotNum, ReadIcResult result, long elapsedNanos);
+    }
+
+    private final ReplayTransport mTransport;
+    private final ReadStats mStats = new ReadStats();
+    private final ReaderSession mSession;
+    private final JpnReader mJpnReader;
+
+    /**
+     * Creates a replayer.
+     *
+     * @param records
+     *            the trace.
+     * @param realTime
+     *            true to take as long as the reader did, false to run at
+     *            full speed.
+     */
+    public TraceReplayer(List<TraceRecord> records, boolean realTime) {
+        mTransport = new ReplayTransport(records, realTime);
+        mSession = new ReaderSession(mTransport, mStats);
+        mJpnReader = new JpnReader(mSession);
+
+        for (TraceRecord record : mTransport.getSessionRecords()) {
+            mSession.setPhotoChunk(record.argument);
+            mSession.getCard(record.slotNum).setTransferLength(record.result);
+        }
+    }
+
+    /**
+     * Returns the session the reads run in, for its statistics.
+     *
+     * @return the session.
+     */
+    ReaderSession getSession() {
+        return mSession;
+    }
+
+    /**
+     * Returns the statistics of the replay.
+     *
+     * @return the statistics.
+     */
+    public ReadStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Replays every read of the trace.
+     *
+     * @param listener
+     *            the listener, or null.
+     * @return the number of reads replayed.
+     */
+    public int run(Listener listener) {
+
+        int count = 0;
+        TraceRecord read;
+
+        while ((read = mTransport.nextRead()) != null) {
+
+            // Mirror the card removals recorded before this read
+            if (mTransport.getState(read.slotNum) < CardTransport.CARD_POWERED) {
+                mSession.forget(read.slotNum);
+            }
+
+            long start = System.nanoTime();
+            ReadIcResult result = mJpnReader.read(read.slotNum,
+                    fields(read.argument), read.result != 0, null);
+            long elapsed = System.nanoTime() - start;
+
+            count++;
+            if (listener != null) {
+                listener.onReplay(read.slotNum, result, elapsed);
+            }
+        }
+
+        return count;
+    }
+
+    private static Set<JpnField> fields(int mask) {
+
+        Set<JpnField> fields = EnumSet.noneOf(JpnField.class);
+        for (JpnField field : JpnField.values()) {
+            if ((mask & (1 << field.ordinal())) != 0) {
+                fields.add(field);
+            }
+        }
+
+        return fields;
+    }
+}
@@ -0,0 +1,31 @@
+package com.gracker.mykad;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BackoffTest {
+
+    @Test
+    public void delayDoublesUpToTheCap() {
+        assertEquals(10, Backoff.delayMillis(1));
+        assertEquals(20, Backoff.delayMillis(2));
+        assertEquals(40, Backoff.delayMillis(3));
+        assertEquals(80, Backoff.delayMillis(4));
+        assertEquals(80, Backoff.delayMillis(100));
+    }
+
+    @Test
+    public void pauseStopsWhenInterrupted() {
+
+        Thread.currentThread().interrupt();
+        try {
+            Backoff.pause(1);
+            fail();
+        } catch (ReadCancelledException e) {
+            assertFalse(e.isTimeout());
+        } finally {
+            Thread.interrupted();
+        }
+    }
+}
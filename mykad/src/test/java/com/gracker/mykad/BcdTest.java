@@ -0,0 +1,34 @@
+package com.gracker.mykad;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BcdTest {
+
+    @Test
+    public void readsADate() {
+        byte[] data = { 0x00, 0x19, (byte) 0x90, 0x01, 0x31 };
+        assertEquals(19900131, Bcd.date(data, 1));
+        assertEquals("31-1-1990", Bcd.formatDate(Bcd.date(data, 1)));
+    }
+
+    @Test
+    public void readsAPostcode() {
+        byte[] data = { 0x50, 0x48, 0x00 };
+        assertEquals(50480, Bcd.postcode(data, 0));
+    }
+
+    @Test
+    public void decodesTheFieldsOfACardImage() {
+
+        CardImage image = TestCards.image();
+        ReadIcResult result = new ReadIcResult();
+
+        JpnReader.decode(image, result);
+
+        assertEquals(TestCards.IC, result.getIc());
+        assertEquals(TestCards.DOB, result.getDob());
+        assertEquals(TestCards.POSTCODE, result.getPostcode());
+    }
+}
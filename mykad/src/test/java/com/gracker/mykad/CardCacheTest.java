@@ -0,0 +1,145 @@
+package com.gracker.mykad;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CardCacheTest {
+
+    private static final Set<JpnField> ALL = EnumSet.allOf(JpnField.class);
+    private static final byte[] ATR = { 0x3B, 0x00 };
+
+    private static ReadIcResult result(byte[] photo) {
+        return result(ALL, photo);
+    }
+
+    private static ReadIcResult result(Set<JpnField> fields, byte[] photo) {
+        CardImage image = TestCards.image();
+        image.removeFields(EnumSet.complementOf(EnumSet.copyOf(fields)));
+        ReadIcResult result = new ReadIcResult();
+        JpnReader.decode(image, result);
+        result.photo = photo;
+        return result;
+    }
+
+    @Test
+    public void aSecondTapSkipsTheFullRead() {
+
+        SimulatedJpnCard card = TestCards.card(1);
+        CardCache cache = new CardCache(8, 1 << 20, 60000);
+        JpnReader reader = new JpnReader(new ReaderSession(card));
+        reader.setCache(cache);
+
+        ReadIcResult first = reader.read(0, ALL, true, null);
+        assertNull(first.e);
+        long full = card.getTransmitCount();
+
+        ReadIcResult second = reader.read(0, ALL, true, null);
+        long cached = card.getTransmitCount() - full;
+
+        assertEquals(TestCards.NAME, second.getName());
+        assertArrayEquals(TestCards.jpeg(), second.photo);
+        // Only the IC: set length, select range and read
+        assertEquals(3, cached);
+        assertTrue(full > 30);
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void missesWhenThePhotoWasNotCached() {
+
+        CardCache cache = new CardCache(8, 1 << 20, 60000);
+        cache.put(TestCards.IC, ATR, ALL, result(null), 0);
+
+        assertNull(cache.get(TestCards.IC, ATR, ALL, true, 0));
+        assertNotNull(cache.get(TestCards.IC, ATR, ALL, false, 0));
+        assertNull(cache.get(TestCards.IC, new byte[] { 0x3B }, ALL, false, 0));
+    }
+
+    @Test
+    public void entriesExpire() {
+
+        CardCache cache = new CardCache(8, 1 << 20, 1000);
+        cache.put(TestCards.IC, ATR, ALL, result(null), 0);
+
+        assertNotNull(cache.get(TestCards.IC, ATR, ALL, false, 1000000000L));
+        assertNull(cache.get(TestCards.IC, ATR, ALL, false, 1000000001L));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void dropsTheLeastRecentlyUsed() {
+
+        CardCache cache = new CardCache(2, 1 << 20, 60000);
+        cache.put("1", ATR, ALL, result(null), 0);
+        cache.put("2", ATR, ALL, result(null), 0);
+        cache.get("1", ATR, ALL, false, 0);
+        cache.put("3", ATR, ALL, result(null), 0);
+
+        assertNotNull(cache.get("1", ATR, ALL, false, 0));
+        assertNull(cache.get("2", ATR, ALL, false, 0));
+        assertNotNull(cache.get("3", ATR, ALL, false, 0));
+    }
+
+    @Test
+    public void keepsWithinTheByteCap() {
+
+        CardCache cache = new CardCache(100, 16000, 60000);
+        for (int i = 0; i < 10; i++) {
+            cache.put(Integer.toString(i), ATR, ALL, result(new byte[4000]), 0);
+        }
+
+        assertEquals(3, cache.size());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void aTextReadKeepsTheCachedPhoto() {
+
+        Set<JpnField> name = EnumSet.of(JpnField.NAME);
+        CardCache cache = new CardCache(8, 1 << 20, 60000);
+        cache.put(TestCards.IC, ATR, ALL, result(TestCards.jpeg()), 0);
+        cache.put(TestCards.IC, ATR, name, result(name, null), 1);
+
+        ReadIcResult cached = cache.get(TestCards.IC, ATR, ALL, true, 2);
+        assertNotNull(cached);
+        assertArrayEquals(TestCards.jpeg(), cached.photo);
+        assertEquals(TestCards.NAME, cached.getName());
+        assertEquals(TestCards.IC, cached.getIc());
+    }
+
+    @Test
+    public void mergesTheFieldsOfTwoReads() {
+
+        Set<JpnField> name = EnumSet.of(JpnField.NAME);
+        Set<JpnField> ic = EnumSet.of(JpnField.IC);
+        CardCache cache = new CardCache(8, 1 << 20, 60000);
+        cache.put(TestCards.IC, ATR, name, result(name, null), 0);
+        cache.put(TestCards.IC, ATR, ic, result(ic, null), 1);
+
+        ReadIcResult cached = cache.get(TestCards.IC, ATR, EnumSet.of(JpnField.NAME, JpnField.IC),
+                false, 2);
+        assertNotNull(cached);
+        assertEquals(TestCards.NAME, cached.getName());
+        assertEquals(TestCards.IC, cached.getIc());
+        assertNull(cache.get(TestCards.IC, ATR, ALL, false, 2));
+    }
+
+    @Test
+    public void doesNotMergeAnExpiredEntry() {
+
+        Set<JpnField> name = EnumSet.of(JpnField.NAME);
+        CardCache cache = new CardCache(8, 1 << 20, 1000);
+        cache.put(TestCards.IC, ATR, ALL, result(TestCards.jpeg()), 0);
+        cache.put(TestCards.IC, ATR, name, result(name, null), 1000000001L);
+
+        assertNull(cache.get(TestCards.IC, ATR, name, true, 1000000002L));
+        assertNotNull(cache.get(TestCards.IC, ATR, name, false, 1000000002L));
+    }
+}
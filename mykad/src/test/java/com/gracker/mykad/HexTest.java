@@ -0,0 +1,20 @@
+package com.gracker.mykad;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HexTest {
+
+    @Test
+    public void toHexStringOfInt() {
+        assertEquals("9000", Hex.toHexString(0x9000));
+        assertEquals("0A", Hex.toHexString(0xA));
+    }
+
+    @Test
+    public void toHexStringOfBytes() {
+        assertEquals("00 C0 FF ", Hex.toHexString(new byte[] { 0x00, (byte) 0xC0, (byte) 0xFF }));
+        assertEquals("C0 ", Hex.toHexString(new byte[] { 0x00, (byte) 0xC0, (byte) 0xFF }, 1, 1));
+    }
+}
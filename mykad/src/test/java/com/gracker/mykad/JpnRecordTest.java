@@ -0,0 +1,67 @@
+package com.gracker.mykad;
+
+import java.util.EnumSet;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class JpnRecordTest {
+
+    @Test
+    public void decodesTextWithoutPadding() {
+
+        JpnRecord record = new JpnRecord(TestCards.image());
+
+        assertEquals(TestCards.NAME, record.getName());
+        assertEquals("", record.getText(JpnField.ADDRESS3));
+        assertSame(record.getIc(), record.getIc());
+    }
+
+    @Test
+    public void keepsThePaddingOfUntrimmedFields() {
+
+        JpnRecord record = new JpnRecord(TestCards.image());
+        String birthPlace = record.getText(JpnField.BIRTH_PLACE);
+
+        assertEquals(JpnField.BIRTH_PLACE.length, birthPlace.length());
+        assertEquals(TestCards.BIRTH_PLACE, birthPlace.trim());
+        assertEquals(TestCards.OLD_IC, record.getText(JpnField.OLD_IC));
+    }
+
+    @Test
+    public void comparesTextWithoutDecoding() {
+
+        JpnRecord record = new JpnRecord(TestCards.image());
+
+        assertTrue(record.textEquals(JpnField.IC, TestCards.IC));
+        assertFalse(record.textEquals(JpnField.IC, TestCards.IC + "0"));
+        assertFalse(record.textEquals(JpnField.NAME, "AHMAD BIN ABDULLAX"));
+    }
+
+    @Test
+    public void returnsDatesAndPostcodeAsNumbers() {
+
+        JpnRecord record = new JpnRecord(TestCards.image());
+
+        assertEquals(19900131, record.getDate(JpnField.DOB));
+        assertEquals(20150302, record.getDate(JpnField.ISSUE_DATE));
+        assertEquals(50480, record.getPostcode());
+    }
+
+    @Test
+    public void fieldsNotReadAreMissing() {
+
+        byte[] jpn1 = TestCards.jpn1();
+        CardImage image = new CardImage();
+        image.put(JpnCommands.FILE_JPN1, 0, jpn1, jpn1.length);
+        image.addFields(EnumSet.of(JpnField.IC));
+
+        JpnRecord record = new JpnRecord(image);
+
+        assertEquals(TestCards.IC, record.getIc());
+        assertNull(record.getName());
+        assertEquals(-1, record.getDate(JpnField.DOB));
+        assertEquals(-1, record.getPostcode());
+    }
+}
@@ -0,0 +1,67 @@
+package com.gracker.mykad;
+
+import java.util.EnumSet;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsCoverTheirValues() {
+        for (long value = 0; value < 1000000; value += 7) {
+            int bucket = LatencyHistogram.bucket(value);
+            assertTrue(value <= LatencyHistogram.upperBound(bucket));
+            assertTrue(bucket == 0 || value > LatencyHistogram.upperBound(bucket - 1));
+        }
+    }
+
+    @Test
+    public void percentilesAreWithinOneBucket() {
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500500, histogram.getMean());
+        assertEquals(1000000, histogram.getMax());
+
+        long p50 = histogram.getPercentile(50);
+        assertTrue(p50 >= 500000 && p50 <= 500000 * 9 / 8);
+        long p99 = histogram.getPercentile(99);
+        assertTrue(p99 >= 990000 && p99 <= 1000000);
+    }
+
+    @Test
+    public void resetForgetsEverything() {
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(123);
+        histogram.reset();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(99));
+        assertEquals(0, histogram.getMax());
+    }
+
+    @Test
+    public void readsAreRecordedPerPhaseAndApdu() throws Exception {
+
+        ReadStats stats = ReadStats.get();
+        stats.reset();
+
+        ReaderSession session = new ReaderSession(TestCards.card(1));
+        ReadIcResult result = new JpnReader(session).read(0,
+                EnumSet.allOf(JpnField.class), true, null);
+        assertNull(result.e);
+
+        assertEquals(1, stats.getHistogram(ReadStats.Phase.READ).getCount());
+        assertEquals(1, stats.getHistogram(ReadStats.Phase.POWER).getCount());
+        assertEquals(1, stats.getHistogram(ReadStats.Phase.PHOTO).getCount());
+        assertTrue(stats.getHistogram(ReadStats.ApduType.READ).getCount() > 0);
+        assertEquals(1, stats.getRetries(ReadStats.Retry.GET_RESPONSE));
+    }
+}
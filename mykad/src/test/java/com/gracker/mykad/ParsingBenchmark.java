@@ -0,0 +1,81 @@
+package com.gracker.mykad;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks of the HEX formatting, BCD and field decoding of a card image.
+ *
+ * Run with {@code ./gradlew :mykad:jmh}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParsingBenchmark {
+
+    private CardImage mImage;
+    private byte[] mJpn1;
+    private byte[] mAddress;
+    private byte[] mResponse;
+
+    @Setup
+    public void setUp() {
+        mImage = TestCards.image();
+        mJpn1 = mImage.getFile(JpnCommands.FILE_JPN1);
+        mAddress = mImage.getFile(JpnCommands.FILE_ADDRESS);
+
+        // A full read response
+        mResponse = new byte[ReaderSession.MAX_RESPONSE];
+        System.arraycopy(mJpn1, 0, mResponse, 0, mResponse.length - 2);
+    }
+
+    @Benchmark
+    public String toHexString() {
+        return Hex.toHexString(mResponse);
+    }
+
+    @Benchmark
+    public int readBcdDate() {
+        return Bcd.date(mJpn1, JpnField.DOB.offset);
+    }
+
+    @Benchmark
+    public int readBcdPostcode() {
+        return Bcd.postcode(mAddress, JpnField.POSTCODE.offset);
+    }
+
+    /** Decodes every field of JPN1-0, JPN1-1 and JPN1-4. */
+    @Benchmark
+    public void decodeFields(Blackhole blackhole) {
+        JpnRecord record = new JpnRecord(mImage);
+        for (JpnField field : JpnField.values()) {
+            if (field == JpnField.DOB || field == JpnField.ISSUE_DATE) {
+                blackhole.consume(record.getDate(field));
+            } else if (field == JpnField.POSTCODE) {
+                blackhole.consume(record.getPostcode());
+            } else {
+                blackhole.consume(record.getText(field));
+            }
+        }
+    }
+
+    /** Decodes the IC number alone. */
+    @Benchmark
+    public String decodeIc() {
+        return new JpnRecord(mImage).getIc();
+    }
+}
@@ -0,0 +1,109 @@
+package com.gracker.mykad;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the photo chunk assembly.
+ *
+ * The photo file comes from the sample card, or from the JPEG named by the
+ * {@code mykad.photo} system property, so a photo captured from a real card
+ * can be measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PhotoBenchmark {
+
+    private byte[] mPhotoFile;
+    private JpegEndScanner mScanner;
+    private PhotoTransfer mTransfer;
+
+    @Setup
+    public void setUp() throws IOException {
+
+        mPhotoFile = TestCards.photoFile();
+
+        String path = System.getProperty("mykad.photo");
+        if (path != null) {
+            byte[] jpeg = readFile(new File(path));
+            mPhotoFile = new byte[JpnCommands.PHOTO_OFFSET + JpnCommands.PHOTO_MAX];
+            System.arraycopy(jpeg, 0, mPhotoFile, JpnCommands.PHOTO_OFFSET,
+                    Math.min(jpeg.length, JpnCommands.PHOTO_MAX));
+        }
+
+        mScanner = new JpegEndScanner();
+
+        SimulatedJpnCard card = new SimulatedJpnCard(1)
+                .setFile(JpnCommands.FILE_PHOTO, mPhotoFile);
+        ReaderSession session = new ReaderSession(card);
+        mTransfer = new PhotoTransfer(session);
+
+        // The transfer needs a selected card
+        try {
+            session.power(0, CardTransport.CARD_COLD_RESET);
+            session.send(0, JpnCommands.SELECT_APPLICATION);
+        } catch (SmartCardException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+
+        byte[] data = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int length = 0;
+            while (length < data.length) {
+                int n = in.read(data, length, data.length - length);
+                if (n < 0) {
+                    break;
+                }
+                length += n;
+            }
+        } finally {
+            in.close();
+        }
+
+        return data;
+    }
+
+    /** Finds the end of the image in 255 byte chunks. */
+    @Benchmark
+    public int scanChunks() {
+
+        mScanner.reset();
+
+        int end = -1;
+        for (int offset = JpnCommands.PHOTO_OFFSET; end < 0
+                && offset < mPhotoFile.length; offset += JpnCommands.MAX_CHUNK) {
+            end = mScanner.feed(mPhotoFile, offset,
+                    Math.min(JpnCommands.MAX_CHUNK, mPhotoFile.length - offset));
+        }
+
+        return end;
+    }
+
+    /** Reads and assembles the photo from a card without latency. */
+    @Benchmark
+    public byte[] transferPhoto() throws SmartCardException {
+        return mTransfer.read(0, null, null);
+    }
+}
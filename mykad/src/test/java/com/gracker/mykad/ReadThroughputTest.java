@@ -0,0 +1,137 @@
+package com.gracker.mykad;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures end-to-end read throughput and latency against simulated cards.
+ *
+ * Every read is a cold read of a freshly inserted card: power, select, the
+ * text fields and the photo. Every read must succeed within the read
+ * timeout, and reads on separate readers must overlap.
+ */
+public class ReadThroughputTest {
+
+    private static final int READS = 200;
+    private static final Set<JpnField> ALL = EnumSet.allOf(JpnField.class);
+
+    /** Reads a card the given number of times and returns the latencies. */
+    private static long[] readCards(SimulatedJpnCard card, int reads) {
+
+        ReaderSession session = new ReaderSession(card);
+        JpnReader reader = new JpnReader(session);
+        long[] latencies = new long[reads];
+
+        for (int i = 0; i < reads; i++) {
+
+            // A new card every time
+            card.setPresent(false);
+            session.invalidate(0);
+            card.setPresent(true);
+
+            long start = System.nanoTime();
+            ReadIcResult result = reader.read(0, ALL, true, null);
+            latencies[i] = System.nanoTime() - start;
+
+            assertNull(result.e);
+            assertEquals(TestCards.IC, result.getIc());
+            assertNotNull(result.photo);
+        }
+
+        return latencies;
+    }
+
+    /** Checks that every read took less than the read timeout. */
+    private static void assertWithinTimeout(long[] latencies) {
+
+        long bound = TimeUnit.MILLISECONDS.toNanos(ReadIcParams.DEFAULT_TIMEOUT_MILLIS);
+        for (long latency : latencies) {
+            assertTrue(latency < bound);
+        }
+    }
+
+    @Test
+    public void engineThroughputWithoutLatency() {
+
+        SimulatedJpnCard card = TestCards.card(1);
+
+        // Warm up the JIT and the command tables
+        readCards(card, READS);
+
+        long[] latencies = readCards(card, READS);
+        assertWithinTimeout(latencies);
+    }
+
+    @Test
+    public void tailLatencyWithJitter() {
+
+        // 100 us per exchange plus up to 400 us of jitter
+        SimulatedJpnCard card = TestCards.card(2).setLatency(100000, 400000);
+
+        long[] latencies = readCards(card, READS / 4);
+        assertWithinTimeout(latencies);
+
+        long exchanges = card.getTransmitCount() / latencies.length;
+        assertTrue(exchanges > 0);
+    }
+
+    @Test
+    public void readersScaleInParallel() throws Exception {
+
+        final int readers = 4;
+        ExecutorService executor = Executors.newFixedThreadPool(readers);
+
+        try {
+
+            List<Future<long[]>> futures = new ArrayList<Future<long[]>>();
+            long start = System.nanoTime();
+
+            for (int i = 0; i < readers; i++) {
+
+                final SimulatedJpnCard card = TestCards.card(10 + i).setLatency(50000, 0);
+                futures.add(executor.submit(new Callable<long[]>() {
+
+                    @Override
+                    public long[] call() {
+                        return readCards(card, READS / 8);
+                    }
+                }));
+            }
+
+            long[] all = new long[0];
+            for (Future<long[]> future : futures) {
+                long[] latencies = future.get();
+                int length = all.length;
+                all = Arrays.copyOf(all, length + latencies.length);
+                System.arraycopy(latencies, 0, all, length, latencies.length);
+            }
+
+            long elapsed = System.nanoTime() - start;
+            assertEquals(readers * (READS / 8), all.length);
+            assertWithinTimeout(all);
+
+            // The card latency is waited out in parallel, so the readers
+            // together take well under the sum of their reads
+            long total = 0;
+            for (long latency : all) {
+                total += latency;
+            }
+            assertTrue(elapsed < total / 2);
+
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
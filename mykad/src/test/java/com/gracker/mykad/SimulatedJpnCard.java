@@ -0,0 +1,442 @@
+package com.gracker.mykad;
+
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An in-memory MyKad with the JPN application, for running the read engine
+ * without a reader.
+ *
+ * The card answers the application select, {@code C8 32}, {@code CC 00} and
+ * {@code CC 06} from file images, and GET RESPONSE under T=0. Each exchange
+ * can be delayed and can fail at a given rate, with a seeded random source
+ * so that runs are repeatable. Reads can also be made to fail at a given
+ * point, to exercise the retries.
+ *
+ * @author Jeffrey Loh
+ * @version 1.0, January 2020
+ */
+final class SimulatedJpnCard implements CardTransport {
+
+    /** ATR of a card that offers T=0 only. */
+    static final byte[] ATR_T0 = { 0x3B, 0x67, 0x00, 0x00, 0x29, 0x20, 0x00,
+            0x6F, 0x78, (byte) 0x90, 0x00 };
+
+    /** ATR of a card that offers T=0 and T=1. */
+    static final byte[] ATR_T0_T1 = { 0x3B, (byte) 0x8A, (byte) 0x80, 0x01,
+            0x4A, 0x50, 0x4E, 0x20, 0x53, 0x49, 0x4D, 0x20, 0x20, 0x20, 0x0B };
+
+    private static final int SW_SUCCESS = 0x9000;
+    private static final int SW_WRONG_LENGTH = 0x6700;
+    private static final int SW_NOT_SELECTED = 0x6985;
+    private static final int SW_FILE_NOT_FOUND = 0x6A82;
+    private static final int SW_WRONG_PARAMS = 0x6B00;
+    private static final int SW_INS_NOT_SUPPORTED = 0x6D00;
+    private static final int SW_NO_PRECISE_DIAGNOSIS = 0x6F00;
+
+    /** Response of the application select. */
+    private static final byte[] SELECT_RESPONSE = { 0x6F, 0x03, (byte) 0x84,
+            0x01, 0x10 };
+
+    private static final byte[] JPN_AID = { (byte) 0xA0, 0x00, 0x00, 0x00,
+            0x74, 0x4A, 0x50, 0x4E, 0x00, 0x10 };
+
+    private final byte[][] mFiles = new byte[8][];
+    private final Random mRandom;
+
+    private byte[] mAtr = ATR_T0;
+    private int mProtocols = PROTOCOL_T0;
+    private boolean mPresent = true;
+    private boolean mPowered;
+    private int mProtocol = PROTOCOL_UNDEFINED;
+
+    private boolean mSelected;
+    private int mTransferLength;
+    private int mFile = -1;
+    private int mOffset;
+    private int mLength;
+    private byte[] mPendingResponse;
+
+    private long mLatencyNanos;
+    private long mJitterNanos;
+    private double mTransmitErrorRate;
+    private double mStatusErrorRate;
+    private int mReadsBeforeFailure;
+    private int mFailedReads;
+    private int mMaxChunk = JpnCommands.MAX_CHUNK;
+
+    private long mTransmitCount;
+    private final int[] mRangeSelects = new int[8];
+
+    /**
+     * Creates a card with no files and a repeatable random source.
+     *
+     * @param seed
+     *            the seed of the random source.
+     */
+    SimulatedJpnCard(long seed) {
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * Sets the contents of a file.
+     *
+     * @param file
+     *            the file number.
+     * @param data
+     *            the file image.
+     * @return this card.
+     */
+    synchronized SimulatedJpnCard setFile(int file, byte[] data) {
+        mFiles[file] = data;
+        return this;
+    }
+
+    /**
+     * Makes the card offer T=1 as well as T=0.
+     *
+     * @param supportsT1
+     *            true to offer T=1.
+     * @return this card.
+     */
+    synchronized SimulatedJpnCard setSupportsT1(boolean supportsT1) {
+        mAtr = supportsT1 ? ATR_T0_T1 : ATR_T0;
+        mProtocols = supportsT1 ? PROTOCOL_T0 | PROTOCOL_T1 : PROTOCOL_T0;
+        return this;
+    }
+
+    /**
+     * Sets the time every exchange takes.
+     *
+     * @param latencyNanos
+     *            the fixed part.
+     * @param jitterNanos
+     *            the largest random part added.
+     * @return this card.
+     */
+    synchronized SimulatedJpnCard setLatency(long latencyNanos, long jitterNanos) {
+        mLatencyNanos = latencyNanos;
+        mJitterNanos = jitterNanos;
+        return this;
+    }
+
+    /**
+     * Sets how often exchanges fail.
+     *
+     * @param transmitErrorRate
+     *            the share of exchanges that throw, as a broken link would.
+     * @param statusErrorRate
+     *            the share of exchanges answered with {@code 6F00}.
+     * @return this card.
+     */
+    synchronized SimulatedJpnCard setErrorRates(double transmitErrorRate,
+            double statusErrorRate) {
+        mTransmitErrorRate = transmitErrorRate;
+        mStatusErrorRate = statusErrorRate;
+        return this;
+    }
+
+    /**
+     * Makes reads fail with {@code 6F00} after a number of good ones.
+     *
+     * @param skip
+     *            the number of reads that still succeed.
+     * @param count
+     *            the number of reads that fail after them.
+     * @return this card.
+     */
+    synchronized SimulatedJpnCard failReads(int skip, int count) {
+        mReadsBeforeFailure = skip;
+        mFailedReads = count;
+        return this;
+    }
+
+    /**
+     * Makes reads longer than a chunk size fail with {@code 6700}, as on a
+     * reader that cannot take full-size responses.
+     *
+     * @param maxChunk
+     *            the longest read that succeeds.
+     * @return this card.
+     */
+    synchronized SimulatedJpnCard setMaxChunk(int maxChunk) {
+        mMaxChunk = maxChunk;
+        return this;
+    }
+
+    /**
+     * Inserts or removes the card.
+     *
+     * @param present
+     *            true if the card is in the slot.
+     */
+    synchronized void setPresent(boolean present) {
+        mPresent = present;
+        if (!present) {
+            mPowered = false;
+            reset();
+        }
+    }
+
+    /**
+     * Returns the number of ranges of a file selected with {@code CC 00}.
+     *
+     * @param file
+     *            the file number.
+     * @return the select count.
+     */
+    synchronized int getRangeSelects(int file) {
+        return mRangeSelects[file];
+    }
+
+    /**
+     * Returns the number of exchanges made.
+     *
+     * @return the exchange count.
+     */
+    synchronized long getTransmitCount() {
+        return mTransmitCount;
+    }
+
+    @Override
+    public synchronized byte[] power(int slotNum, int action)
+            throws SmartCardException {
+
+        if (!mPresent) {
+            throw new SmartCardException("No card");
+        }
+
+        reset();
+        mProtocol = PROTOCOL_UNDEFINED;
+        mPowered = (action != CARD_POWER_DOWN);
+
+        return mPowered ? mAtr.clone() : null;
+    }
+
+    @Override
+    public synchronized int setProtocol(int slotNum, int preferredProtocols)
+            throws SmartCardException {
+
+        if (!mPowered) {
+            throw new SmartCardException("Card not powered");
+        }
+
+        int protocols = preferredProtocols & mProtocols;
+        if (protocols == 0) {
+            throw new SmartCardException("Protocol not supported");
+        }
+
+        mProtocol = ((protocols & PROTOCOL_T1) != 0) ? PROTOCOL_T1 : PROTOCOL_T0;
+        return mProtocol;
+    }
+
+    @Override
+    public synchronized int getProtocol(int slotNum) {
+        return mProtocol;
+    }
+
+    @Override
+    public synchronized int getState(int slotNum) {
+
+        if (!mPresent) {
+            return CARD_ABSENT;
+        } else if (!mPowered) {
+            return CARD_PRESENT;
+        }
+
+        return (mProtocol == PROTOCOL_UNDEFINED) ? CARD_NEGOTIABLE : CARD_SPECIFIC;
+    }
+
+    @Override
+    public int transmit(int slotNum, byte[] command, int commandLength,
+            byte[] response, int responseLength) throws SmartCardException {
+
+        long delay;
+        boolean transmitError;
+        boolean statusError;
+
+        synchronized (this) {
+
+            if (!mPowered) {
+                throw new SmartCardException("Card not powered");
+            }
+
+            mTransmitCount++;
+            delay = mLatencyNanos + (mJitterNanos > 0
+                    ? (long) (mRandom.nextDouble() * mJitterNanos) : 0);
+            transmitError = mRandom.nextDouble() < mTransmitErrorRate;
+            statusError = mRandom.nextDouble() < mStatusErrorRate;
+        }
+
+        // The card takes its time outside the lock, like a real link
+        pause(delay);
+
+        if (transmitError) {
+            throw new SmartCardException("Simulated transmit error");
+        }
+
+        synchronized (this) {
+
+            if (statusError) {
+                return status(response, 0, SW_NO_PRECISE_DIAGNOSIS);
+            }
+
+            return process(command, commandLength, response);
+        }
+    }
+
+    private int process(byte[] command, int length, byte[] response) {
+
+        if (length < 4) {
+            return status(response, 0, SW_WRONG_LENGTH);
+        }
+
+        int cla = command[0] & 0xFF;
+        int ins = command[1] & 0xFF;
+
+        if (cla == 0x00 && ins == 0xA4) {
+            return select(command, length, response);
+        } else if (cla == 0x00 && ins == 0xC0) {
+            return getResponse(command, length, response);
+        }
+
+        mPendingResponse = null;
+
+        if (!mSelected) {
+            return status(response, 0, SW_NOT_SELECTED);
+        } else if (cla == 0xC8 && ins == 0x32) {
+            return setLength(command, length, response);
+        } else if (cla == 0xCC && ins == 0x00) {
+            return selectRange(command, length, response);
+        } else if (cla == 0xCC && ins == 0x06) {
+            if (mFailedReads > 0 && mReadsBeforeFailure-- <= 0) {
+                mFailedReads--;
+                return status(response, 0, SW_NO_PRECISE_DIAGNOSIS);
+            }
+            return read(command, length, response);
+        }
+
+        return status(response, 0, SW_INS_NOT_SUPPORTED);
+    }
+
+    private int select(byte[] command, int length, byte[] response) {
+
+        mPendingResponse = null;
+
+        if (length < 5 + JPN_AID.length || (command[4] & 0xFF) != JPN_AID.length) {
+            return status(response, 0, SW_WRONG_LENGTH);
+        }
+
+        for (int i = 0; i < JPN_AID.length; i++) {
+            if (command[5 + i] != JPN_AID[i]) {
+                mSelected = false;
+                return status(response, 0, SW_FILE_NOT_FOUND);
+            }
+        }
+
+        mSelected = true;
+
+        if (mProtocol == PROTOCOL_T1) {
+            System.arraycopy(SELECT_RESPONSE, 0, response, 0, SELECT_RESPONSE.length);
+            return status(response, SELECT_RESPONSE.length, SW_SUCCESS);
+        }
+
+        // T=0: the response waits for a GET RESPONSE
+        mPendingResponse = SELECT_RESPONSE;
+        return status(response, 0, 0x6100 | SELECT_RESPONSE.length);
+    }
+
+    private int getResponse(byte[] command, int length, byte[] response) {
+
+        byte[] pending = mPendingResponse;
+        if (pending == null) {
+            return status(response, 0, SW_NOT_SELECTED);
+        }
+
+        int le = (length > 4) ? command[4] & 0xFF : 0;
+        if (le != pending.length) {
+            return status(response, 0, 0x6C00 | pending.length);
+        }
+
+        mPendingResponse = null;
+        System.arraycopy(pending, 0, response, 0, pending.length);
+        return status(response, pending.length, SW_SUCCESS);
+    }
+
+    private int setLength(byte[] command, int length, byte[] response) {
+
+        if (length < 10 || (command[4] & 0xFF) != 5) {
+            return status(response, 0, SW_WRONG_LENGTH);
+        }
+
+        mTransferLength = (command[8] & 0xFF) | ((command[9] & 0xFF) << 8);
+        return status(response, 0, SW_SUCCESS);
+    }
+
+    private int selectRange(byte[] command, int length, byte[] response) {
+
+        if (length < 13 || (command[4] & 0xFF) != 8) {
+            return status(response, 0, SW_WRONG_LENGTH);
+        }
+
+        int file = command[5] & 0xFF;
+        if (file >= mFiles.length || mFiles[file] == null) {
+            mFile = -1;
+            return status(response, 0, SW_FILE_NOT_FOUND);
+        }
+
+        mFile = file;
+        mRangeSelects[file]++;
+        mOffset = (command[9] & 0xFF) | ((command[10] & 0xFF) << 8);
+        mLength = (command[11] & 0xFF) | ((command[12] & 0xFF) << 8);
+
+        return status(response, 0, SW_SUCCESS);
+    }
+
+    private int read(byte[] command, int length, byte[] response) {
+
+        if (mFile < 0) {
+            return status(response, 0, SW_NOT_SELECTED);
+        }
+
+        int le = (length > 4) ? command[4] & 0xFF : 0;
+        if (mLength > mMaxChunk) {
+            return status(response, 0, SW_WRONG_LENGTH);
+        } else if (mLength != mTransferLength || mLength > JpnCommands.MAX_CHUNK) {
+            return status(response, 0, SW_WRONG_PARAMS);
+        } else if (le != mLength) {
+            return status(response, 0, 0x6C00 | mLength);
+        }
+
+        // Bytes past the end of the file read as zero
+        byte[] data = mFiles[mFile];
+        for (int i = 0; i < mLength; i++) {
+            int index = mOffset + i;
+            response[i] = (index < data.length) ? data[index] : 0;
+        }
+
+        return status(response, mLength, SW_SUCCESS);
+    }
+
+    private void reset() {
+        mSelected = false;
+        mTransferLength = 0;
+        mFile = -1;
+        mPendingResponse = null;
+    }
+
+    private static int status(byte[] response, int offset, int sw) {
+        response[offset] = (byte) (sw >> 8);
+        response[offset + 1] = (byte) sw;
+        return offset + 2;
+    }
+
+    private static void pause(long nanos) {
+
+        long deadline = System.nanoTime() + nanos;
+        long left;
+        while ((left = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(left);
+        }
+    }
+}
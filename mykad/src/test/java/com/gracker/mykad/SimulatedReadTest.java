@@ -0,0 +1,283 @@
+package com.gracker.mykad;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reads the simulated card through the whole read engine.
+ */
+public class SimulatedReadTest {
+
+    private static void assertSample(ReadIcResult result) {
+
+        assertNull(result.e);
+        assertEquals(TestCards.NAME, result.getName());
+        assertEquals(TestCards.IC, result.getIc());
+        assertEquals(TestCards.GENDER, result.getGender());
+        assertEquals(TestCards.OLD_IC, result.getOldIc());
+        assertEquals(TestCards.DOB, result.getDob());
+        assertEquals(TestCards.BIRTH_PLACE, result.getBirthPlace().trim());
+        assertEquals(TestCards.ISSUE_DATE, result.getIssueDate());
+        assertEquals(TestCards.CITIZENSHIP, result.getCitizenship());
+        assertEquals(TestCards.RACE, result.getRace());
+        assertEquals(TestCards.RELIGION, result.getReligion());
+        assertEquals(TestCards.ADDRESS1, result.getAddress1());
+        assertEquals(TestCards.ADDRESS2, result.getAddress2());
+        assertEquals(TestCards.ADDRESS3, result.getAddress3());
+        assertEquals(TestCards.POSTCODE, result.getPostcode());
+        assertEquals(TestCards.CITY, result.getCity());
+        assertEquals(TestCards.STATE, result.getState());
+    }
+
+    @Test
+    public void readsEveryFieldAndThePhotoUnderT0() {
+
+        SimulatedJpnCard card = TestCards.card(1);
+        JpnReader reader = new JpnReader(new ReaderSession(card));
+
+        ReadIcResult result = reader.read(0, EnumSet.allOf(JpnField.class), true, null);
+
+        assertSample(result);
+        assertArrayEquals(TestCards.jpeg(), result.photo);
+        assertEquals(CardTransport.PROTOCOL_T0, card.getProtocol(0));
+    }
+
+    @Test
+    public void readsAPhotoThatFillsTheWholeFile() {
+
+        // Header and end marker take 32 bytes
+        byte[] jpeg = TestCards.jpeg(JpnCommands.PHOTO_MAX - 32);
+        assertEquals(JpnCommands.PHOTO_MAX, jpeg.length);
+
+        SimulatedJpnCard card = TestCards.card(1)
+                .setFile(JpnCommands.FILE_PHOTO, TestCards.photoFile(jpeg));
+        ReaderSession session = new ReaderSession(card);
+        JpnReader reader = new JpnReader(session);
+
+        ReadIcResult result = reader.read(0, EnumSet.noneOf(JpnField.class), true, null);
+        assertArrayEquals(jpeg, result.photo);
+
+        // Smaller chunks reach the end of the file as well
+        session.setPhotoChunk(0x40);
+        result = reader.read(0, EnumSet.noneOf(JpnField.class), true, null);
+        assertArrayEquals(jpeg, result.photo);
+    }
+
+    @Test
+    public void readsAFailedFirstChunkAgainAtTheSameSize() {
+
+        // The IC range is the first read, the first photo chunk fails once
+        SimulatedJpnCard card = TestCards.card(1).failReads(1, 1);
+        ReaderSession session = new ReaderSession(card);
+        JpnReader reader = new JpnReader(session);
+
+        ReadIcResult result = reader.read(0, EnumSet.of(JpnField.IC), true, null);
+
+        assertTrue(result.isComplete());
+        assertArrayEquals(TestCards.jpeg(), result.photo);
+        assertEquals(JpnCommands.MAX_CHUNK, session.getPhotoChunk());
+    }
+
+    @Test
+    public void stepsDownWhenTheChunkSizeIsRejectedAndProbesUpLater() {
+
+        SimulatedJpnCard card = TestCards.card(1).setMaxChunk(0x80);
+        ReaderSession session = new ReaderSession(card);
+        JpnReader reader = new JpnReader(session);
+
+        ReadIcResult result = reader.read(0, EnumSet.noneOf(JpnField.class), true, null);
+        assertArrayEquals(TestCards.jpeg(), result.photo);
+        assertEquals(0x80, session.getPhotoChunk());
+
+        // The card takes full chunks again: the size climbs back after
+        // enough clean transfers
+        card.setMaxChunk(JpnCommands.MAX_CHUNK);
+        for (int i = 0; i < PhotoTransfer.PROBE_INTERVAL; i++) {
+            reader.read(0, EnumSet.noneOf(JpnField.class), true, null);
+            assertEquals(0x80, session.getPhotoChunk());
+        }
+
+        result = reader.read(0, EnumSet.noneOf(JpnField.class), true, null);
+        assertArrayEquals(TestCards.jpeg(), result.photo);
+        assertEquals(0xC0, session.getPhotoChunk());
+    }
+
+    @Test
+    public void prefersT1AndSkipsGetResponse() {
+
+        SimulatedJpnCard t0 = TestCards.card(1);
+        new JpnReader(new ReaderSession(t0)).read(0, EnumSet.of(JpnField.NAME), false, null);
+
+        SimulatedJpnCard t1 = TestCards.card(1).setSupportsT1(true);
+        ReadIcResult result = new JpnReader(new ReaderSession(t1))
+                .read(0, EnumSet.of(JpnField.NAME), false, null);
+
+        assertEquals(TestCards.NAME, result.getName());
+        assertEquals(CardTransport.PROTOCOL_T1, t1.getProtocol(0));
+        assertEquals(t0.getTransmitCount() - 1, t1.getTransmitCount());
+    }
+
+    @Test
+    public void reusesTheWarmSessionUntilTheCardIsRemoved() {
+
+        SimulatedJpnCard card = TestCards.card(1);
+        ReaderSession session = new ReaderSession(card);
+        JpnReader reader = new JpnReader(session);
+
+        reader.read(0, EnumSet.of(JpnField.NAME), false, null);
+        long cold = card.getTransmitCount();
+
+        reader.read(0, EnumSet.of(JpnField.NAME), false, null);
+        long warm = card.getTransmitCount() - cold;
+
+        // Same transfer length and no select: only select range and read
+        assertEquals(2, warm);
+
+        card.setPresent(false);
+        session.invalidate(0);
+        card.setPresent(true);
+
+        ReadIcResult result = reader.read(0, EnumSet.of(JpnField.NAME), false, null);
+        assertEquals(TestCards.NAME, result.getName());
+        assertEquals(cold, card.getTransmitCount() - cold - warm);
+    }
+
+    @Test
+    public void recoversAfterATransmitError() {
+
+        SimulatedJpnCard card = TestCards.card(1).setErrorRates(1, 0);
+        JpnReader reader = new JpnReader(new ReaderSession(card));
+
+        ReadIcResult failed = reader.read(0, EnumSet.allOf(JpnField.class), false, null);
+        assertNotNull(failed.e);
+
+        card.setErrorRates(0, 0);
+        assertSample(reader.read(0, EnumSet.allOf(JpnField.class), false, null));
+    }
+
+    @Test
+    public void readsAFailedRangeAgain() {
+
+        SimulatedJpnCard card = TestCards.card(1).failReads(0, 1);
+        JpnReader reader = new JpnReader(new ReaderSession(card));
+
+        ReadIcResult result = reader.read(0, EnumSet.allOf(JpnField.class), false, null);
+
+        assertSample(result);
+        assertTrue(result.isComplete());
+    }
+
+    @Test
+    public void keepsTheFieldsOfTheRangesThatWereRead() {
+
+        // Every attempt at the JPN1 range fails, the address range does not
+        SimulatedJpnCard card = TestCards.card(1).failReads(0, Backoff.ATTEMPTS);
+        JpnReader reader = new JpnReader(new ReaderSession(card));
+
+        ReadIcResult result = reader.read(0, EnumSet.of(JpnField.NAME, JpnField.CITY),
+                false, null);
+
+        assertNull(result.e);
+        assertNull(result.getName());
+        assertEquals(TestCards.CITY, result.getCity());
+        assertEquals(EnumSet.of(JpnField.NAME), result.fieldErrors.keySet());
+        assertFalse(result.isComplete());
+    }
+
+    @Test
+    public void resumesAPhotoThatFailedPartWay() {
+
+        SimulatedJpnCard full = TestCards.card(1);
+        new JpnReader(new ReaderSession(full)).read(0, EnumSet.noneOf(JpnField.class),
+                true, null);
+
+        // Three chunks arrive, then the fourth fails
+        SimulatedJpnCard card = TestCards.card(1).failReads(3, Backoff.ATTEMPTS);
+        JpnReader reader = new JpnReader(new ReaderSession(card));
+
+        ReadIcResult failed = reader.read(0, EnumSet.noneOf(JpnField.class), true, null);
+        assertNull(failed.e);
+        assertNull(failed.photo);
+        assertNotNull(failed.photoError);
+
+        long before = card.getTransmitCount();
+        ReadIcResult result = reader.read(0, EnumSet.noneOf(JpnField.class), true, null);
+
+        assertTrue(result.isComplete());
+        assertArrayEquals(TestCards.jpeg(), result.photo);
+        assertTrue(card.getTransmitCount() - before < full.getTransmitCount());
+    }
+
+    @Test
+    public void readsThePhotoAloneWithoutTheIcNumber() {
+
+        SimulatedJpnCard card = TestCards.card(1);
+        JpnReader reader = new JpnReader(new ReaderSession(card));
+
+        ReadIcResult result = reader.read(0, EnumSet.noneOf(JpnField.class), true, null);
+
+        assertTrue(result.isComplete());
+        assertArrayEquals(TestCards.jpeg(), result.photo);
+        assertEquals(0, card.getRangeSelects(JpnCommands.FILE_JPN1));
+    }
+
+    @Test
+    public void doesNotRememberATransferLengthTheCardRefused() throws SmartCardException {
+
+        SimulatedJpnCard card = TestCards.card(1);
+        ReaderSession session = new ReaderSession(card);
+        session.power(0, CardTransport.CARD_COLD_RESET);
+
+        // Not selected yet, so the card refuses C8 32
+        try {
+            session.setTransferLength(0, 0x80);
+            fail();
+        } catch (SmartCardException e) {
+            assertEquals(0x6985, e.getSw());
+        }
+        assertEquals(0, session.getCard(0).getTransferLength());
+    }
+
+    @Test
+    public void doesNotResumeThePhotoOfAnotherCard() {
+
+        SimulatedJpnCard card = TestCards.card(1).failReads(3, Backoff.ATTEMPTS);
+        JpnReader reader = new JpnReader(new ReaderSession(card));
+
+        ReadIcResult failed = reader.read(0, EnumSet.noneOf(JpnField.class), true, null);
+        assertNotNull(failed.photoError);
+
+        // Another card with the same ATR, its removal missed
+        byte[] jpn1 = TestCards.jpn1();
+        byte[] ic = "850101105555".getBytes();
+        System.arraycopy(ic, 0, jpn1, JpnField.IC.offset, ic.length);
+        byte[] jpeg = TestCards.jpeg(2000);
+        Arrays.fill(jpeg, 40, 400, (byte) 0x11);
+        card.setFile(JpnCommands.FILE_JPN1, jpn1)
+                .setFile(JpnCommands.FILE_PHOTO, TestCards.photoFile(jpeg));
+
+        ReadIcResult result = reader.read(0, EnumSet.noneOf(JpnField.class), true, null);
+
+        assertTrue(result.isComplete());
+        assertArrayEquals(jpeg, result.photo);
+    }
+
+    @Test
+    public void reportsTheDeadline() {
+
+        SimulatedJpnCard card = TestCards.card(1).setLatency(2000000, 0);
+        ReaderSession session = new ReaderSession(card);
+        JpnReader reader = new JpnReader(session);
+
+        session.setOperation(new ReaderOperation(0, 5));
+        ReadIcResult result = reader.read(0, EnumSet.allOf(JpnField.class), true, null);
+        session.setOperation(null);
+
+        assertTrue(result.e instanceof ReadCancelledException);
+        assertTrue(((ReadCancelledException) result.e).isTimeout());
+    }
+}
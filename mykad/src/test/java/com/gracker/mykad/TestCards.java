@@ -0,0 +1,166 @@
+package com.gracker.mykad;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+
+/**
+ * File images of a sample MyKad for tests.
+ */
+final class TestCards {
+
+    static final String NAME = "AHMAD BIN ABDULLAH";
+    static final String IC = "900131105678";
+    static final String GENDER = "L";
+    static final String OLD_IC = "A1234567";
+    static final String DOB = "31-1-1990";
+    static final String BIRTH_PLACE = "SELANGOR";
+    static final String ISSUE_DATE = "2-3-2015";
+    static final String CITIZENSHIP = "WARGANEGARA";
+    static final String RACE = "MELAYU";
+    static final String RELIGION = "ISLAM";
+    static final String ADDRESS1 = "NO 1 JALAN SATU";
+    static final String ADDRESS2 = "TAMAN DUA";
+    static final String ADDRESS3 = "";
+    static final String POSTCODE = "50480";
+    static final String CITY = "KUALA LUMPUR";
+    static final String STATE = "W. PERSEKUTUAN(KL)";
+
+    /** Size of the entropy-coded part of the sample photo. */
+    static final int PHOTO_SCAN_SIZE = 3000;
+
+    private TestCards() {
+    }
+
+    /**
+     * Returns the JPN1 file of the sample card.
+     */
+    static byte[] jpn1() {
+
+        byte[] file = new byte[ReadPlanner.FILE_END[JpnCommands.FILE_JPN1]];
+
+        put(file, JpnField.ORG_NAME, NAME);
+        put(file, JpnField.GMPC_NAME, NAME);
+        put(file, JpnField.NAME, NAME);
+        put(file, JpnField.IC, IC);
+        put(file, JpnField.GENDER, GENDER);
+        put(file, JpnField.OLD_IC, OLD_IC);
+        putBcd(file, JpnField.DOB, 0x19, 0x90, 0x01, 0x31);
+        put(file, JpnField.BIRTH_PLACE, BIRTH_PLACE);
+        putBcd(file, JpnField.ISSUE_DATE, 0x20, 0x15, 0x03, 0x02);
+        put(file, JpnField.CITIZENSHIP, CITIZENSHIP);
+        put(file, JpnField.RACE, RACE);
+        put(file, JpnField.RELIGION, RELIGION);
+
+        return file;
+    }
+
+    /**
+     * Returns the address file of the sample card.
+     */
+    static byte[] address() {
+
+        byte[] file = new byte[ReadPlanner.FILE_END[JpnCommands.FILE_ADDRESS]];
+
+        put(file, JpnField.ADDRESS1, ADDRESS1);
+        put(file, JpnField.ADDRESS2, ADDRESS2);
+        put(file, JpnField.ADDRESS3, ADDRESS3);
+        putBcd(file, JpnField.POSTCODE, 0x50, 0x48, 0x00);
+        put(file, JpnField.CITY, CITY);
+        put(file, JpnField.STATE, STATE);
+
+        return file;
+    }
+
+    /**
+     * Returns the sample photo: a JPEG stream with a header, a scan and the
+     * end marker.
+     */
+    static byte[] jpeg() {
+        return jpeg(PHOTO_SCAN_SIZE);
+    }
+
+    /**
+     * Returns a photo with a scan of the given size.
+     *
+     * @param scanSize
+     *            the size of the entropy-coded part.
+     */
+    static byte[] jpeg(int scanSize) {
+
+        byte[] header = { (byte) 0xFF, (byte) 0xD8,
+                (byte) 0xFF, (byte) 0xE0, 0x00, 0x10, 'J', 'F', 'I', 'F', 0x00,
+                0x01, 0x01, 0x00, 0x00, 0x01, 0x00, 0x01, 0x00, 0x00,
+                (byte) 0xFF, (byte) 0xDA, 0x00, 0x08, 0x01, 0x01, 0x00, 0x00,
+                0x3F, 0x00 };
+
+        byte[] jpeg = Arrays.copyOf(header, header.length + scanSize + 2);
+        for (int i = 0; i < scanSize; i++) {
+            jpeg[header.length + i] = (byte) (i % 0xFF);
+        }
+        jpeg[jpeg.length - 2] = (byte) 0xFF;
+        jpeg[jpeg.length - 1] = (byte) 0xD9;
+
+        return jpeg;
+    }
+
+    /**
+     * Returns the photo file of the sample card, padded with zeros.
+     */
+    static byte[] photoFile() {
+        return photoFile(jpeg());
+    }
+
+    /**
+     * Returns a photo file holding the given photo, padded with zeros.
+     *
+     * @param jpeg
+     *            the photo, at most {@link JpnCommands#PHOTO_MAX} bytes.
+     */
+    static byte[] photoFile(byte[] jpeg) {
+
+        byte[] file = new byte[JpnCommands.PHOTO_OFFSET + JpnCommands.PHOTO_MAX];
+        System.arraycopy(jpeg, 0, file, JpnCommands.PHOTO_OFFSET, jpeg.length);
+
+        return file;
+    }
+
+    /**
+     * Returns a card image holding every field of the sample card.
+     */
+    static CardImage image() {
+
+        byte[] jpn1 = jpn1();
+        byte[] address = address();
+
+        CardImage image = new CardImage();
+        image.put(JpnCommands.FILE_JPN1, 0, jpn1, jpn1.length);
+        image.put(JpnCommands.FILE_ADDRESS, 0, address, address.length);
+        image.addFields(EnumSet.allOf(JpnField.class));
+
+        return image;
+    }
+
+    /**
+     * Returns a simulated card holding the sample files.
+     */
+    static SimulatedJpnCard card(long seed) {
+        return new SimulatedJpnCard(seed)
+                .setFile(JpnCommands.FILE_JPN1, jpn1())
+                .setFile(JpnCommands.FILE_PHOTO, photoFile())
+                .setFile(JpnCommands.FILE_ADDRESS, address());
+    }
+
+    private static void put(byte[] file, JpnField field, String text) {
+
+        Arrays.fill(file, field.offset, field.end(), (byte) ' ');
+        for (int i = 0; i < text.length() && i < field.length; i++) {
+            file[field.offset + i] = (byte) text.charAt(i);
+        }
+    }
+
+    private static void putBcd(byte[] file, JpnField field, int... bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            file[field.offset + i] = (byte) bytes[i];
+        }
+    }
+}
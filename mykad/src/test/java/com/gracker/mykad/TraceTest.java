@@ -0,0 +1,179 @@
+package com.gracker.mykad;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Records reads of the simulated card and replays the trace.
+ */
+public class TraceTest {
+
+    private static final Set<JpnField> ALL = EnumSet.allOf(JpnField.class);
+    private static final Set<JpnField> NONE = EnumSet.noneOf(JpnField.class);
+
+    private File mFile;
+    private TraceRecorder mRecorder;
+    private ReaderSession mSession;
+    private JpnReader mReader;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("read", ".trace");
+        mRecorder = new TraceRecorder(TestCards.card(1));
+        mSession = new ReaderSession(mRecorder);
+        mReader = new JpnReader(mSession);
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    private ReadIcResult read(Set<JpnField> fields, boolean readPhoto) {
+        mRecorder.markRead(0, fields, readPhoto);
+        return mReader.read(0, fields, readPhoto, null);
+    }
+
+    private static List<ReadIcResult> replay(TraceReplayer replayer) {
+
+        final List<ReadIcResult> results = new ArrayList<ReadIcResult>();
+        replayer.run(new TraceReplayer.Listener() {
+
+            @Override
+            public void onReplay(int slotNum, ReadIcResult result, long elapsedNanos) {
+                results.add(result);
+            }
+        });
+
+        return results;
+    }
+
+    @Test
+    public void replaysAPlainReadAndAPhotoRead() throws IOException {
+
+        mRecorder.start(mFile, mSession);
+        ReadIcResult text = read(ALL, false);
+        ReadIcResult photo = read(NONE, true);
+        mRecorder.stop();
+
+        assertTrue(text.isComplete());
+        assertTrue(photo.isComplete());
+
+        List<ReadIcResult> results = replay(new TraceReplayer(TraceReader.read(mFile), false));
+
+        assertEquals(2, results.size());
+        assertTrue(results.get(0).isComplete());
+        assertEquals(TestCards.NAME, results.get(0).getName());
+        assertEquals(TestCards.IC, results.get(0).getIc());
+        assertEquals(TestCards.CITY, results.get(0).getCity());
+        assertTrue(results.get(1).isComplete());
+        assertArrayEquals(TestCards.jpeg(), results.get(1).photo);
+    }
+
+    @Test
+    public void replaysFromTheRecordedPhotoChunk() throws IOException {
+
+        // As if the transfer had already stepped down before the trace
+        mSession.setPhotoChunk(0x80);
+
+        mRecorder.start(mFile, mSession);
+        read(NONE, true);
+        mRecorder.stop();
+
+        TraceReplayer replayer = new TraceReplayer(TraceReader.read(mFile), false);
+        assertEquals(0x80, replayer.getSession().getPhotoChunk());
+
+        List<ReadIcResult> results = replay(replayer);
+        assertEquals(1, results.size());
+        assertTrue(results.get(0).isComplete());
+        assertArrayEquals(TestCards.jpeg(), results.get(0).photo);
+    }
+
+    @Test
+    public void replaysReadsRecordedWithACache() throws IOException {
+
+        CardCache cache = new CardCache(4, 64 * 1024, 60000);
+        mReader.setCache(cache);
+
+        // Cached before the trace, so a cached read would skip the card
+        read(ALL, true);
+        long hits = cache.getHitCount();
+
+        int transferLength = mSession.getCard(0).getTransferLength();
+        assertTrue(transferLength > 0);
+
+        // The worker starts every trace from a cold card, after the header
+        mRecorder.start(mFile, mSession);
+        mSession.invalidateAll();
+        read(ALL, true);
+        read(ALL, false);
+        mRecorder.stop();
+
+        assertEquals(hits, cache.getHitCount());
+
+        List<TraceRecord> records = TraceReader.read(mFile);
+        assertEquals(TraceRecord.TYPE_SESSION, records.get(0).type);
+        assertEquals(transferLength, records.get(0).result);
+
+        List<ReadIcResult> results = replay(new TraceReplayer(records, false));
+
+        assertEquals(2, results.size());
+        assertTrue(results.get(0).isComplete());
+        assertEquals(TestCards.NAME, results.get(0).getName());
+        assertArrayEquals(TestCards.jpeg(), results.get(0).photo);
+        assertTrue(results.get(1).isComplete());
+        assertEquals(TestCards.IC, results.get(1).getIc());
+    }
+
+    @Test
+    public void keepsTheReplayOutOfTheProcessStats() throws IOException {
+
+        mRecorder.start(mFile, mSession);
+        read(ALL, true);
+        mRecorder.stop();
+
+        ReadStats stats = ReadStats.get();
+        long reads = stats.getHistogram(ReadStats.Phase.READ).getCount();
+
+        TraceReplayer replayer = new TraceReplayer(TraceReader.read(mFile), false);
+        replay(replayer);
+
+        assertEquals(reads, stats.getHistogram(ReadStats.Phase.READ).getCount());
+        assertEquals(1, replayer.getStats().getHistogram(ReadStats.Phase.READ).getCount());
+    }
+
+    @Test
+    public void dropsARecordCutShort() throws IOException {
+
+        mRecorder.start(mFile, mSession);
+        read(EnumSet.of(JpnField.NAME), false);
+        mRecorder.stop();
+
+        byte[] trace = Files.readAllBytes(mFile.toPath());
+        List<TraceRecord> records = TraceReader.read(new ByteArrayInputStream(trace));
+        List<TraceRecord> cut = TraceReader.read(new ByteArrayInputStream(
+                Arrays.copyOf(trace, trace.length - 3)));
+
+        assertEquals(TraceRecord.TYPE_SESSION, records.get(0).type);
+        assertEquals(TraceRecord.TYPE_READ, records.get(mSession.getSlotCount()).type);
+        assertEquals(records.size() - 1, cut.size());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsAFileThatIsNotATrace() throws IOException {
+        TraceReader.read(new ByteArrayInputStream(new byte[] { 'J', 'P', 'E', 'G', 0, 0 }));
+    }
+}